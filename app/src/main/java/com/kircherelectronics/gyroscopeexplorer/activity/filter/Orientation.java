@@ -60,6 +60,9 @@ public abstract class Orientation implements OrientationInterface,
 	// angular speeds from gyro
 	protected float[] vGyroscope = new float[3];
 
+	// magnitude of the latest angular speed in radians/second
+	private volatile float angularSpeed = 0;
+
 	// magnetic field vector
 	protected float[] vMagnetic = new float[3];
 
@@ -76,6 +79,13 @@ public abstract class Orientation implements OrientationInterface,
 
 	private Context context;
 
+	private OrientationListener orientationListener;
+
+	// rate of the gyroscope, one of the SensorManager.SENSOR_DELAY constants
+	private int sensorDelay = SensorManager.SENSOR_DELAY_FASTEST;
+
+	private boolean registered = false;
+
 	private MeanFilterSmoothing meanFilterAcceleration;
 	private MeanFilterSmoothing meanFilterMagnetic;
 	private MeanFilterSmoothing meanFilterGyroscope;
@@ -139,9 +149,15 @@ public abstract class Orientation implements OrientationInterface,
 						.addSamples(this.vGyroscope);
 			}
 
+			angularSpeed = (float) Math.sqrt(vGyroscope[0] * vGyroscope[0]
+					+ vGyroscope[1] * vGyroscope[1] + vGyroscope[2]
+					* vGyroscope[2]);
+
 			timeStampGyroscope = event.timestamp;
 
 			onGyroscopeChanged();
+
+			notifyOrientationChanged();
 		}
 
 		if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE_UNCALIBRATED)
@@ -155,15 +171,22 @@ public abstract class Orientation implements OrientationInterface,
 						.addSamples(this.vGyroscope);
 			}
 
+			angularSpeed = (float) Math.sqrt(vGyroscope[0] * vGyroscope[0]
+					+ vGyroscope[1] * vGyroscope[1] + vGyroscope[2]
+					* vGyroscope[2]);
+
 			timeStampGyroscope = event.timestamp;
 
 			onGyroscopeChanged();
+
+			notifyOrientationChanged();
 		}
 
 	}
 
 	public void onPause()
 	{
+		registered = false;
 		sensorManager.unregisterListener(this);
 	}
 
@@ -181,20 +204,83 @@ public abstract class Orientation implements OrientationInterface,
 				sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD),
 				SensorManager.SENSOR_DELAY_FASTEST);
 
+		Sensor gyroscope = getGyroscope();
+		if (gyroscope != null)
+		{
+			sensorManager.registerListener(this, gyroscope, sensorDelay);
+		}
+
+		registered = true;
+	}
+
+	/**
+	 * Set the rate of the gyroscope. The change applies right away if the
+	 * sensors are registered, or with the next call to onResume().
+	 * 
+	 * @param sensorDelay
+	 *            one of the SensorManager.SENSOR_DELAY constants
+	 */
+	public void setSensorDelay(int sensorDelay)
+	{
+		if (this.sensorDelay == sensorDelay)
+		{
+			return;
+		}
+
+		this.sensorDelay = sensorDelay;
+
+		Sensor gyroscope = getGyroscope();
+		if (registered && gyroscope != null)
+		{
+			sensorManager.unregisterListener(this, gyroscope);
+			sensorManager.registerListener(this, gyroscope, sensorDelay);
+		}
+	}
+
+	private Sensor getGyroscope()
+	{
 		if (calibratedGyroscopeEnabled)
 		{
-			sensorManager.registerListener(this,
-					sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE),
-					SensorManager.SENSOR_DELAY_FASTEST);
+			return sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
 		}
-		else
+
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR2)
 		{
-			if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR2)
-			{
-				sensorManager.registerListener(this, sensorManager
-						.getDefaultSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED),
-						SensorManager.SENSOR_DELAY_FASTEST);
-			}
+			return sensorManager
+					.getDefaultSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED);
+		}
+
+		return null;
+	}
+
+	/**
+	 * The magnitude of the latest gyroscope sample, taken before the filters
+	 * integrate it.
+	 * 
+	 * @return the angular speed of the device in radians/second
+	 */
+	public float getAngularSpeed()
+	{
+		return angularSpeed;
+	}
+
+	/**
+	 * Set a listener that is notified on every gyroscope update once the
+	 * initial orientation is known. Pass null to remove it.
+	 * 
+	 * @param orientationListener
+	 */
+	public void setOrientationListener(OrientationListener orientationListener)
+	{
+		this.orientationListener = orientationListener;
+	}
+
+	private void notifyOrientationChanged()
+	{
+		if (orientationListener != null && isOrientationValidAccelMag)
+		{
+			orientationListener.onOrientationChanged(getOrientation(),
+					timeStampGyroscope);
 		}
 	}
 
@@ -0,0 +1,20 @@
+package com.kircherelectronics.gyroscopeexplorer.activity.filter;
+
+/**
+ * A listener that is notified every time the fused orientation is updated
+ * from a gyroscope sample.
+ */
+public interface OrientationListener
+{
+	/**
+	 * Called on the sensor thread after the orientation has been integrated.
+	 * The array is owned by the filter and is overwritten by the next sample.
+	 * 
+	 * @param orientation
+	 *            the Euler angles in radians, as returned by
+	 *            {@link OrientationInterface#getOrientation()}
+	 * @param timestamp
+	 *            the timestamp of the gyroscope event in nanoseconds
+	 */
+	public void onOrientationChanged(float[] orientation, long timestamp);
+}
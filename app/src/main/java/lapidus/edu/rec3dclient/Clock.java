@@ -0,0 +1,36 @@
+package lapidus.edu.rec3dclient;
+
+import android.os.SystemClock;
+
+/**
+ * A source of monotonic time, so that time based policies can be driven by a fake clock off the
+ * device.
+ */
+public interface Clock {
+
+    /**
+     * The {@link SystemClock#elapsedRealtime()} clock.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    /**
+     * @return Milliseconds since some fixed point in the past, including deep sleep
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return Nanoseconds on the same clock as {@link #elapsedRealtime()}
+     */
+    long elapsedRealtimeNanos();
+
+}
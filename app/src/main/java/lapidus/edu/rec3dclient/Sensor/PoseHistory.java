@@ -0,0 +1,88 @@
+package lapidus.edu.rec3dclient.Sensor;
+
+import com.kircherelectronics.gyroscopeexplorer.activity.filter.OrientationListener;
+
+/**
+ * Keeps the most recent fused orientations, so that the pose can be looked up for a timestamp in
+ * the recent past, e.g. the exposure time of a video frame that is only encoded later.
+ * <p>
+ * Samples are stored as quaternions in a ring; looking a pose up interpolates between the two
+ * samples around the requested time.
+ */
+public class PoseHistory implements OrientationListener {
+
+    private final long[] mTimestamps;
+
+    private final float[] mPoses;
+
+    private final float[] mSample = new float[4];
+
+    private final float[] mOther = new float[4];
+
+    /**
+     * Index of the next sample to write.
+     */
+    private int mHead;
+
+    private int mSize;
+
+    /**
+     * @param capacity Number of samples kept
+     */
+    public PoseHistory(int capacity) {
+        mTimestamps = new long[capacity];
+        mPoses = new float[capacity * 4];
+    }
+
+    @Override
+    public synchronized void onOrientationChanged(float[] orientation, long timestamp) {
+        PoseMath.eulerToQuaternion(orientation, mSample);
+        System.arraycopy(mSample, 0, mPoses, mHead * 4, 4);
+        mTimestamps[mHead] = timestamp;
+        mHead = (mHead + 1) % mTimestamps.length;
+        if (mSize < mTimestamps.length) {
+            mSize++;
+        }
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Looks up the pose at {@code timestamp}. Times outside of the kept samples get the nearest
+     * sample.
+     *
+     * @param timestamp Time in nanoseconds, in the time base of the sensor events
+     * @param q         Receives the quaternion {w, x, y, z}
+     * @return Whether any sample was available
+     */
+    public synchronized boolean getPose(long timestamp, float[] q) {
+        if (0 == mSize) {
+            return false;
+        }
+        int oldest = (mHead - mSize + mTimestamps.length) % mTimestamps.length;
+        // Walk back from the newest sample to the first one not after the timestamp.
+        for (int i = mSize - 1; i >= 0; i--) {
+            int index = (oldest + i) % mTimestamps.length;
+            if (mTimestamps[index] > timestamp) {
+                continue;
+            }
+            if (i == mSize - 1) {
+                System.arraycopy(mPoses, index * 4, q, 0, 4);
+                return true;
+            }
+            int next = (index + 1) % mTimestamps.length;
+            float t = (float) (timestamp - mTimestamps[index])
+                    / (mTimestamps[next] - mTimestamps[index]);
+            System.arraycopy(mPoses, index * 4, mSample, 0, 4);
+            System.arraycopy(mPoses, next * 4, mOther, 0, 4);
+            PoseMath.nlerp(mSample, mOther, t, q);
+            return true;
+        }
+        System.arraycopy(mPoses, oldest * 4, q, 0, 4);
+        return true;
+    }
+
+}
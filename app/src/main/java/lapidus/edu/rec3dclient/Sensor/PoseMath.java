@@ -0,0 +1,74 @@
+package lapidus.edu.rec3dclient.Sensor;
+
+/**
+ * Small allocation-free helpers for working with device poses.
+ * <p>
+ * Orientations are the Euler angles returned by
+ * {@code GyroscopeOrientation.getOrientation()} (azimuth, pitch, roll in radians) and quaternions
+ * are stored as {@code {w, x, y, z}}.
+ */
+public final class PoseMath {
+
+    private PoseMath() {
+    }
+
+    /**
+     * Converts Android orientation angles into the unit quaternion of the same rotation, i.e. the
+     * inverse of {@code SensorManager.getOrientation()}: R = Rz(-azimuth) * Rx(-pitch) * Ry(roll).
+     *
+     * @param orientation Azimuth, pitch and roll in radians
+     * @param q           Receives the quaternion {w, x, y, z}
+     */
+    public static void eulerToQuaternion(float[] orientation, float[] q) {
+        double cz = Math.cos(-orientation[0] / 2);
+        double sz = Math.sin(-orientation[0] / 2);
+        double cx = Math.cos(-orientation[1] / 2);
+        double sx = Math.sin(-orientation[1] / 2);
+        double cy = Math.cos(orientation[2] / 2);
+        double sy = Math.sin(orientation[2] / 2);
+
+        // a = qz(-azimuth) * qx(-pitch)
+        double aw = cz * cx;
+        double ax = cz * sx;
+        double ay = sz * sx;
+        double az = sz * cx;
+
+        // q = a * qy(roll)
+        q[0] = (float) (aw * cy - ay * sy);
+        q[1] = (float) (ax * cy - az * sy);
+        q[2] = (float) (aw * sy + ay * cy);
+        q[3] = (float) (az * cy + ax * sy);
+    }
+
+    /**
+     * Interpolates between two unit quaternions along the shorter arc and normalizes the result.
+     * Close enough to a slerp for the small rotations between two sensor samples.
+     *
+     * @param t   0 for {@code q1}, 1 for {@code q2}
+     * @param out Receives the quaternion, may be one of the inputs
+     */
+    public static void nlerp(float[] q1, float[] q2, float t, float[] out) {
+        float sign = q1[0] * q2[0] + q1[1] * q2[1] + q1[2] * q2[2] + q1[3] * q2[3] < 0 ? -1 : 1;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            out[i] = (1 - t) * q1[i] + t * sign * q2[i];
+            norm += out[i] * out[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            out[i] /= norm;
+        }
+    }
+
+    /**
+     * Returns the angle in radians of the rotation that takes {@code q1} to {@code q2}.
+     */
+    public static float angleBetween(float[] q1, float[] q2) {
+        double dot = Math.abs(q1[0] * q2[0] + q1[1] * q2[1] + q1[2] * q2[2] + q1[3] * q2[3]);
+        if (dot > 1) {
+            dot = 1;
+        }
+        return (float) (2 * Math.acos(dot));
+    }
+
+}
@@ -0,0 +1,200 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns a small {@link ImageFormat#YUV_420_888} {@link ImageReader} that is attached to the
+ * repeating preview request and hands its frames to a {@link FrameAnalyzer}.
+ * <p>
+ * Frames are copied into a single reusable luma buffer and the {@link Image} is released right
+ * away, so the camera never runs out of buffers. While the analyzer is still busy with the
+ * previous frame, new frames are dropped instead of queued.
+ */
+public class AnalysisStage implements ImageReader.OnImageAvailableListener {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "AnalysisStage";
+
+    /**
+     * Largest width we consider for the analysis stream.
+     */
+    private static final int MAX_ANALYSIS_WIDTH = 640;
+
+    private final ImageReader mImageReader;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    /**
+     * Packed Y plane of the frame currently being analyzed.
+     */
+    private final byte[] mLuma;
+
+    /**
+     * Set while {@link #mLuma} is owned by the analysis thread.
+     */
+    private final AtomicBoolean mBusy = new AtomicBoolean(false);
+
+    private HandlerThread mAnalysisThread;
+
+    private Handler mAnalysisHandler;
+
+    private volatile FrameAnalyzer mAnalyzer;
+
+    private volatile long mTimestamp;
+
+    /**
+     * Only one frame in this many is analyzed.
+     */
+    private volatile int mStride = 1;
+
+    private long mFrameCount;
+
+    private long mAnalyzedFrames;
+
+    private long mDroppedFrames;
+
+    private final Runnable mAnalyzeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                FrameAnalyzer analyzer = mAnalyzer;
+                if (null != analyzer) {
+                    analyzer.analyze(mLuma, mWidth, mHeight, mTimestamp);
+                }
+                mAnalyzedFrames++;
+            } finally {
+                mBusy.set(false);
+            }
+        }
+    };
+
+    /**
+     * @param size           The size of the analysis stream
+     * @param cameraHandler  The handler on which the {@link ImageReader} delivers frames
+     */
+    public AnalysisStage(Size size, Handler cameraHandler) {
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        mLuma = new byte[mWidth * mHeight];
+        mImageReader = ImageReader.newInstance(mWidth, mHeight, ImageFormat.YUV_420_888,
+                /*maxImages*/2);
+        mImageReader.setOnImageAvailableListener(this, cameraHandler);
+        mAnalysisThread = new HandlerThread("FrameAnalysis");
+        mAnalysisThread.start();
+        mAnalysisHandler = new Handler(mAnalysisThread.getLooper());
+    }
+
+    /**
+     * Picks the largest YUV size no wider than {@link #MAX_ANALYSIS_WIDTH} that matches the aspect
+     * ratio of the still output, falling back to the smallest size offered.
+     */
+    public static Size chooseSize(Size[] choices, Size aspectRatio) {
+        Size best = null;
+        Size smallest = null;
+        int w = aspectRatio.getWidth();
+        int h = aspectRatio.getHeight();
+        for (Size option : choices) {
+            long area = (long) option.getWidth() * option.getHeight();
+            if (null == smallest || area < (long) smallest.getWidth() * smallest.getHeight()) {
+                smallest = option;
+            }
+            if (option.getWidth() <= MAX_ANALYSIS_WIDTH &&
+                    option.getHeight() == option.getWidth() * h / w) {
+                if (null == best || area > (long) best.getWidth() * best.getHeight()) {
+                    best = option;
+                }
+            }
+        }
+        return null != best ? best : smallest;
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    public Size getSize() {
+        return new Size(mWidth, mHeight);
+    }
+
+    /**
+     * Analyzes only one frame in {@code stride}, to lower the workload.
+     */
+    public void setStride(int stride) {
+        mStride = Math.max(1, stride);
+    }
+
+    /**
+     * Sets the analyzer that receives frames, or {@code null} to drop every frame.
+     */
+    public void setAnalyzer(FrameAnalyzer analyzer) {
+        mAnalyzer = analyzer;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (null == image) {
+            return;
+        }
+        try {
+            if (null == mAnalyzer || 0 != mFrameCount++ % mStride
+                    || !mBusy.compareAndSet(false, true)) {
+                mDroppedFrames++;
+                return;
+            }
+            copyLuma(image);
+            mTimestamp = image.getTimestamp();
+        } finally {
+            image.close();
+        }
+        mAnalysisHandler.post(mAnalyzeRunnable);
+    }
+
+    /**
+     * Copies the Y plane of {@code image} into {@link #mLuma}, dropping any row padding.
+     */
+    private void copyLuma(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        if (rowStride == mWidth) {
+            buffer.get(mLuma, 0, mWidth * mHeight);
+            return;
+        }
+        for (int row = 0; row < mHeight; row++) {
+            buffer.position(row * rowStride);
+            buffer.get(mLuma, row * mWidth, mWidth);
+        }
+    }
+
+    /**
+     * Closes the {@link ImageReader} and stops the analysis thread.
+     */
+    public void close() {
+        mImageReader.close();
+        mAnalysisThread.quitSafely();
+        try {
+            mAnalysisThread.join();
+            mAnalysisThread = null;
+            mAnalysisHandler = null;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Log.d(TAG, "Analyzed " + mAnalyzedFrames + " frames, dropped " + mDroppedFrames);
+    }
+
+}
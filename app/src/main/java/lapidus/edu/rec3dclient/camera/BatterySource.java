@@ -0,0 +1,28 @@
+package lapidus.edu.rec3dclient.camera;
+
+/**
+ * Reports the state of the battery to {@link ThermalGovernor}.
+ */
+public interface BatterySource {
+
+    /**
+     * Reads the state of the battery once. The getters return what was read.
+     */
+    void refresh();
+
+    /**
+     * @return The battery temperature in degrees Celsius, or {@link Float#NaN} if unknown
+     */
+    float getTemperature();
+
+    /**
+     * @return The charge level between 0 and 1, or {@link Float#NaN} if unknown
+     */
+    float getLevel();
+
+    /**
+     * @return Whether the device is plugged in
+     */
+    boolean isCharging();
+
+}
@@ -18,6 +18,7 @@ package lapidus.edu.rec3dclient.camera;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
@@ -43,17 +44,22 @@ import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.provider.Settings;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v13.app.FragmentCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.util.Size;
+import android.util.SizeF;
 import android.util.SparseIntArray;
+import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.Surface;
 import android.view.TextureView;
@@ -61,26 +67,48 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.Toast;
+import android.widget.ToggleButton;
 
 import com.kircherelectronics.gyroscopeexplorer.activity.filter.GyroscopeOrientation;
+import com.kircherelectronics.gyroscopeexplorer.activity.filter.OrientationListener;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import lapidus.edu.rec3dclient.Angles;
+import lapidus.edu.rec3dclient.Clock;
 import lapidus.edu.rec3dclient.R;
+import lapidus.edu.rec3dclient.Sensor.PoseHistory;
+import lapidus.edu.rec3dclient.net.ClockSyncClient;
+import lapidus.edu.rec3dclient.net.ClockSyncServer;
+import lapidus.edu.rec3dclient.net.PointCloudDecoder;
+import lapidus.edu.rec3dclient.net.PoseTelemetryPublisher;
+import lapidus.edu.rec3dclient.net.SessionServer;
+import lapidus.edu.rec3dclient.upload.FrameDownscaler;
+import lapidus.edu.rec3dclient.upload.MuxTransport;
+import lapidus.edu.rec3dclient.upload.Transport;
+import lapidus.edu.rec3dclient.upload.Transports;
+import lapidus.edu.rec3dclient.upload.UploadItem;
+import lapidus.edu.rec3dclient.upload.UploadJobService;
+import lapidus.edu.rec3dclient.upload.UploadPipeline;
+import lapidus.edu.rec3dclient.upload.UploadQueue;
 
 
 public class Camera2BasicFragment extends Fragment
@@ -130,6 +158,11 @@ public class Camera2BasicFragment extends Fragment
      */
     private static final int STATE_PICTURE_TAKEN = 4;
 
+    /**
+     * Camera state: Waiting for the device to be steady enough for a sharp picture.
+     */
+    private static final int STATE_WAITING_STEADY = 5;
+
     /**
      * Max preview width that is guaranteed by Camera2 API
      */
@@ -140,12 +173,68 @@ public class Camera2BasicFragment extends Fragment
      */
     private static final int MAX_PREVIEW_HEIGHT = 1080;
 
+    /**
+     * Size of the {@link ImageReader} in zero-shutter-lag mode. Two buffers are kept free for the
+     * camera, the rest form the ring of recent frames.
+     */
+    private static final int ZSL_MAX_IMAGES = 6;
+
+    /**
+     * Gyroscope samples kept for video poses, about a second at the fastest sensor rate.
+     */
+    private static final int POSE_HISTORY_SIZE = 512;
+
     private GyroscopeOrientation gyroscopeOrientation;
     private Runnable orientationThread;
     private Handler handler;
     private float [] vOrientation = new float[3];
     TextView coordsView;
 
+    /**
+     * Capture preferences.
+     */
+    private CaptureSettings mSettings;
+
+    /**
+     * Triggers captures automatically when the device has rotated far enough in auto mode.
+     */
+    private KeyframeTrigger mKeyframeTrigger;
+
+    /**
+     * Predicts the motion blur of a still capture from the gyroscope and the exposure time.
+     */
+    private final MotionBlurEstimator mBlurEstimator = new MotionBlurEstimator();
+
+    /**
+     * Largest predicted blur in pixels at which a capture may start.
+     */
+    private float mMaxMotionBlur;
+
+    /**
+     * Longest time in milliseconds a capture waits for the device to be steady.
+     */
+    private long mMaxCaptureDelay;
+
+    /**
+     * Exposure time in nanoseconds of the latest preview frame.
+     */
+    private volatile long mExposureTime;
+
+    /**
+     * Time at which the current capture started waiting for the device to be steady.
+     */
+    private long mSteadyWaitStart;
+
+    /**
+     * Predicted blur of the still capture in flight.
+     */
+    private volatile float mCaptureBlur;
+
+    /**
+     * Per-stage latency histograms of the capture state machine.
+     */
+    private final CaptureLatencyTracker mLatencyTracker = new CaptureLatencyTracker();
+
 
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
@@ -156,7 +245,7 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
-            openCamera(width, height);
+            onSurfaceReady(width, height);
         }
 
         @Override
@@ -171,6 +260,11 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture texture) {
+            if (0 != mResumeTime) {
+                Log.i(TAG, "Time to first preview frame: "
+                        + (SystemClock.elapsedRealtime() - mResumeTime) + " ms");
+                mResumeTime = 0;
+            }
         }
 
     };
@@ -180,6 +274,112 @@ public class Camera2BasicFragment extends Fragment
      */
     private String mCameraId;
 
+    /**
+     * Camera outputs chosen on previous launches.
+     */
+    private CameraConfigCache mConfigCache;
+
+    /**
+     * Set once the preview session has been requested for the open camera.
+     */
+    private boolean mPreviewStarted;
+
+    /**
+     * Set, under the lock of this fragment, as the last step of setting up the outputs.
+     */
+    private boolean mOutputsReady;
+
+    /**
+     * Time of the last {@link #onResume()}, until the first preview frame arrives.
+     */
+    private long mResumeTime;
+
+    /**
+     * The outputs the camera is currently set up with.
+     */
+    private CameraConfigCache.Config mCameraConfig;
+
+    /**
+     * The size of the still output.
+     */
+    private Size mStillSize;
+
+    /**
+     * Largest number of pixels allowed for the still output by the memory budget.
+     */
+    private volatile long mStillPixelLimit = Long.MAX_VALUE;
+
+    /**
+     * Set when the still output should be recreated at a new size once no frame is in flight.
+     */
+    private volatile boolean mReconfigurePending;
+
+    /**
+     * Bytes of captured frames held in memory until they are written.
+     */
+    private final MemoryBudget mMemoryBudget = new MemoryBudget(Long.MAX_VALUE, 0, Clock.SYSTEM);
+
+    /**
+     * Chooses the still size and JPEG quality from the measured throughput.
+     */
+    private final CaptureQualityPolicy mQualityPolicy = new CaptureQualityPolicy(2, 20);
+
+    /**
+     * Lowers the capture, sensor and analysis rates when the device heats up.
+     */
+    private ThermalGovernor mThermalGovernor;
+
+    /**
+     * Lets captures skip the auto focus trigger while the device holds still.
+     */
+    private final FocusReusePolicy mFocusReusePolicy = new FocusReusePolicy(Clock.SYSTEM);
+
+    /**
+     * Focus distance the capture in flight reuses instead of a fresh lock, or {@code null}.
+     */
+    private Float mReusedFocusDistance;
+
+    /**
+     * Auto exposure state of the latest preview frame, or {@code null} if not reported.
+     */
+    private Integer mPreviewAeState;
+
+    /**
+     * Recent device poses, looked up for the frames of a video.
+     */
+    private final PoseHistory mPoseHistory = new PoseHistory(POSE_HISTORY_SIZE);
+
+    /**
+     * Records the camera stream while video mode is on, {@code null} otherwise.
+     */
+    private PoseVideoRecorder mVideoRecorder;
+
+    /**
+     * A recorder whose session is closing. Requests in flight may still target its surface, so it
+     * is only stopped once the session has closed.
+     */
+    private PoseVideoRecorder mClosingRecorder;
+
+    /**
+     * Minimum time in milliseconds between automatic captures before thermal scaling.
+     */
+    private long mAutoCaptureMinInterval;
+
+    /**
+     * Reads the time base of the sensor timestamps, see {@link #mRealtimeTimestamps}.
+     */
+    private final Clock mSensorClock = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return elapsedRealtimeNanos() / 1000000;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+        }
+    };
+
     /**
      * An {@link AutoFitTextureView} for camera preview.
      */
@@ -210,7 +410,7 @@ public class Camera2BasicFragment extends Fragment
             // This method is called when the camera is opened.  We start camera preview here.
             mCameraOpenCloseLock.release();
             mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+            startPreviewIfReady();
         }
 
         @Override
@@ -248,6 +448,27 @@ public class Camera2BasicFragment extends Fragment
      */
     private ImageReader mImageReader;
 
+    /**
+     * Small JPEG output filled by the same still requests as {@link #mImageReader}, or
+     * {@code null} if thumbnails are not captured.
+     */
+    private ThumbnailOutput mThumbnailOutput;
+
+    /**
+     * Set once the device refused a session with the thumbnail output.
+     */
+    private boolean mThumbnailsUnsupported;
+
+    /**
+     * Low-resolution YUV stream that is attached to the preview for on-device frame analysis.
+     */
+    private AnalysisStage mAnalysisStage;
+
+    /**
+     * Scores the sharpness of every analysis frame.
+     */
+    private final SharpnessScorer mSharpnessScorer = new SharpnessScorer();
+
     /**
      * This is the output file for our picture.
      */
@@ -256,7 +477,36 @@ public class Camera2BasicFragment extends Fragment
     private File coords;
 
     private int counter = 0;
-    FileWriter coordsWriter;
+
+    /**
+     * Crash-safe log of the pose records, appended to across pauses.
+     */
+    CaptureJournal coordsJournal;
+
+    /**
+     * Records are synced to disk in groups of this many...
+     */
+    private static final int JOURNAL_COMMIT_RECORDS = 8;
+
+    /**
+     * ... or at most this many milliseconds after they were written.
+     */
+    private static final long JOURNAL_COMMIT_MILLIS = 500;
+
+    /**
+     * Reconstruction updates held until the overlay applies them, in bytes.
+     */
+    private static final int POINT_CLOUD_PENDING_BYTES = 1024 * 1024;
+
+    /**
+     * The merged frame index written by the coordinator of a multi-device session.
+     */
+    private static final String SESSION_INDEX_NAME = "session_index.txt";
+
+    /**
+     * Number of recent frames a frame's sharpness is compared with before upload.
+     */
+    private static final int DROP_WINDOW = 20;
 
     /**
      * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
@@ -267,20 +517,179 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mFile = new File(getActivity().getExternalFilesDir(null), "pic" + counter++ + ".jpg");
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+            saveImage(reader.acquireNextImage(), mSensorClock.elapsedRealtimeNanos());
+        }
 
-            try {
-                coordsWriter.write(String.format("%.2f", Math.toDegrees(vOrientation[0])) + " ");
-                coordsWriter.write(String.format("%.2f", Math.toDegrees(vOrientation[1])) + " ");
-                coordsWriter.write(String.format("%.2f", Math.toDegrees(vOrientation[2])) + "\n");
-                Log.i(TAG, "Saved rotation");
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                Log.e(TAG, "error saving rotation: " + e);
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e(TAG, "error saving rotation: " + e);
+    };
+
+    /**
+     * Whether captures are taken from {@link #mZslRingBuffer}.
+     */
+    private boolean mZslEnabled;
+
+    /**
+     * Recent full-resolution frames in zero-shutter-lag mode, {@code null} otherwise.
+     */
+    private ZslRingBuffer mZslRingBuffer;
+
+    /**
+     * Whether sensor timestamps share the time base of
+     * {@link SystemClock#elapsedRealtimeNanos()}.
+     */
+    private boolean mRealtimeTimestamps;
+
+    /**
+     * Whether focus and exposure are converged once per session and then held for every capture.
+     */
+    private boolean mSweepLockEnabled;
+
+    /**
+     * Set while the session start focus and exposure sequence of the sweep mode runs.
+     */
+    private boolean mSweepConverging;
+
+    /**
+     * Set once focus and exposure are held for the rest of the session.
+     */
+    private boolean mSweepLocked;
+
+    /**
+     * Focus distance in diopters held in sweep mode, or {@code null} if the lens didn't report one.
+     */
+    private Float mSweepFocusDistance;
+
+    /**
+     * Sends saved frames to the reconstruction server, or {@code null} if no endpoint is set.
+     */
+    private volatile UploadPipeline mUploadPipeline;
+
+    /**
+     * Frames waiting for upload, also drained by {@link UploadJobService} between captures.
+     */
+    private UploadQueue mUploadQueue;
+
+    /**
+     * Whether the capture in progress was started by {@link #mKeyframeTrigger}.
+     */
+    private volatile boolean mKeyframeCapture;
+
+    /**
+     * Indices of saved keyframes not yet queued for upload.
+     */
+    private final Set<Integer> mKeyframes = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /**
+     * Streams the live pose to a desktop, or {@code null} if no receiver is set.
+     */
+    private volatile PoseTelemetryPublisher mTelemetry;
+
+    /**
+     * Serves the session directory to workstations, or {@code null} if disabled.
+     */
+    private SessionServer mSessionServer;
+
+    /**
+     * Draws the reconstruction the server streams back over the preview.
+     */
+    private PointCloudOverlayView mPointCloudView;
+
+    /**
+     * Decodes the reconstruction, kept across pauses, or {@code null} until frames are first sent
+     * over a {@link MuxTransport}.
+     */
+    private PointCloudDecoder mPointCloudDecoder;
+
+    /**
+     * Coordinates the multi-device session, or {@code null} if this device doesn't.
+     */
+    private volatile ClockSyncServer mSyncServer;
+
+    /**
+     * Membership in a multi-device session, or {@code null} if this device doesn't take part.
+     */
+    private volatile ClockSyncClient mSyncClient;
+
+    /**
+     * The last {@link #DROP_WINDOW} saved frames, used on the background thread only.
+     */
+    private final ArrayDeque<FrameRecord> mRecentRecords = new ArrayDeque<>();
+
+    /**
+     * See {@link CaptureSettings#getUploadDropFraction()}.
+     */
+    private volatile float mUploadDropFraction;
+
+    private final ClockSyncServer.Listener mSyncServerListener = new ClockSyncServer.Listener() {
+        @Override
+        public void onJoined(int device, String name) {
+            showToast("Joined the session: " + name);
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            if (null != cause) {
+                Log.e(TAG, "Session coordinator stopped", cause);
+            }
+        }
+    };
+
+    private final ClockSyncClient.Listener mSyncClientListener = new ClockSyncClient.Listener() {
+        @Override
+        public void onJoined(int device) {
+            showToast("Joined the session as device " + device);
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            if (null != cause) {
+                Log.e(TAG, "Left the session", cause);
+            }
+        }
+    };
+
+    /**
+     * Called by {@link ImageSaver} on the background thread once a frame is on disk.
+     */
+    private final OnImageSavedListener mOnImageSavedListener = new OnImageSavedListener() {
+
+        @Override
+        public void onImageSaved(File file, FrameRecord record, long bytes, long writeTime) {
+            mLatencyTracker.mark(CaptureLatencyTracker.STAGE_SAVED);
+            boolean keyframe = mKeyframes.remove(record.index);
+            UploadPipeline uploadPipeline = mUploadPipeline;
+            if (null != uploadPipeline && isDroppable(record) && !keyframe) {
+                Log.i(TAG, "Not uploading frame " + record.index + ", sharpness "
+                        + record.sharpness);
+            } else if (null != uploadPipeline) {
+                try {
+                    uploadPipeline.submit(new UploadItem(record.index, file, record.toLine()),
+                            keyframe ? UploadQueue.PRIORITY_KEYFRAME : UploadQueue.PRIORITY_FRAME,
+                            record.sharpness);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot queue frame " + record.index + " for upload", e);
+                }
+            }
+            mQualityPolicy.onFrameWritten(bytes, writeTime);
+            if (mQualityPolicy.evaluate()) {
+                Log.i(TAG, "Throughput policy asks for " + mQualityPolicy.getPixelLimit()
+                        + " pixels at quality " + mQualityPolicy.getQuality());
+                mReconfigurePending = true;
+            }
+        }
+
+        @Override
+        public void onImageReleased(long bytes) {
+            mMemoryBudget.release(bytes);
+            if (mMemoryBudget.consumeUpsizeRequest()) {
+                requestUpsize();
+            }
+            if (mReconfigurePending && mMemoryBudget.getInFlight() == 0) {
+                mBackgroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconfigureStillOutput();
+                    }
+                });
             }
         }
 
@@ -313,6 +722,11 @@ public class Camera2BasicFragment extends Fragment
      */
     private boolean mFlashSupported;
 
+    /**
+     * See {@link CameraConfigCache.Config#manualFocus}.
+     */
+    private boolean mManualFocus;
+
     /**
      * Orientation of the camera sensor
      */
@@ -325,23 +739,47 @@ public class Camera2BasicFragment extends Fragment
             = new CameraCaptureSession.CaptureCallback() {
 
         private void process(CaptureResult result) {
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if (exposureTime != null) {
+                mExposureTime = exposureTime;
+            }
             switch (mState) {
                 case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
+                    // Watch whether the lens stays focused, so the next capture may skip the lock.
+                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                    if (null != aeState) {
+                        mPreviewAeState = aeState;
+                    }
+                    mFocusReusePolicy.onPreviewResult(result.get(CaptureResult.CONTROL_AF_STATE),
+                            aeState);
+                    break;
+                }
+                case STATE_WAITING_STEADY: {
+                    // Defer the capture while the device rotates too fast for a sharp picture.
+                    long waited = SystemClock.elapsedRealtime() - mSteadyWaitStart;
+                    if (estimateMotionBlur() <= mMaxMotionBlur || waited >= mMaxCaptureDelay) {
+                        mLatencyTracker.mark(CaptureLatencyTracker.STAGE_STEADY);
+                        lockFocus();
+                    }
                     break;
                 }
                 case STATE_WAITING_LOCK: {
                     Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
                     if (afState == null) {
-                        captureStillPicture();
+                        onConverged(result);
                     } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
                             CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
+                        mLatencyTracker.mark(CaptureLatencyTracker.STAGE_LOCK);
+                        if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState) {
+                            mFocusReusePolicy.onFocusLocked(vOrientation,
+                                    result.get(CaptureResult.LENS_FOCUS_DISTANCE));
+                        }
                         // CONTROL_AE_STATE can be null on some devices
                         Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
                         if (aeState == null ||
                                 aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
                             mState = STATE_PICTURE_TAKEN;
-                            captureStillPicture();
+                            onConverged(result);
                         } else {
                             runPrecaptureSequence();
                         }
@@ -354,6 +792,7 @@ public class Camera2BasicFragment extends Fragment
                     if (aeState == null ||
                             aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
                             aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
+                        mLatencyTracker.mark(CaptureLatencyTracker.STAGE_PRECAPTURE);
                         mState = STATE_WAITING_NON_PRECAPTURE;
                     }
                     break;
@@ -363,7 +802,7 @@ public class Camera2BasicFragment extends Fragment
                     Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
                     if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
                         mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
+                        onConverged(result);
                     }
                     break;
                 }
@@ -381,6 +820,16 @@ public class Camera2BasicFragment extends Fragment
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
+            if (request == mPreviewRequest) {
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (null != timestamp) {
+                    Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+                    Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                    mThermalGovernor.onFrame(timestamp,
+                            null == frameDuration ? 0 : frameDuration,
+                            null == exposureTime ? 0 : exposureTime);
+                }
+            }
             process(result);
         }
 
@@ -466,7 +915,17 @@ public class Camera2BasicFragment extends Fragment
     public void onViewCreated(final View view, Bundle savedInstanceState) {
         view.findViewById(R.id.picture).setOnClickListener(this);
         view.findViewById(R.id.info).setOnClickListener(this);
+        view.findViewById(R.id.info).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                dumpLatency();
+                return true;
+            }
+        });
+        view.findViewById(R.id.auto).setOnClickListener(this);
+        view.findViewById(R.id.video).setOnClickListener(this);
         mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
+        mPointCloudView = (PointCloudOverlayView) view.findViewById(R.id.point_cloud);
         coordsView = (TextView) view.findViewById(R.id.coordText);
     }
 
@@ -474,47 +933,218 @@ public class Camera2BasicFragment extends Fragment
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
-        coords = new File(getActivity().getExternalFilesDir(null), "coords.txt");
+        coords = new File(getActivity().getExternalFilesDir(null), "coords.journal");
+        mSettings = new CaptureSettings(getActivity());
+        mConfigCache = new CameraConfigCache(getActivity());
+        mKeyframeTrigger = new KeyframeTrigger(new KeyframeTrigger.Callback() {
+            @Override
+            public boolean onKeyframe() {
+                mKeyframeCapture = true;
+                return requestCapture();
+            }
+        });
+        mThermalGovernor = new ThermalGovernor(new StickyBatterySource(getActivity()),
+                Clock.SYSTEM);
+        mThermalGovernor.setListener(new ThermalGovernor.Listener() {
+            @Override
+            public void onTierChanged(int oldTier, int newTier, String reason) {
+                Log.i(TAG, "Thermal tier " + ThermalGovernor.getTierName(oldTier) + " -> "
+                        + ThermalGovernor.getTierName(newTier) + ": " + reason);
+                // Tiers usually change on the camera thread, but the sensor rate is set on the
+                // UI thread.
+                Activity activity = getActivity();
+                if (null != activity) {
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyThermalTier();
+                        }
+                    });
+                }
+            }
+        });
     }
 
     @Override
     public void onResume() {
         super.onResume();
         startBackgroundThread();
+        mZslEnabled = mSettings.isZslEnabled();
+        mSweepLockEnabled = mSettings.isSweepLockEnabled();
+        int memoryBudget = mSettings.getMemoryBudget();
+        if (memoryBudget <= 0) {
+            ActivityManager activityManager =
+                    (ActivityManager) getActivity().getSystemService(Context.ACTIVITY_SERVICE);
+            memoryBudget = activityManager.getMemoryClass() / 4;
+        }
+        mMemoryBudget.setLimit(memoryBudget * 1024L * 1024L);
+        // The budget may have changed, start again from the largest output.
+        mMemoryBudget.clearRequests();
+        mStillPixelLimit = Long.MAX_VALUE;
+        mQualityPolicy.setTarget(mSettings.getTargetFps(), mSettings.getMinPixelsPerDegree());
+
+        mResumeTime = SystemClock.elapsedRealtime();
+
+        // The camera opens while we wait for the SurfaceTexture.
+        openCamera();
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
-        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until the surface is ready in
-        // the SurfaceTextureListener).
+        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can set
+        // up the outputs from here (otherwise, we wait until the surface is ready in the
+        // SurfaceTextureListener, which also reports the first preview frame).
+        mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
         if (mTextureView.isAvailable()) {
-            openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-        } else {
-            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+            onSurfaceReady(mTextureView.getWidth(), mTextureView.getHeight());
         }
         reset();
 
+        mKeyframeTrigger.setThreshold(mSettings.getAutoCaptureAngle());
+        mAutoCaptureMinInterval = mSettings.getAutoCaptureMinInterval();
+        mPoseHistory.clear();
+        String telemetryEndpoint = mSettings.getTelemetryEndpoint();
+        if (!telemetryEndpoint.isEmpty()) {
+            try {
+                URI uri = new URI(telemetryEndpoint);
+                if (!"udp".equals(uri.getScheme()) || null == uri.getHost() || uri.getPort() < 0) {
+                    throw new URISyntaxException(telemetryEndpoint, "Expected udp://host:port");
+                }
+                mTelemetry = new PoseTelemetryPublisher(uri.getHost(), uri.getPort());
+            } catch (URISyntaxException e) {
+                Log.e(TAG, "Invalid telemetry endpoint " + telemetryEndpoint, e);
+            }
+        }
+        String syncEndpoint = mSettings.getSyncEndpoint();
+        if (mSettings.isSyncCoordinator()) {
+            try {
+                mSyncServer = new ClockSyncServer(mSettings.getSyncPort(), Clock.SYSTEM,
+                        getDeviceName(), new File(getActivity().getExternalFilesDir(null),
+                        SESSION_INDEX_NAME), mSyncServerListener);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot coordinate a session", e);
+            }
+        } else if (!syncEndpoint.isEmpty()) {
+            try {
+                URI uri = new URI(syncEndpoint);
+                if (!"udp".equals(uri.getScheme()) || null == uri.getHost() || uri.getPort() < 0) {
+                    throw new URISyntaxException(syncEndpoint, "Expected udp://host:port");
+                }
+                mSyncClient = new ClockSyncClient(uri.getHost(), uri.getPort(), getDeviceName(),
+                        Clock.SYSTEM, mSyncClientListener);
+            } catch (URISyntaxException e) {
+                Log.e(TAG, "Invalid session coordinator " + syncEndpoint, e);
+            }
+        }
+        gyroscopeOrientation.setOrientationListener(new OrientationListener() {
+            @Override
+            public void onOrientationChanged(float[] orientation, long timestamp) {
+                mPoseHistory.onOrientationChanged(orientation, timestamp);
+                mKeyframeTrigger.onOrientationChanged(orientation, timestamp);
+                PoseTelemetryPublisher telemetry = mTelemetry;
+                if (null != telemetry) {
+                    telemetry.onOrientationChanged(orientation, timestamp);
+                }
+                mPointCloudView.onOrientationChanged(orientation, timestamp);
+            }
+        });
+        mMaxMotionBlur = mSettings.getMaxMotionBlur();
+        mUploadDropFraction = mSettings.getUploadDropFraction();
+        mMaxCaptureDelay = mSettings.getMaxCaptureDelay();
+        mFocusReusePolicy.setThreshold(mSettings.getFocusReuseAngle());
+        String uploadEndpoint = mSettings.getUploadEndpoint();
+        if (!uploadEndpoint.isEmpty()) {
+            try {
+                mUploadQueue = UploadQueue.get(getActivity());
+                mUploadQueue.setMaxInFlight(mSettings.getUploadConcurrency());
+                // The capture sends the frames itself, the job resumes when it's over.
+                UploadJobService.cancel(getActivity());
+                Transport transport = Transports.create(getActivity(), uploadEndpoint,
+                        mSettings.isUploadChunked());
+                if (transport instanceof MuxTransport && mSettings.isPointCloudOverlayEnabled()) {
+                    if (null == mPointCloudDecoder) {
+                        mPointCloudDecoder = new PointCloudDecoder(
+                                mSettings.getPointCloudCapacity(), POINT_CLOUD_PENDING_BYTES);
+                    }
+                    ((MuxTransport) transport).setPointCloudDecoder(mPointCloudDecoder);
+                    mPointCloudView.setDecoder(mPointCloudDecoder);
+                }
+                mUploadPipeline = new UploadPipeline(transport, mUploadQueue,
+                        new FrameDownscaler(getActivity().getCacheDir(), mMemoryBudget),
+                        mSettings.getUploadConcurrency());
+                mUploadPipeline.setCaptureRate(mSettings.getTargetFps());
+                mUploadPipeline.start();
+            } catch (URISyntaxException | MalformedURLException | IllegalArgumentException e) {
+                Log.e(TAG, "Invalid upload endpoint " + uploadEndpoint, e);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot open the upload queue", e);
+            }
+        }
+        if (mSettings.isSessionServerEnabled()) {
+            try {
+                mSessionServer = new SessionServer(getActivity().getExternalFilesDir(null),
+                        mSettings.getSessionServerPort(), mSettings.getSessionServerWorkers());
+                Log.i(TAG, "Serving the session on port " + mSessionServer.getPort());
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start the session server", e);
+            }
+        }
+        mThermalGovernor.evaluate();
+        applyThermalTier();
         gyroscopeOrientation.onResume();
 
         handler.post(orientationThread);
         try {
-            coordsWriter = new FileWriter(coords);
+            // Continue the session: new frames are numbered after the last recorded one.
+            coordsJournal = CaptureJournal.open(coords, JOURNAL_COMMIT_RECORDS,
+                    JOURNAL_COMMIT_MILLIS);
+            for (String line : coordsJournal.getRecovered()) {
+                counter = Math.max(counter, FrameRecord.parse(line).index + 1);
+            }
         } catch (IOException e) {
             e.printStackTrace();
-            Log.i(TAG, "Error creating coords file " + e);
+            Log.i(TAG, "Error opening coords journal " + e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Unexpected record in coords journal " + e);
         }
     }
 
     @Override
     public void onPause() {
         closeCamera();
+        // Recording stops with the camera.
+        showRecordingState();
         stopBackgroundThread();
+        if (null != mUploadPipeline) {
+            // Frames being sent complete; the job sends the rest in the background.
+            mUploadPipeline.shutdown();
+            mUploadPipeline = null;
+            if (mUploadQueue.size() > 0) {
+                UploadJobService.schedule(getActivity(), 0);
+            }
+        }
+        if (null != mTelemetry) {
+            mTelemetry.close();
+            mTelemetry = null;
+        }
+        mPointCloudView.setDecoder(null);
+        if (null != mSyncServer) {
+            // Writes the session index a last time.
+            mSyncServer.close();
+            mSyncServer = null;
+        }
+        if (null != mSyncClient) {
+            mSyncClient.close();
+            mSyncClient = null;
+        }
+        if (null != mSessionServer) {
+            mSessionServer.close();
+            mSessionServer = null;
+        }
         super.onPause();
         gyroscopeOrientation.onPause();
 
         handler.removeCallbacks(orientationThread);
         try {
-            coordsWriter.flush();
-            coordsWriter.close();
+            coordsJournal.close();
         } catch (IOException e) {
             e.printStackTrace();
         } catch (NullPointerException e) {
@@ -545,150 +1175,413 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Sets up member variables related to camera.
+     * Sets up member variables related to camera. The outputs chosen for a display configuration
+     * are cached, so only the first launch pays for querying the camera characteristics.
      *
      * @param width  The width of available size for camera preview
      * @param height The height of available size for camera preview
      */
     private void setUpCameraOutputs(int width, int height) {
         Activity activity = getActivity();
+        Display display = activity.getWindowManager().getDefaultDisplay();
+        int displayRotation = display.getRotation();
+        Point displaySize = new Point();
+        display.getSize(displaySize);
+        String key = CameraConfigCache.key(displayRotation,
+                new Size(displaySize.x, displaySize.y), new Size(width, height));
+        CameraConfigCache.Config config = mConfigCache.get(key);
+        if (null == config || !config.cameraId.equals(mCameraId)) {
+            config = queryCameraConfig(width, height, displayRotation, displaySize);
+            if (null == config) {
+                return;
+            }
+            mConfigCache.put(key, config);
+        }
+        applyCameraConfig(config);
+    }
+
+    /**
+     * Queries the characteristics of {@link #mCameraId} and chooses its outputs.
+     *
+     * @param width           The width of available size for camera preview
+     * @param height          The height of available size for camera preview
+     * @param displayRotation The rotation of the display
+     * @param displaySize     The size of the display
+     * @return The chosen outputs, or {@code null} if the camera can't be used
+     */
+    private CameraConfigCache.Config queryCameraConfig(int width, int height, int displayRotation,
+                                                       Point displaySize) {
+        Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                CameraCharacteristics characteristics
-                        = manager.getCameraCharacteristics(cameraId);
-
-                // We don't use a front facing camera in this sample.
-                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
-                    continue;
-                }
+            CameraCharacteristics characteristics
+                    = manager.getCameraCharacteristics(mCameraId);
+            StreamConfigurationMap map = characteristics.get(
+                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map == null) {
+                return null;
+            }
+            CameraConfigCache.Config config = new CameraConfigCache.Config();
+            config.cameraId = mCameraId;
+
+            // JPEG sizes, largest first. For still image captures, we use the largest one.
+            Size[] jpegSizes = map.getOutputSizes(ImageFormat.JPEG);
+            Arrays.sort(jpegSizes, Collections.reverseOrder(new CompareSizesByArea()));
+            config.jpegSizes = jpegSizes;
+            Size largest = jpegSizes[0];
+
+            Integer timestampSource = characteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            config.realtimeTimestamps = timestampSource != null && timestampSource ==
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+
+            // Optics of the still output, used to predict motion blur.
+            float[] focalLengths = characteristics.get(
+                    CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+            SizeF sensorSize = characteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+            if (focalLengths != null && focalLengths.length > 0 && sensorSize != null) {
+                config.focalLength = focalLengths[0];
+                config.sensorWidth = sensorSize.getWidth();
+            }
 
-                StreamConfigurationMap map = characteristics.get(
-                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) {
-                    continue;
+            // Holding the lens at a focus distance needs manual sensor control and a lens that
+            // can focus at all.
+            int[] capabilities = characteristics.get(
+                    CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            Float minimumFocusDistance = characteristics.get(
+                    CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+            if (capabilities != null && minimumFocusDistance != null
+                    && minimumFocusDistance > 0) {
+                for (int capability : capabilities) {
+                    if (CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR
+                            == capability) {
+                        config.manualFocus = true;
+                    }
                 }
+            }
 
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
-                mImageReader.setOnImageAvailableListener(
-                        mOnImageAvailableListener, mBackgroundHandler);
-
-                // Find out if we need to swap dimension to get the preview size relative to sensor
-                // coordinate.
-                int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                //noinspection ConstantConditions
-                mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                boolean swappedDimensions = false;
-                switch (displayRotation) {
-                    case Surface.ROTATION_0:
-                    case Surface.ROTATION_180:
-                        if (mSensorOrientation == 90 || mSensorOrientation == 270) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    case Surface.ROTATION_90:
-                    case Surface.ROTATION_270:
-                        if (mSensorOrientation == 0 || mSensorOrientation == 180) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    default:
-                        Log.e(TAG, "Display rotation is invalid: " + displayRotation);
-                }
+            // A small YUV stream alongside the preview for analysis of every frame.
+            config.analysisSize = AnalysisStage.chooseSize(
+                    map.getOutputSizes(ImageFormat.YUV_420_888), largest);
+
+            // Find out if we need to swap dimension to get the preview size relative to sensor
+            // coordinate.
+            //noinspection ConstantConditions
+            config.sensorOrientation = characteristics.get(
+                    CameraCharacteristics.SENSOR_ORIENTATION);
+            boolean swappedDimensions = false;
+            switch (displayRotation) {
+                case Surface.ROTATION_0:
+                case Surface.ROTATION_180:
+                    if (config.sensorOrientation == 90 || config.sensorOrientation == 270) {
+                        swappedDimensions = true;
+                    }
+                    break;
+                case Surface.ROTATION_90:
+                case Surface.ROTATION_270:
+                    if (config.sensorOrientation == 0 || config.sensorOrientation == 180) {
+                        swappedDimensions = true;
+                    }
+                    break;
+                default:
+                    Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+            }
 
-                Point displaySize = new Point();
-                activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
-                int rotatedPreviewWidth = width;
-                int rotatedPreviewHeight = height;
-                int maxPreviewWidth = displaySize.x;
-                int maxPreviewHeight = displaySize.y;
-
-                if (swappedDimensions) {
-                    rotatedPreviewWidth = height;
-                    rotatedPreviewHeight = width;
-                    maxPreviewWidth = displaySize.y;
-                    maxPreviewHeight = displaySize.x;
-                }
+            int rotatedPreviewWidth = width;
+            int rotatedPreviewHeight = height;
+            int maxPreviewWidth = displaySize.x;
+            int maxPreviewHeight = displaySize.y;
 
-                if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
-                    maxPreviewWidth = MAX_PREVIEW_WIDTH;
-                }
+            if (swappedDimensions) {
+                rotatedPreviewWidth = height;
+                rotatedPreviewHeight = width;
+                maxPreviewWidth = displaySize.y;
+                maxPreviewHeight = displaySize.x;
+            }
 
-                if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
-                    maxPreviewHeight = MAX_PREVIEW_HEIGHT;
-                }
+            if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
+                maxPreviewWidth = MAX_PREVIEW_WIDTH;
+            }
 
-                // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-                // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                // garbage capture data.
-                mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                        maxPreviewHeight, largest);
-
-                // We fit the aspect ratio of TextureView to the size of preview we picked.
-                int orientation = getResources().getConfiguration().orientation;
-                if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                } else {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getHeight(), mPreviewSize.getWidth());
-                }
+            if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
+                maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+            }
+
+            // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+            // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+            // garbage capture data.
+            config.previewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
+                    rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
+                    maxPreviewHeight, largest);
+
+            // Check if the flash is supported.
+            Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            config.flashSupported = available == null ? false : available;
+            return config;
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        } catch (NullPointerException e) {
+            // Currently an NPE is thrown when the Camera2API is used but not supported on the
+            // device this code runs.
+            ErrorDialog.newInstance(getString(R.string.camera_error))
+                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the {@link ImageReader}s and sets up the preview for the chosen outputs.
+     */
+    private void applyCameraConfig(CameraConfigCache.Config config) {
+        mCameraConfig = config;
+        mSensorOrientation = config.sensorOrientation;
+        mFlashSupported = config.flashSupported;
+        mManualFocus = config.manualFocus;
+        mRealtimeTimestamps = config.realtimeTimestamps;
+
+        // The throughput policy picks among the sizes with the aspect ratio of the largest one.
+        Size largest = config.jpegSizes[0];
+        List<Size> candidates = new ArrayList<>();
+        for (Size option : config.jpegSizes) {
+            if ((long) option.getHeight() * largest.getWidth() ==
+                    (long) option.getWidth() * largest.getHeight()) {
+                candidates.add(option);
+            }
+        }
+        int[] widths = new int[candidates.size()];
+        int[] heights = new int[candidates.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = candidates.get(i).getWidth();
+            heights[i] = candidates.get(i).getHeight();
+        }
+        float fieldOfView = 0;
+        if (config.focalLength > 0 && config.sensorWidth > 0) {
+            fieldOfView = (float) Math.toDegrees(
+                    2 * Math.atan(config.sensorWidth / (2 * config.focalLength)));
+        }
+        mQualityPolicy.setCandidates(widths, heights, fieldOfView);
+        mPointCloudView.setFieldOfView(fieldOfView);
+
+        createStillOutput(chooseStillSize(config));
+        if (!mZslEnabled && !mThumbnailsUnsupported) {
+            // Zero-shutter-lag frames come from the repeating request, which doesn't encode
+            // thumbnails.
+            mThumbnailOutput = new ThumbnailOutput(
+                    ThumbnailOutput.chooseSize(config.jpegSizes, largest), mBackgroundHandler);
+        }
+
+        mAnalysisStage = new AnalysisStage(config.analysisSize, mBackgroundHandler);
+        mAnalysisStage.setAnalyzer(mSharpnessScorer);
+        mAnalysisStage.setStride(mThermalGovernor.getAnalysisStride());
+
+        mPreviewSize = config.previewSize;
+
+        // We fit the aspect ratio of TextureView to the size of preview we picked.
+        int orientation = getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        }
 
-                // Check if the flash is supported.
-                Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-                mFlashSupported = available == null ? false : available;
+        synchronized (this) {
+            mOutputsReady = true;
+        }
+    }
+
+    /**
+     * Chooses the largest JPEG size with the aspect ratio of the largest one that fits both the
+     * memory budget and the throughput policy, or the smallest such size if none does. In
+     * zero-shutter-lag mode a full ring must also fit in half the memory budget.
+     */
+    private Size chooseStillSize(CameraConfigCache.Config config) {
+        long pixelLimit = Math.min(mStillPixelLimit, mQualityPolicy.getPixelLimit());
+        if (mZslEnabled) {
+            // JPEG needs about two bits per pixel.
+            pixelLimit = Math.min(pixelLimit,
+                    mMemoryBudget.getLimit() / 2 / ZSL_MAX_IMAGES * 4);
+        }
+        Size largest = config.jpegSizes[0];
+        Size chosen = largest;
+        for (Size option : config.jpegSizes) {
+            if ((long) option.getHeight() * largest.getWidth() !=
+                    (long) option.getWidth() * largest.getHeight()) {
+                continue;
+            }
+            chosen = option;
+            if ((long) option.getWidth() * option.getHeight() <= pixelLimit) {
+                break;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Creates the {@link ImageReader} for still captures at {@code size}.
+     */
+    private void createStillOutput(Size size) {
+        mStillSize = size;
+        if (mZslEnabled) {
+            // Every preview frame is also encoded at the still size, and the most recent ones are
+            // kept until a capture picks one of them.
+            mZslRingBuffer = new ZslRingBuffer(ZSL_MAX_IMAGES - 2, mMemoryBudget, mSensorClock);
+            mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                    ImageFormat.JPEG, ZSL_MAX_IMAGES);
+            mImageReader.setOnImageAvailableListener(mZslRingBuffer, mBackgroundHandler);
+        } else {
+            mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                    ImageFormat.JPEG, /*maxImages*/2);
+            mImageReader.setOnImageAvailableListener(
+                    mOnImageAvailableListener, mBackgroundHandler);
+        }
+
+        if (mCameraConfig.focalLength > 0 && mCameraConfig.sensorWidth > 0) {
+            mBlurEstimator.setOptics(mCameraConfig.focalLength, mCameraConfig.sensorWidth,
+                    size.getWidth());
+        }
+
+        // Until real frames arrive, assume JPEG needs about two bits per pixel.
+        mMemoryBudget.setFrameEstimate((long) size.getWidth() * size.getHeight() / 4);
+    }
+
+    /**
+     * Recreates the still output at the size currently allowed, and the capture session with it.
+     * Only called when no frame is in flight, since closing an {@link ImageReader} invalidates the
+     * images acquired from it.
+     */
+    private void reconfigureStillOutput() {
+        if (null == mCameraDevice || null == mCameraConfig || STATE_PREVIEW != mState) {
+            return;
+        }
+        mReconfigurePending = false;
+        Size size = chooseStillSize(mCameraConfig);
+        if (size.equals(mStillSize)) {
+            return;
+        }
+        try {
+            mCameraOpenCloseLock.acquire();
+            if (null != mCaptureSession) {
+                mCaptureSession.close();
+                mCaptureSession = null;
+            }
+            if (null != mZslRingBuffer) {
+                mZslRingBuffer.clear();
+                mZslRingBuffer = null;
+            }
+            if (null != mImageReader) {
+                mImageReader.close();
+                mImageReader = null;
+            }
+            createStillOutput(size);
+            createCameraPreviewSession();
+            Log.i(TAG, "Still output is now " + size);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera.", e);
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
+
+    /**
+     * Returns the id of the first camera that isn't front facing, or {@code null}.
+     */
+    private static String selectCameraId(CameraManager manager) throws CameraAccessException {
+        for (String cameraId : manager.getCameraIdList()) {
+            CameraCharacteristics characteristics
+                    = manager.getCameraCharacteristics(cameraId);
+
+            // We don't use a front facing camera in this sample.
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
+                continue;
+            }
 
-                mCameraId = cameraId;
-                return;
+            if (characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)
+                    != null) {
+                return cameraId;
             }
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        } catch (NullPointerException e) {
-            // Currently an NPE is thrown when the Camera2API is used but not supported on the
-            // device this code runs.
-            ErrorDialog.newInstance(getString(R.string.camera_error))
-                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
         }
+        return null;
     }
 
     /**
-     * Opens the camera specified by {@link Camera2BasicFragment#mCameraId}.
+     * Opens the camera used on the previous launch, or the first back facing one. This doesn't
+     * wait for the preview surface; {@link #startPreviewIfReady()} joins the two.
      */
-    private void openCamera(int width, int height) {
+    private void openCamera() {
         if (ContextCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
                 != PackageManager.PERMISSION_GRANTED) {
             requestCameraPermission();
             return;
         }
-        setUpCameraOutputs(width, height);
-        configureTransform(width, height);
         Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         try {
+            mCameraId = mConfigCache.getCameraId();
+            if (null == mCameraId) {
+                mCameraId = selectCameraId(manager);
+            }
+            if (null == mCameraId) {
+                return;
+            }
             if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
                 throw new RuntimeException("Time out waiting to lock camera opening.");
             }
             manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+        } catch (NullPointerException e) {
+            // Currently an NPE is thrown when the Camera2API is used but not supported on the
+            // device this code runs.
+            ErrorDialog.newInstance(getString(R.string.camera_error))
+                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
         }
     }
 
+    /**
+     * Sets up the outputs once the preview surface is available and starts the preview if the
+     * camera is already open.
+     *
+     * @param width  The width of the preview surface
+     * @param height The height of the preview surface
+     */
+    private void onSurfaceReady(int width, int height) {
+        if (null == mCameraId) {
+            return;
+        }
+        setUpCameraOutputs(width, height);
+        configureTransform(width, height);
+        startPreviewIfReady();
+    }
+
+    /**
+     * Creates the preview session once both the camera device and the outputs are ready. The
+     * camera opens in parallel with the preview surface becoming available, and whichever
+     * finishes last starts the preview.
+     */
+    private synchronized void startPreviewIfReady() {
+        if (mPreviewStarted || null == mCameraDevice || !mOutputsReady) {
+            return;
+        }
+        mPreviewStarted = true;
+        createCameraPreviewSession();
+    }
+
     /**
      * Closes the current {@link CameraDevice}.
      */
     private void closeCamera() {
         try {
             mCameraOpenCloseLock.acquire();
+            synchronized (this) {
+                // No preview may start from the outputs closed below.
+                mOutputsReady = false;
+            }
             if (null != mCaptureSession) {
                 mCaptureSession.close();
                 mCaptureSession = null;
@@ -697,10 +1590,34 @@ public class Camera2BasicFragment extends Fragment
                 mCameraDevice.close();
                 mCameraDevice = null;
             }
+            if (null != mVideoRecorder) {
+                mVideoRecorder.stop();
+                mVideoRecorder = null;
+            }
+            if (null != mClosingRecorder) {
+                mClosingRecorder.stop();
+                mClosingRecorder = null;
+            }
+            if (null != mZslRingBuffer) {
+                mZslRingBuffer.clear();
+                mZslRingBuffer = null;
+            }
             if (null != mImageReader) {
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mThumbnailOutput) {
+                mThumbnailOutput.close();
+                mThumbnailOutput = null;
+            }
+            mFocusReusePolicy.invalidate();
+            if (null != mAnalysisStage) {
+                mAnalysisStage.close();
+                mAnalysisStage = null;
+            }
+            synchronized (this) {
+                mPreviewStarted = false;
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -746,12 +1663,41 @@ public class Camera2BasicFragment extends Fragment
             Surface surface = new Surface(texture);
 
             // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder
-                    = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewRequestBuilder = createPreviewRequestBuilder();
             mPreviewRequestBuilder.addTarget(surface);
+            List<Surface> outputs = new ArrayList<>();
+            outputs.add(surface);
+            final PoseVideoRecorder recorder = mVideoRecorder;
+            if (null != recorder) {
+                // While recording, every frame goes to the encoder. Stills and analysis pause,
+                // so that the session stays within the stream combinations every device supports.
+                mPreviewRequestBuilder.addTarget(recorder.getSurface());
+                outputs.add(recorder.getSurface());
+            } else {
+                // Every preview frame is also delivered to the analysis stage.
+                mPreviewRequestBuilder.addTarget(mAnalysisStage.getSurface());
+                if (null != mZslRingBuffer) {
+                    // ... and, in zero-shutter-lag mode, to the ring of full-resolution frames.
+                    mPreviewRequestBuilder.addTarget(mImageReader.getSurface());
+                    Activity activity = getActivity();
+                    if (null != activity) {
+                        int rotation =
+                                activity.getWindowManager().getDefaultDisplay().getRotation();
+                        mPreviewRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION,
+                                getOrientation(rotation));
+                    }
+                    mPreviewRequestBuilder.set(CaptureRequest.JPEG_QUALITY,
+                            mQualityPolicy.getQuality());
+                }
+                outputs.add(mImageReader.getSurface());
+                outputs.add(mAnalysisStage.getSurface());
+                if (null != mThumbnailOutput) {
+                    outputs.add(mThumbnailOutput.getSurface());
+                }
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -763,6 +1709,8 @@ public class Camera2BasicFragment extends Fragment
 
                             // When the session is ready, we start displaying the preview.
                             mCaptureSession = cameraCaptureSession;
+                            // The new session may run at another frame rate.
+                            mThermalGovernor.resetFrames();
                             try {
                                 // Auto focus should be continuous for camera preview.
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
@@ -774,6 +1722,13 @@ public class Camera2BasicFragment extends Fragment
                                 mPreviewRequest = mPreviewRequestBuilder.build();
                                 mCaptureSession.setRepeatingRequest(mPreviewRequest,
                                         mCaptureCallback, mBackgroundHandler);
+
+                                // In sweep mode, converge focus and exposure once right away.
+                                mSweepLocked = false;
+                                if (mSweepLockEnabled && null == mVideoRecorder) {
+                                    mSweepConverging = true;
+                                    lockFocus();
+                                }
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
                             }
@@ -782,8 +1737,25 @@ public class Camera2BasicFragment extends Fragment
                         @Override
                         public void onConfigureFailed(
                                 @NonNull CameraCaptureSession cameraCaptureSession) {
+                            if (null != mThumbnailOutput && null == mVideoRecorder
+                                    && null != mCameraDevice) {
+                                // Not every device can encode two JPEG streams at once.
+                                Log.w(TAG, "Session refused, retrying without thumbnails");
+                                mThumbnailsUnsupported = true;
+                                mThumbnailOutput.close();
+                                mThumbnailOutput = null;
+                                createCameraPreviewSession();
+                                return;
+                            }
                             showToast("Failed");
                         }
+
+                        @Override
+                        public void onClosed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            if (null != recorder) {
+                                finishRecording(recorder);
+                            }
+                        }
                     }, null
             );
         } catch (CameraAccessException e) {
@@ -791,6 +1763,24 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Creates the builder for the repeating request. The record template is used while recording
+     * video, and the zero-shutter-lag template when that mode is on and the device supports it.
+     */
+    private CaptureRequest.Builder createPreviewRequestBuilder() throws CameraAccessException {
+        if (null != mVideoRecorder) {
+            return mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        }
+        if (null != mZslRingBuffer) {
+            try {
+                return mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Zero shutter lag template is not supported, using preview");
+            }
+        }
+        return mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+    }
+
     /**
      * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
      * This method should be called after the camera preview size is determined in
@@ -825,16 +1815,325 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Initiate a still image capture.
+     * Initiate a still image capture. The focus is locked once the device is steady enough.
      */
     private void takePicture() {
-        lockFocus();
+        mLatencyTracker.onTap();
+        if (null != mZslRingBuffer) {
+            captureZslFrame();
+            return;
+        }
+        if (mSweepLocked) {
+            // Focus and exposure are already held, a single capture is all it takes.
+            mState = STATE_PICTURE_TAKEN;
+            captureStillPicture();
+            return;
+        }
+        mSteadyWaitStart = SystemClock.elapsedRealtime();
+        mState = STATE_WAITING_STEADY;
+    }
+
+    /**
+     * Commits the frame of the zero-shutter-lag ring that was exposed closest to now.
+     */
+    private void captureZslFrame() {
+        Image image = mZslRingBuffer.take(mSensorClock.elapsedRealtimeNanos());
+        if (null == image) {
+            Log.w(TAG, "No frame available for zero shutter lag capture");
+            return;
+        }
+        mCaptureBlur = estimateMotionBlur();
+        saveImage(image, mZslRingBuffer.getTakenArrivalTime());
+    }
+
+    /**
+     * Saves a captured JPEG together with the current pose.
+     *
+     * @param arrivalTime The time the image arrived from the camera, in the time base of its
+     *                    timestamp
+     */
+    private void saveImage(Image image, long arrivalTime) {
+        FrameRecord record = new FrameRecord(counter++, vOrientation, mCaptureBlur,
+                mSharpnessScorer.getScore(image.getTimestamp()));
+        if (mKeyframeCapture) {
+            mKeyframes.add(record.index);
+        }
+        reportToSession(record.index, image.getTimestamp());
+        mFile = new File(getActivity().getExternalFilesDir(null), record.getImageName());
+        mLatencyTracker.mark(CaptureLatencyTracker.STAGE_IMAGE_AVAILABLE);
+        int bytes = image.getPlanes()[0].getBuffer().remaining();
+        mMemoryBudget.acquire(bytes);
+        // From the start of the exposure to the encoded JPEG, whichever path captured it.
+        mQualityPolicy.onFrameEncoded((long) image.getWidth() * image.getHeight(), bytes,
+                arrivalTime - image.getTimestamp());
+        if (null != mThumbnailOutput && null == mZslRingBuffer) {
+            mThumbnailOutput.expect(image.getTimestamp(), new File(
+                    getActivity().getExternalFilesDir(null), record.getThumbnailName()));
+        }
+        mBackgroundHandler.post(new ImageSaver(image, mFile, record, mOnImageSavedListener));
+
+        try {
+            coordsJournal.append(record.toLine());
+            Log.i(TAG, "Saved rotation");
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "error saving rotation: " + e);
+        }
+    }
+
+    /**
+     * Whether a saved frame is among the least sharp of the recent frames and not worth
+     * uploading. Called on the background thread.
+     */
+    private boolean isDroppable(FrameRecord record) {
+        mRecentRecords.addLast(record);
+        if (mRecentRecords.size() > DROP_WINDOW) {
+            mRecentRecords.removeFirst();
+        }
+        if (mRecentRecords.size() < DROP_WINDOW / 2) {
+            return false;
+        }
+        return SharpnessScorer.selectDroppable(new ArrayList<>(mRecentRecords),
+                mUploadDropFraction).contains(record);
+    }
+
+    /**
+     * Places a frame on the timeline of the multi-device session, if there is one.
+     *
+     * @param timestamp The sensor timestamp of the frame
+     */
+    private void reportToSession(int index, long timestamp) {
+        ClockSyncServer server = mSyncServer;
+        ClockSyncClient client = mSyncClient;
+        if (null == server && null == client) {
+            return;
+        }
+        // Sessions run on the elapsedRealtimeNanos() clock; camera timestamps may not.
+        long time = mRealtimeTimestamps ? timestamp
+                : timestamp + SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+        if (null != server) {
+            server.reportFrame(index, time);
+        }
+        if (null != client) {
+            client.reportFrame(index, time);
+        }
+    }
+
+    /**
+     * Returns a name that tells this device apart in a multi-device session.
+     */
+    private String getDeviceName() {
+        return Build.MODEL + "-" + Settings.Secure.getString(getActivity().getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+    }
+
+    /**
+     * Starts or stops recording video with a pose track, recreating the capture session with or
+     * without the encoder surface. Called on the background thread.
+     */
+    private void setRecording(boolean record) {
+        if (record == (null != mVideoRecorder) || null != mClosingRecorder) {
+            return;
+        }
+        Activity activity = getActivity();
+        if (null == activity || null == mCameraDevice || null == mPreviewSize ||
+                STATE_PREVIEW != mState) {
+            return;
+        }
+        try {
+            mCameraOpenCloseLock.acquire();
+            if (!record && null != mCaptureSession) {
+                // Stopping the recorder releases the encoder surface, which requests in flight
+                // may still target. finishRecording() stops it once the session has closed.
+                mClosingRecorder = mVideoRecorder;
+                mVideoRecorder = null;
+                try {
+                    mCaptureSession.stopRepeating();
+                    mCaptureSession.abortCaptures();
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+                mCaptureSession.close();
+                mCaptureSession = null;
+                return;
+            }
+            if (null != mCaptureSession) {
+                mCaptureSession.close();
+                mCaptureSession = null;
+            }
+            if (record) {
+                String name = "video" + System.currentTimeMillis();
+                File directory = activity.getExternalFilesDir(null);
+                int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+                // Pose timestamps use the elapsedRealtimeNanos() time base; camera timestamps
+                // may not.
+                long poseTimeOffset = mRealtimeTimestamps ? 0
+                        : SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+                try {
+                    mVideoRecorder = new PoseVideoRecorder(new File(directory, name + ".mp4"),
+                            new File(directory, name + ".poses"), mPreviewSize,
+                            getOrientation(rotation), mPoseHistory, poseTimeOffset);
+                    mVideoRecorder.start();
+                    showToast("Recording " + name);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot start video", e);
+                    mVideoRecorder = null;
+                }
+            } else {
+                mVideoRecorder.stop();
+                mVideoRecorder = null;
+            }
+            createCameraPreviewSession();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera.", e);
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
+
+    /**
+     * Stops a recorder once the session that rendered into it has closed, and recreates the
+     * session without it. Called on the background thread.
+     */
+    private void finishRecording(PoseVideoRecorder recorder) {
+        try {
+            mCameraOpenCloseLock.acquire();
+            // closeCamera() may have stopped it already.
+            if (recorder != mClosingRecorder) {
+                return;
+            }
+            mClosingRecorder = null;
+            recorder.stop();
+            if (null != mCameraDevice && null == mCaptureSession) {
+                createCameraPreviewSession();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera.", e);
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
+
+    /**
+     * Makes the video toggle show whether a recording is running, which differs from what was
+     * asked for when starting one failed.
+     */
+    private void showRecordingState() {
+        final boolean recording = null != mVideoRecorder;
+        Activity activity = getActivity();
+        if (null == activity) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                View view = getView();
+                if (null != view) {
+                    ((ToggleButton) view.findViewById(R.id.video)).setChecked(recording);
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies the workload of the current thermal tier. Called on the UI thread.
+     */
+    private void applyThermalTier() {
+        mKeyframeTrigger.setMinInterval(
+                mAutoCaptureMinInterval * mThermalGovernor.getCaptureIntervalScale());
+        gyroscopeOrientation.setSensorDelay(mThermalGovernor.getSensorDelay());
+        AnalysisStage analysisStage = mAnalysisStage;
+        if (null != analysisStage) {
+            analysisStage.setStride(mThermalGovernor.getAnalysisStride());
+        }
+    }
+
+    /**
+     * Predicts the motion blur in pixels of a picture taken now.
+     */
+    private float estimateMotionBlur() {
+        return mBlurEstimator.estimate(gyroscopeOrientation.getAngularSpeed(), mExposureTime);
+    }
+
+    /**
+     * Initiates a still image capture unless the camera is not ready or a capture is already in
+     * progress.
+     *
+     * @return Whether a capture was started
+     */
+    private boolean requestCapture() {
+        if (null == mCaptureSession || STATE_PREVIEW != mState || null != mVideoRecorder) {
+            return false;
+        }
+        if (mReconfigurePending && mMemoryBudget.getInFlight() == 0) {
+            // The still output is about to be recreated.
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reconfigureStillOutput();
+                }
+            });
+            return false;
+        }
+        if (!mMemoryBudget.tryStartCapture()) {
+            Log.w(TAG, "Capture throttled, " + mMemoryBudget.getInFlight() + " bytes in flight");
+            if (mMemoryBudget.consumeDownsizeRequest()) {
+                requestDownsize();
+            }
+            return false;
+        }
+        takePicture();
+        return true;
+    }
+
+    /**
+     * Halves the number of pixels allowed for the still output. The output is recreated once
+     * every frame in flight has been released.
+     */
+    private void requestDownsize() {
+        mStillPixelLimit = (long) mStillSize.getWidth() * mStillSize.getHeight() / 2;
+        mReconfigurePending = true;
+        Log.w(TAG, "Memory budget exceeded, limiting still output to " + mStillPixelLimit
+                + " pixels");
+    }
+
+    /**
+     * Undoes one {@link #requestDownsize()} now that the memory budget has room again.
+     */
+    private void requestUpsize() {
+        Size largest = mCameraConfig.jpegSizes[0];
+        long pixelLimit = mStillPixelLimit * 2;
+        if (pixelLimit >= (long) largest.getWidth() * largest.getHeight()) {
+            pixelLimit = Long.MAX_VALUE;
+        }
+        mStillPixelLimit = pixelLimit;
+        mReconfigurePending = true;
+        Log.i(TAG, "Memory budget has room again, limiting still output to " + mStillPixelLimit
+                + " pixels");
     }
 
     /**
      * Lock the focus as the first step for a still image capture.
      */
     private void lockFocus() {
+        mReusedFocusDistance = mSweepConverging || !canSkipFocusSequence() ? null
+                : mFocusReusePolicy.getReusableFocus(vOrientation);
+        if (null != mReusedFocusDistance) {
+            // The device hasn't moved since the last lock and the lens is still focused. Only the
+            // auto focus trigger is skipped: exposure and flash are checked as after a lock.
+            mLatencyTracker.mark(CaptureLatencyTracker.STAGE_LOCK);
+            if (null == mPreviewAeState ||
+                    CaptureResult.CONTROL_AE_STATE_CONVERGED == mPreviewAeState) {
+                mState = STATE_PICTURE_TAKEN;
+                captureStillPicture();
+            } else {
+                // Keep the cancel left by the last unlock from restarting the focus search.
+                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                        CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+                runPrecaptureSequence();
+            }
+            return;
+        }
         try {
             // This is how to tell the camera to lock focus.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
@@ -848,6 +2147,14 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Whether a capture may skip the auto focus trigger and reuse the last focus distance, which
+     * needs a lens that can hold a distance.
+     */
+    private boolean canSkipFocusSequence() {
+        return mManualFocus;
+    }
+
     /**
      * Run the precapture sequence for capturing a still image. This method should be called when
      * we get a response in {@link #mCaptureCallback} from {@link #lockFocus()}.
@@ -858,6 +2165,7 @@ public class Camera2BasicFragment extends Fragment
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
             // Tell #mCaptureCallback to wait for the precapture sequence to be set.
+            mLatencyTracker.mark(CaptureLatencyTracker.STAGE_PRECAPTURE_TRIGGER);
             mState = STATE_WAITING_PRECAPTURE;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
@@ -866,6 +2174,57 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Called from {@link #mCaptureCallback} once focus and exposure are ready. Takes the picture,
+     * or holds focus and exposure for the rest of the session when converging for a sweep.
+     */
+    private void onConverged(CaptureResult result) {
+        if (mSweepConverging) {
+            holdSweepLock(result);
+        } else {
+            captureStillPicture();
+        }
+    }
+
+    /**
+     * Locks the converged exposure and fixes the lens at the converged focus distance in the
+     * repeating request, so later captures need no focus or exposure round trips.
+     */
+    private void holdSweepLock(CaptureResult result) {
+        mSweepConverging = false;
+        mSweepFocusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        try {
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                    CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                    CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+            setSweepLock(mPreviewRequestBuilder);
+            mPreviewRequest = mPreviewRequestBuilder.build();
+            mState = STATE_PREVIEW;
+            mSweepLocked = true;
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                    mBackgroundHandler);
+            showToast("Focus and exposure locked");
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies the held exposure and focus of the sweep mode to {@code requestBuilder}. Without
+     * manual focus control or a reported focus distance the lens stays in the
+     * {@link CaptureRequest#CONTROL_AF_TRIGGER} lock of the session start, which holds until it
+     * is cancelled.
+     */
+    private void setSweepLock(CaptureRequest.Builder requestBuilder) {
+        requestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+        if (mManualFocus && null != mSweepFocusDistance) {
+            requestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CaptureRequest.CONTROL_AF_MODE_OFF);
+            requestBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, mSweepFocusDistance);
+        }
+    }
+
     /**
      * Capture a still picture. This method should be called when we get a response in
      * {@link #mCaptureCallback} from both {@link #lockFocus()}.
@@ -880,15 +2239,32 @@ public class Camera2BasicFragment extends Fragment
             final CaptureRequest.Builder captureBuilder =
                     mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             captureBuilder.addTarget(mImageReader.getSurface());
+            if (null != mThumbnailOutput) {
+                // The thumbnail is encoded from the same exposure.
+                captureBuilder.addTarget(mThumbnailOutput.getSurface());
+            }
 
             // Use the same AE and AF modes as the preview.
             captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
                     CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
             setAutoFlash(captureBuilder);
+            if (mSweepLocked) {
+                setSweepLock(captureBuilder);
+            } else if (null != mReusedFocusDistance && mManualFocus) {
+                captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                        CaptureRequest.CONTROL_AF_MODE_OFF);
+                captureBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, mReusedFocusDistance);
+            }
 
             // Orientation
             int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
             captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+            captureBuilder.set(CaptureRequest.JPEG_QUALITY, mQualityPolicy.getQuality());
+
+            mLatencyTracker.mark(CaptureLatencyTracker.STAGE_STILL_REQUEST);
+
+            // Tag the frame with the blur expected for this exposure.
+            mCaptureBlur = estimateMotionBlur();
 
             CameraCaptureSession.CaptureCallback CaptureCallback
                     = new CameraCaptureSession.CaptureCallback() {
@@ -897,13 +2273,21 @@ public class Camera2BasicFragment extends Fragment
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
+                    mLatencyTracker.mark(CaptureLatencyTracker.STAGE_CAPTURE_COMPLETED);
                     showToast("Saved: " + mFile);
                     Log.d(TAG, mFile.toString());
-                    unlockFocus();
+                    if (mSweepLocked) {
+                        // The repeating request keeps running with the locks in place.
+                        mState = STATE_PREVIEW;
+                    } else {
+                        unlockFocus();
+                    }
                 }
             };
 
-            mCaptureSession.stopRepeating();
+            if (!mSweepLocked) {
+                mCaptureSession.stopRepeating();
+            }
             mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -949,7 +2333,25 @@ public class Camera2BasicFragment extends Fragment
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.picture: {
-                takePicture();
+                mKeyframeCapture = false;
+                if (requestCapture()) {
+                    mKeyframeTrigger.markCaptured();
+                }
+                break;
+            }
+            case R.id.video: {
+                final boolean record = ((ToggleButton) view).isChecked();
+                mBackgroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setRecording(record);
+                        showRecordingState();
+                    }
+                });
+                break;
+            }
+            case R.id.auto: {
+                mKeyframeTrigger.setEnabled(((ToggleButton) view).isChecked());
                 break;
             }
             case R.id.info: {
@@ -965,6 +2367,35 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Writes the capture latency histograms to logcat and to latency.txt.
+     */
+    private void dumpLatency() {
+        String report = mLatencyTracker.dump();
+        UploadPipeline uploadPipeline = mUploadPipeline;
+        if (null != uploadPipeline) {
+            report += "\nUpload: " + uploadPipeline.getMetrics() + "\n";
+        }
+        Log.i(TAG, "Capture latency:\n" + report);
+        File file = new File(getActivity().getExternalFilesDir(null), "latency.txt");
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(report);
+            showToast("Saved: " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (null != writer) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     private void setAutoFlash(CaptureRequest.Builder requestBuilder) {
         if (mFlashSupported) {
             requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
@@ -985,21 +2416,42 @@ public class Camera2BasicFragment extends Fragment
          * The file we save the image into.
          */
         private final File mFile;
+        /**
+         * The pose record of the image.
+         */
+        private final FrameRecord mRecord;
+        /**
+         * Notified once the image has been written.
+         */
+        private final OnImageSavedListener mListener;
 
-        public ImageSaver(Image image, File file) {
+        public ImageSaver(Image image, File file, FrameRecord record,
+                          OnImageSavedListener listener) {
             mImage = image;
             mFile = file;
+            mRecord = record;
+            mListener = listener;
         }
 
         @Override
         public void run() {
             ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
+            int size = buffer.remaining();
+            byte[] bytes = new byte[size];
             buffer.get(bytes);
             FileOutputStream output = null;
             try {
+                long start = System.nanoTime();
                 output = new FileOutputStream(mFile);
                 output.write(bytes);
+                // The write only counts once the bytes are on the storage.
+                output.getFD().sync();
+                output.close();
+                output = null;
+                if (null != mListener) {
+                    mListener.onImageSaved(mFile, mRecord, bytes.length,
+                            System.nanoTime() - start);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
@@ -1011,11 +2463,31 @@ public class Camera2BasicFragment extends Fragment
                         e.printStackTrace();
                     }
                 }
+                if (null != mListener) {
+                    mListener.onImageReleased(size);
+                }
             }
         }
 
     }
 
+    /**
+     * Notified when {@link ImageSaver} has written an image to disk.
+     */
+    interface OnImageSavedListener {
+
+        /**
+         * @param writeTime Time spent writing and syncing the file in nanoseconds
+         */
+        void onImageSaved(File file, FrameRecord record, long bytes, long writeTime);
+
+        /**
+         * Called after the {@link Image} has been closed, whether or not it was saved.
+         */
+        void onImageReleased(long bytes);
+
+    }
+
     /**
      * Compares two {@code Size}s based on their areas.
      */
@@ -0,0 +1,158 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Remembers the result of the camera and output size selection across launches, so that the
+ * camera can be opened without enumerating devices, querying characteristics and sorting sizes.
+ * <p>
+ * Entries are keyed by the build fingerprint, so a system update invalidates them, and by the
+ * display configuration they were chosen for.
+ */
+public class CameraConfigCache {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "CameraConfigCache";
+
+    private static final String PREFS_NAME = "camera_config";
+
+    private static final String CAMERA_ID_KEY = "camera_id";
+
+    /**
+     * The camera outputs chosen for one display configuration.
+     */
+    public static class Config {
+
+        public String cameraId;
+
+        public int sensorOrientation;
+
+        public boolean flashSupported;
+
+        /**
+         * Whether sensor timestamps use the {@code elapsedRealtimeNanos()} time base.
+         */
+        public boolean realtimeTimestamps;
+
+        /**
+         * Focal length in millimeters, or 0 if unknown.
+         */
+        public float focalLength;
+
+        /**
+         * Physical sensor width in millimeters, or 0 if unknown.
+         */
+        public float sensorWidth;
+
+        /**
+         * Whether the lens can be held at a given focus distance: the device has the manual
+         * sensor capability and a focusable lens.
+         */
+        public boolean manualFocus;
+
+        /**
+         * JPEG output sizes, largest first.
+         */
+        public Size[] jpegSizes;
+
+        public Size previewSize;
+
+        public Size analysisSize;
+
+        String serialize() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(cameraId).append(';')
+                    .append(sensorOrientation).append(';')
+                    .append(flashSupported).append(';')
+                    .append(realtimeTimestamps).append(';')
+                    .append(focalLength).append(';')
+                    .append(sensorWidth).append(';');
+            for (int i = 0; i < jpegSizes.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(jpegSizes[i]);
+            }
+            sb.append(';').append(previewSize).append(';').append(analysisSize)
+                    .append(';').append(manualFocus);
+            return sb.toString();
+        }
+
+        static Config parse(String value) {
+            String[] fields = value.split(";");
+            Config config = new Config();
+            config.cameraId = fields[0];
+            config.sensorOrientation = Integer.parseInt(fields[1]);
+            config.flashSupported = Boolean.parseBoolean(fields[2]);
+            config.realtimeTimestamps = Boolean.parseBoolean(fields[3]);
+            config.focalLength = Float.parseFloat(fields[4]);
+            config.sensorWidth = Float.parseFloat(fields[5]);
+            String[] sizes = fields[6].split(",");
+            config.jpegSizes = new Size[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                config.jpegSizes[i] = Size.parseSize(sizes[i]);
+            }
+            config.previewSize = Size.parseSize(fields[7]);
+            config.analysisSize = Size.parseSize(fields[8]);
+            // Entries written before the field existed don't allow manual focus.
+            config.manualFocus = fields.length > 9 && Boolean.parseBoolean(fields[9]);
+            return config;
+        }
+
+    }
+
+    private final SharedPreferences mPrefs;
+
+    public CameraConfigCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Builds the key of a display configuration.
+     *
+     * @param displayRotation The rotation of the display
+     * @param displaySize     The size of the display in pixels
+     * @param viewSize        The size of the preview view in pixels
+     */
+    public static String key(int displayRotation, Size displaySize, Size viewSize) {
+        return Build.FINGERPRINT + '|' + displayRotation + '|' + displaySize + '|' + viewSize;
+    }
+
+    /**
+     * Returns the id of the camera used last time on this build, or {@code null}.
+     */
+    public String getCameraId() {
+        return mPrefs.getString(Build.FINGERPRINT + '|' + CAMERA_ID_KEY, null);
+    }
+
+    /**
+     * Returns the outputs cached for {@code key}, or {@code null}.
+     */
+    public Config get(String key) {
+        String value = mPrefs.getString(key, null);
+        if (null == value) {
+            return null;
+        }
+        try {
+            return Config.parse(value);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable entry " + key, e);
+            mPrefs.edit().remove(key).apply();
+            return null;
+        }
+    }
+
+    public void put(String key, Config config) {
+        mPrefs.edit()
+                .putString(key, config.serialize())
+                .putString(Build.FINGERPRINT + '|' + CAMERA_ID_KEY, config.cameraId)
+                .apply();
+    }
+
+}
@@ -0,0 +1,222 @@
+package lapidus.edu.rec3dclient.camera;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of text records that survives crashes.
+ * <p>
+ * Each record is stored as one line, followed by a tab and the CRC32 of the record. Records are
+ * buffered and made durable together (group commit): the file is synced once {@code
+ * commitRecords} records are pending, or {@code commitMillis} after the first pending record,
+ * whichever comes first. Commits run on a thread of the journal, so {@link #append} never waits
+ * for the storage. On {@link #open}, a torn or corrupt tail left by a crash is cut off after the
+ * last valid record, and new records are appended after it.
+ */
+public class CaptureJournal {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FileOutputStream mFileStream;
+
+    private final BufferedOutputStream mOutput;
+
+    private final List<String> mRecovered;
+
+    private final int mCommitRecords;
+
+    private final long mCommitMillis;
+
+    private final ScheduledExecutorService mCommitExecutor;
+
+    private final CRC32 mCrc = new CRC32();
+
+    private int mPending;
+
+    private boolean mClosed;
+
+    private final Runnable mCommitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                commit();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private CaptureJournal(File file, List<String> recovered, int commitRecords,
+                           long commitMillis) throws IOException {
+        mRecovered = recovered;
+        mCommitRecords = commitRecords;
+        mCommitMillis = commitMillis;
+        mFileStream = new FileOutputStream(file, true);
+        mOutput = new BufferedOutputStream(mFileStream);
+        mCommitExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Opens a journal for appending, recovering the records already in it.
+     *
+     * @param file          The journal file, created if needed
+     * @param commitRecords Number of pending records that forces a commit
+     * @param commitMillis  Longest time a record stays pending
+     */
+    public static CaptureJournal open(File file, int commitRecords, long commitMillis)
+            throws IOException {
+        List<String> recovered = new ArrayList<>();
+        if (file.exists()) {
+            long validLength = recover(file, recovered);
+            if (validLength < file.length()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.getChannel().truncate(validLength);
+                    raf.getFD().sync();
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        return new CaptureJournal(file, recovered, commitRecords, commitMillis);
+    }
+
+    /**
+     * Reads the valid records of {@code file} into {@code records}.
+     *
+     * @return The length of the valid prefix of the file
+     */
+    private static long recover(File file, List<String> records) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            CRC32 crc = new CRC32();
+            long offset = 0;
+            long validLength = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    offset++;
+                    if (buffer[i] != '\n') {
+                        line.write(buffer[i]);
+                        continue;
+                    }
+                    String record = verify(new String(line.toByteArray(), UTF_8), crc);
+                    if (null == record) {
+                        return validLength;
+                    }
+                    records.add(record);
+                    validLength = offset;
+                    line.reset();
+                }
+            }
+            return validLength;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the record stored in {@code line}, or {@code null} if its checksum doesn't match.
+     */
+    private static String verify(String line, CRC32 crc) {
+        int tab = line.lastIndexOf('\t');
+        if (tab < 0) {
+            return null;
+        }
+        String record = line.substring(0, tab);
+        crc.reset();
+        crc.update(record.getBytes(UTF_8));
+        return line.substring(tab + 1).equals(checksum(crc)) ? record : null;
+    }
+
+    private static String checksum(CRC32 crc) {
+        return String.format(Locale.US, "%08x", crc.getValue());
+    }
+
+    /**
+     * Returns the records that were in the journal when it was opened.
+     */
+    public List<String> getRecovered() {
+        return mRecovered;
+    }
+
+    /**
+     * Appends a record. It becomes durable with the next commit.
+     *
+     * @param record The record, which must not contain line breaks
+     */
+    public synchronized void append(String record) throws IOException {
+        if (mClosed) {
+            throw new IOException("Journal is closed");
+        }
+        byte[] bytes = record.getBytes(UTF_8);
+        mCrc.reset();
+        mCrc.update(bytes);
+        mOutput.write(bytes);
+        mOutput.write('\t');
+        mOutput.write(checksum(mCrc).getBytes(UTF_8));
+        mOutput.write('\n');
+        mPending++;
+        if (mPending == mCommitRecords) {
+            mCommitExecutor.execute(mCommitRunnable);
+        } else if (mPending == 1) {
+            mCommitExecutor.schedule(mCommitRunnable, mCommitMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes out and syncs every pending record. Records appended during the sync wait for the
+     * next commit.
+     */
+    public void commit() throws IOException {
+        synchronized (this) {
+            if (mPending == 0) {
+                return;
+            }
+            mOutput.flush();
+            mPending = 0;
+        }
+        mFileStream.getFD().sync();
+    }
+
+    /**
+     * Commits the pending records and closes the journal.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        // A commit may be syncing on the journal thread, the file stays open until it is done.
+        mCommitExecutor.shutdownNow();
+        try {
+            mCommitExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            commit();
+        } finally {
+            mOutput.close();
+        }
+    }
+
+}
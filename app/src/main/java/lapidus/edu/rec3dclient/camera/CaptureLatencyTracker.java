@@ -0,0 +1,139 @@
+package lapidus.edu.rec3dclient.camera;
+
+import java.util.Locale;
+
+/**
+ * Measures where time goes between the tap on the shutter and the file on disk.
+ * <p>
+ * Every transition of the capture state machine is stamped with a monotonic clock, and the time
+ * since the previous transition is added to a per-stage histogram. Only one capture is tracked at
+ * a time, which matches the state machine in {@link Camera2BasicFragment}.
+ */
+public class CaptureLatencyTracker {
+
+    /**
+     * Stage: The device is steady and the focus lock is requested.
+     */
+    public static final int STAGE_STEADY = 0;
+
+    /**
+     * Stage: Auto focus reported a locked state.
+     */
+    public static final int STAGE_LOCK = 1;
+
+    /**
+     * Stage: Auto exposure is not ready and the precapture sequence is triggered.
+     */
+    public static final int STAGE_PRECAPTURE_TRIGGER = 2;
+
+    /**
+     * Stage: Auto exposure reported that the precapture sequence started.
+     */
+    public static final int STAGE_PRECAPTURE = 3;
+
+    /**
+     * Stage: Auto exposure is ready and the still capture is requested.
+     */
+    public static final int STAGE_STILL_REQUEST = 4;
+
+    /**
+     * Stage: The still capture request completed.
+     */
+    public static final int STAGE_CAPTURE_COMPLETED = 5;
+
+    /**
+     * Stage: The JPEG is available from the {@link android.media.ImageReader}.
+     */
+    public static final int STAGE_IMAGE_AVAILABLE = 6;
+
+    /**
+     * Stage: The JPEG has been written to disk.
+     */
+    public static final int STAGE_SAVED = 7;
+
+    private static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {
+            "steady", "lock", "precapture trigger", "precapture", "still request",
+            "capture completed", "image available", "saved"
+    };
+
+    /**
+     * Upper bounds of the histogram buckets in milliseconds. The last bucket is unbounded.
+     */
+    private static final int[] BUCKET_LIMITS = {5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    /**
+     * One histogram per stage, plus one for the total time from tap to saved file.
+     */
+    private final int[][] mHistograms = new int[STAGE_COUNT + 1][BUCKET_LIMITS.length + 1];
+
+    private final long[] mSums = new long[STAGE_COUNT + 1];
+
+    private final long[] mMaxima = new long[STAGE_COUNT + 1];
+
+    private long mTapTime;
+
+    private long mLastMark;
+
+    /**
+     * Starts tracking a new capture.
+     */
+    public synchronized void onTap() {
+        mTapTime = System.nanoTime();
+        mLastMark = mTapTime;
+    }
+
+    /**
+     * Records that the capture in progress reached {@code stage}.
+     */
+    public synchronized void mark(int stage) {
+        if (mTapTime == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        add(stage, now - mLastMark);
+        mLastMark = now;
+        if (stage == STAGE_SAVED) {
+            add(STAGE_COUNT, now - mTapTime);
+            mTapTime = 0;
+        }
+    }
+
+    private void add(int row, long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS.length && millis > BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+        mHistograms[row][bucket]++;
+        mSums[row] += millis;
+        mMaxima[row] = Math.max(mMaxima[row], millis);
+    }
+
+    /**
+     * Formats the histograms, one line per stage with its count, mean, maximum and bucket counts.
+     */
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder("stage: count mean max |");
+        for (int limit : BUCKET_LIMITS) {
+            sb.append(" <=").append(limit);
+        }
+        sb.append(" >").append(BUCKET_LIMITS[BUCKET_LIMITS.length - 1]).append(" (ms)\n");
+        for (int row = 0; row <= STAGE_COUNT; row++) {
+            int count = 0;
+            for (int n : mHistograms[row]) {
+                count += n;
+            }
+            sb.append(row < STAGE_COUNT ? STAGE_NAMES[row] : "total")
+                    .append(String.format(Locale.US, ": %d %.1f %d |", count,
+                            count == 0 ? 0f : (float) mSums[row] / count, mMaxima[row]));
+            for (int n : mHistograms[row]) {
+                sb.append(' ').append(n);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,177 @@
+package lapidus.edu.rec3dclient.camera;
+
+/**
+ * Picks the still output size and JPEG quality from the encode and write throughput measured
+ * during the session, so that captures can be sustained at a target frame rate.
+ * <p>
+ * A frame is encoded by the camera while the previous one is written, so the sustainable frame
+ * time is the slower of the two. Quality is lowered before resolution, and no size whose angular
+ * resolution falls below the configured pixels-per-degree floor is ever chosen.
+ */
+public class CaptureQualityPolicy {
+
+    /**
+     * JPEG qualities to choose from, best first.
+     */
+    private static final byte[] QUALITIES = {95, 90, 85, 80};
+
+    /**
+     * Typical JPEG size at each of {@link #QUALITIES}, relative to the best one.
+     */
+    private static final float[] QUALITY_SIZE_FACTORS = {1f, 0.7f, 0.55f, 0.45f};
+
+    /**
+     * Number of frames between two evaluations, to avoid switching on noisy measurements.
+     */
+    private static final int EVALUATION_INTERVAL = 5;
+
+    /**
+     * Weight of the latest measurement in the running averages.
+     */
+    private static final float SMOOTHING = 0.25f;
+
+    private float mTargetFrameTime;
+
+    private float mMinPixelsPerDegree;
+
+    /**
+     * Candidate still sizes, largest first.
+     */
+    private long[] mPixels = new long[0];
+    private int[] mWidths = new int[0];
+
+    /**
+     * Horizontal field of view of the still output in degrees.
+     */
+    private float mFieldOfView;
+
+    private int mSizeIndex;
+
+    private int mQualityIndex;
+
+    /**
+     * Running averages of the measured rates.
+     */
+    private float mEncodePixelsPerSecond;
+    private float mWriteBytesPerSecond;
+    private float mBytesPerPixel;
+
+    private int mFramesSinceEvaluation;
+
+    /**
+     * @param targetFps          Capture rate that should be sustained
+     * @param minPixelsPerDegree Lowest horizontal angular resolution allowed
+     */
+    public CaptureQualityPolicy(float targetFps, float minPixelsPerDegree) {
+        setTarget(targetFps, minPixelsPerDegree);
+    }
+
+    public synchronized void setTarget(float targetFps, float minPixelsPerDegree) {
+        mTargetFrameTime = 1f / targetFps;
+        mMinPixelsPerDegree = minPixelsPerDegree;
+    }
+
+    /**
+     * Sets the sizes the still output can take. Keeps the current choice if it is still offered.
+     *
+     * @param widths      Widths of the candidate sizes, largest size first
+     * @param heights     Heights of the candidate sizes
+     * @param fieldOfView Horizontal field of view in degrees
+     */
+    public synchronized void setCandidates(int[] widths, int[] heights, float fieldOfView) {
+        long current = mPixels.length > 0 ? mPixels[mSizeIndex] : 0;
+        mWidths = widths;
+        mPixels = new long[widths.length];
+        mSizeIndex = 0;
+        for (int i = 0; i < widths.length; i++) {
+            mPixels[i] = (long) widths[i] * heights[i];
+            if (mPixels[i] == current) {
+                mSizeIndex = i;
+            }
+        }
+        mFieldOfView = fieldOfView;
+    }
+
+    /**
+     * Records how long the camera took from the start of the exposure to the encoded JPEG.
+     */
+    public synchronized void onFrameEncoded(long pixels, long bytes, long nanos) {
+        if (nanos <= 0 || pixels <= 0) {
+            return;
+        }
+        mEncodePixelsPerSecond = smooth(mEncodePixelsPerSecond, pixels * 1e9f / nanos);
+        // Normalize to the best quality so that sizes at other qualities can be predicted.
+        mBytesPerPixel = smooth(mBytesPerPixel,
+                (float) bytes / pixels / QUALITY_SIZE_FACTORS[mQualityIndex]);
+    }
+
+    /**
+     * Records how long writing a frame to disk took, until it was synced to storage.
+     */
+    public synchronized void onFrameWritten(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        mWriteBytesPerSecond = smooth(mWriteBytesPerSecond, bytes * 1e9f / nanos);
+        mFramesSinceEvaluation++;
+    }
+
+    private static float smooth(float average, float sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    /**
+     * Re-evaluates the choice if enough frames have been measured since the last evaluation.
+     *
+     * @return Whether the recommended size changed
+     */
+    public synchronized boolean evaluate() {
+        if (mFramesSinceEvaluation < EVALUATION_INTERVAL || mPixels.length == 0 ||
+                mEncodePixelsPerSecond == 0 || mWriteBytesPerSecond == 0) {
+            return false;
+        }
+        mFramesSinceEvaluation = 0;
+        int previousSize = mSizeIndex;
+        int lastAllowed = 0;
+        for (int size = 0; size < mPixels.length; size++) {
+            if (mFieldOfView > 0 && mWidths[size] / mFieldOfView < mMinPixelsPerDegree) {
+                break;
+            }
+            lastAllowed = size;
+            for (int quality = 0; quality < QUALITIES.length; quality++) {
+                if (predictFrameTime(size, quality) <= mTargetFrameTime) {
+                    mSizeIndex = size;
+                    mQualityIndex = quality;
+                    return mSizeIndex != previousSize;
+                }
+            }
+        }
+        // Nothing meets the target, take the cheapest choice above the floor.
+        mSizeIndex = lastAllowed;
+        mQualityIndex = QUALITIES.length - 1;
+        return mSizeIndex != previousSize;
+    }
+
+    private float predictFrameTime(int size, int quality) {
+        long pixels = mPixels[size];
+        float encodeTime = pixels / mEncodePixelsPerSecond;
+        float writeTime = pixels * mBytesPerPixel * QUALITY_SIZE_FACTORS[quality]
+                / mWriteBytesPerSecond;
+        return Math.max(encodeTime, writeTime);
+    }
+
+    /**
+     * Returns the number of pixels of the recommended still size.
+     */
+    public synchronized long getPixelLimit() {
+        return mPixels.length > 0 ? mPixels[mSizeIndex] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the recommended {@code CaptureRequest.JPEG_QUALITY}.
+     */
+    public synchronized byte getQuality() {
+        return QUALITIES[mQualityIndex];
+    }
+
+}
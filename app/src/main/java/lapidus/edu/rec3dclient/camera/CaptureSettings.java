@@ -0,0 +1,223 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Capture related preferences. Values are stored as strings, like the other numeric preferences
+ * of the app.
+ */
+public class CaptureSettings {
+
+    public static final String AUTO_CAPTURE_ANGLE_KEY = "auto_capture_angle_preference";
+    public static final String AUTO_CAPTURE_MIN_INTERVAL_KEY = "auto_capture_min_interval_preference";
+    public static final String MAX_MOTION_BLUR_KEY = "max_motion_blur_preference";
+    public static final String MAX_CAPTURE_DELAY_KEY = "max_capture_delay_preference";
+    public static final String ZSL_ENABLED_KEY = "zsl_enabled_preference";
+    public static final String SWEEP_LOCK_ENABLED_KEY = "sweep_lock_enabled_preference";
+    public static final String MEMORY_BUDGET_KEY = "memory_budget_preference";
+    public static final String TARGET_FPS_KEY = "target_fps_preference";
+    public static final String MIN_PIXELS_PER_DEGREE_KEY = "min_pixels_per_degree_preference";
+    public static final String FOCUS_REUSE_ANGLE_KEY = "focus_reuse_angle_preference";
+    public static final String UPLOAD_ENDPOINT_KEY = "upload_endpoint_preference";
+    public static final String UPLOAD_CONCURRENCY_KEY = "upload_concurrency_preference";
+    public static final String UPLOAD_CHUNKED_KEY = "upload_chunked_preference";
+    public static final String UPLOAD_UNMETERED_KEY = "upload_unmetered_preference";
+    public static final String UPLOAD_CHARGING_KEY = "upload_charging_preference";
+    public static final String TELEMETRY_ENDPOINT_KEY = "telemetry_endpoint_preference";
+    public static final String SESSION_SERVER_ENABLED_KEY = "session_server_enabled_preference";
+    public static final String SESSION_SERVER_PORT_KEY = "session_server_port_preference";
+    public static final String SESSION_SERVER_WORKERS_KEY = "session_server_workers_preference";
+    public static final String POINT_CLOUD_OVERLAY_KEY = "point_cloud_overlay_preference";
+    public static final String POINT_CLOUD_CAPACITY_KEY = "point_cloud_capacity_preference";
+    public static final String SYNC_COORDINATOR_KEY = "sync_coordinator_preference";
+    public static final String SYNC_PORT_KEY = "sync_port_preference";
+    public static final String SYNC_ENDPOINT_KEY = "sync_endpoint_preference";
+    public static final String UPLOAD_DROP_FRACTION_KEY = "upload_drop_fraction_preference";
+
+    private final SharedPreferences mPrefs;
+
+    public CaptureSettings(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /**
+     * Angular distance in degrees from the last captured pose that triggers an automatic capture.
+     */
+    public float getAutoCaptureAngle() {
+        return Float.valueOf(mPrefs.getString(AUTO_CAPTURE_ANGLE_KEY, "10"));
+    }
+
+    /**
+     * Minimum time in milliseconds between two automatic captures.
+     */
+    public long getAutoCaptureMinInterval() {
+        return Long.valueOf(mPrefs.getString(AUTO_CAPTURE_MIN_INTERVAL_KEY, "500"));
+    }
+
+    /**
+     * Largest predicted motion blur in pixels at which a capture may start.
+     */
+    public float getMaxMotionBlur() {
+        return Float.valueOf(mPrefs.getString(MAX_MOTION_BLUR_KEY, "2"));
+    }
+
+    /**
+     * Longest time in milliseconds a capture is deferred while waiting for the device to be
+     * steady. The picture is taken anyway once it expires.
+     */
+    public long getMaxCaptureDelay() {
+        return Long.valueOf(mPrefs.getString(MAX_CAPTURE_DELAY_KEY, "1000"));
+    }
+
+    /**
+     * Whether captures are taken from a ring of recent full-resolution frames instead of running
+     * the focus and exposure sequence.
+     */
+    public boolean isZslEnabled() {
+        return mPrefs.getBoolean(ZSL_ENABLED_KEY, false);
+    }
+
+    /**
+     * Whether focus and exposure converge once per session and stay locked for every capture.
+     */
+    public boolean isSweepLockEnabled() {
+        return mPrefs.getBoolean(SWEEP_LOCK_ENABLED_KEY, false);
+    }
+
+    /**
+     * Megabytes of captured frames that may be held in memory at once, or 0 to derive the budget
+     * from the memory class of the device.
+     */
+    public int getMemoryBudget() {
+        return Integer.valueOf(mPrefs.getString(MEMORY_BUDGET_KEY, "0"));
+    }
+
+    /**
+     * Capture rate in frames per second that the output size and quality should sustain.
+     */
+    public float getTargetFps() {
+        return Float.valueOf(mPrefs.getString(TARGET_FPS_KEY, "2"));
+    }
+
+    /**
+     * Lowest horizontal resolution of the still output in pixels per degree of view.
+     */
+    public float getMinPixelsPerDegree() {
+        return Float.valueOf(mPrefs.getString(MIN_PIXELS_PER_DEGREE_KEY, "20"));
+    }
+
+    /**
+     * Rotation in degrees since the last focus lock up to which its focus is reused, or 0 to lock
+     * focus for every capture.
+     */
+    public float getFocusReuseAngle() {
+        return Float.valueOf(mPrefs.getString(FOCUS_REUSE_ANGLE_KEY, "2"));
+    }
+
+    /**
+     * URL of the reconstruction server frames are uploaded to, or an empty string to keep frames
+     * on the device.
+     */
+    public String getUploadEndpoint() {
+        return mPrefs.getString(UPLOAD_ENDPOINT_KEY, "").trim();
+    }
+
+    /**
+     * Number of frames uploaded at the same time.
+     */
+    public int getUploadConcurrency() {
+        return Integer.valueOf(mPrefs.getString(UPLOAD_CONCURRENCY_KEY, "2"));
+    }
+
+    /**
+     * Whether frames are uploaded as resumable, deduplicated chunks instead of one request each.
+     */
+    public boolean isUploadChunked() {
+        return mPrefs.getBoolean(UPLOAD_CHUNKED_KEY, true);
+    }
+
+    /**
+     * Whether frames left over after a capture wait for an unmetered network.
+     */
+    public boolean isUploadUnmeteredOnly() {
+        return mPrefs.getBoolean(UPLOAD_UNMETERED_KEY, false);
+    }
+
+    /**
+     * Whether frames left over after a capture wait for the device to be charging.
+     */
+    public boolean isUploadChargingOnly() {
+        return mPrefs.getBoolean(UPLOAD_CHARGING_KEY, false);
+    }
+
+    /**
+     * Receiver of the live pose stream as {@code udp://host:port}, or an empty string to send
+     * none.
+     */
+    public String getTelemetryEndpoint() {
+        return mPrefs.getString(TELEMETRY_ENDPOINT_KEY, "").trim();
+    }
+
+    /**
+     * Whether the session directory is served over HTTP for pulling to a workstation.
+     */
+    public boolean isSessionServerEnabled() {
+        return mPrefs.getBoolean(SESSION_SERVER_ENABLED_KEY, false);
+    }
+
+    public int getSessionServerPort() {
+        return Integer.valueOf(mPrefs.getString(SESSION_SERVER_PORT_KEY, "8080"));
+    }
+
+    /**
+     * Number of connections the session server serves at the same time.
+     */
+    public int getSessionServerWorkers() {
+        return Integer.valueOf(mPrefs.getString(SESSION_SERVER_WORKERS_KEY, "2"));
+    }
+
+    /**
+     * Whether the reconstruction the server streams back is drawn over the preview.
+     */
+    public boolean isPointCloudOverlayEnabled() {
+        return mPrefs.getBoolean(POINT_CLOUD_OVERLAY_KEY, true);
+    }
+
+    /**
+     * Largest number of reconstructed points kept for the overlay.
+     */
+    public int getPointCloudCapacity() {
+        return Integer.valueOf(mPrefs.getString(POINT_CLOUD_CAPACITY_KEY, "65536"));
+    }
+
+    /**
+     * Whether this device coordinates a multi-device session, whose clock the other devices
+     * synchronize to.
+     */
+    public boolean isSyncCoordinator() {
+        return mPrefs.getBoolean(SYNC_COORDINATOR_KEY, false);
+    }
+
+    public int getSyncPort() {
+        return Integer.valueOf(mPrefs.getString(SYNC_PORT_KEY, "9760"));
+    }
+
+    /**
+     * Coordinator of the multi-device session to join as {@code udp://host:port}, or an empty
+     * string to capture alone.
+     */
+    public String getSyncEndpoint() {
+        return mPrefs.getString(SYNC_ENDPOINT_KEY, "").trim();
+    }
+
+    /**
+     * Fraction of frames, the least sharp of each recent window, that are kept on the device but
+     * not uploaded.
+     */
+    public float getUploadDropFraction() {
+        return Float.valueOf(mPrefs.getString(UPLOAD_DROP_FRACTION_KEY, "0.1"));
+    }
+
+}
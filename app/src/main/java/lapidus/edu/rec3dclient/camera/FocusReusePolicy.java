@@ -0,0 +1,120 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.hardware.camera2.CaptureResult;
+
+import lapidus.edu.rec3dclient.Clock;
+import lapidus.edu.rec3dclient.Sensor.PoseMath;
+
+/**
+ * Decides whether a capture can reuse the focus of the previous one instead of running the auto
+ * focus trigger again.
+ * <p>
+ * The focus distance of the last successful lock is kept together with the pose at that time.
+ * It is reused while the device has rotated less than a threshold since then, the preview still
+ * reports the lens as focused and exposure as converged, and the lock is not too old. Otherwise
+ * the caller falls back to a full lock.
+ */
+public class FocusReusePolicy {
+
+    /**
+     * Longest time a focus lock is reused for.
+     */
+    static final long MAX_AGE_MS = 30000;
+
+    private final Clock mClock;
+
+    private final float[] mLockedPose = new float[4];
+
+    private final float[] mCurrentPose = new float[4];
+
+    private float mThreshold = (float) Math.toRadians(2);
+
+    private Float mFocusDistance;
+
+    private long mLockTime;
+
+    private boolean mFocused;
+
+    private boolean mExposureConverged;
+
+    public FocusReusePolicy(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param degrees Rotation since the last lock up to which its focus is reused, or 0 to always
+     *                run a full lock
+     */
+    public synchronized void setThreshold(float degrees) {
+        mThreshold = (float) Math.toRadians(degrees);
+    }
+
+    /**
+     * Records a successful focus lock.
+     *
+     * @param orientation   Azimuth, pitch and roll of the device in radians
+     * @param focusDistance The reported focus distance in diopters, or {@code null}
+     */
+    public synchronized void onFocusLocked(float[] orientation, Float focusDistance) {
+        mFocusDistance = focusDistance;
+        if (null == focusDistance) {
+            return;
+        }
+        PoseMath.eulerToQuaternion(orientation, mLockedPose);
+        mLockTime = mClock.elapsedRealtime();
+        mFocused = true;
+        mExposureConverged = true;
+    }
+
+    /**
+     * Tracks the focus and exposure state reported for the repeating request. Missing states, as
+     * in partial results, leave the tracked state as it is.
+     */
+    public synchronized void onPreviewResult(Integer afState, Integer aeState) {
+        if (null != afState) {
+            switch (afState) {
+                case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
+                case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
+                    break;
+                case CaptureResult.CONTROL_AF_STATE_INACTIVE:
+                    // Reported right after the lock is released, before the lens moves.
+                    break;
+                default:
+                    // The auto focus is looking for a new subject.
+                    mFocused = false;
+                    break;
+            }
+        }
+        if (null != aeState) {
+            mExposureConverged = CaptureResult.CONTROL_AE_STATE_CONVERGED == aeState ||
+                    CaptureResult.CONTROL_AE_STATE_LOCKED == aeState;
+        }
+    }
+
+    /**
+     * Returns the focus distance to reuse at {@code orientation}, or {@code null} if a full lock
+     * is needed.
+     */
+    public synchronized Float getReusableFocus(float[] orientation) {
+        if (null == mFocusDistance || !mFocused || !mExposureConverged || 0 == mThreshold) {
+            return null;
+        }
+        if (mClock.elapsedRealtime() - mLockTime > MAX_AGE_MS) {
+            return null;
+        }
+        PoseMath.eulerToQuaternion(orientation, mCurrentPose);
+        if (PoseMath.angleBetween(mLockedPose, mCurrentPose) >= mThreshold) {
+            return null;
+        }
+        return mFocusDistance;
+    }
+
+    /**
+     * Forgets the last lock, e.g. when the capture session is recreated.
+     */
+    public synchronized void invalidate() {
+        mFocusDistance = null;
+        mFocused = false;
+    }
+
+}
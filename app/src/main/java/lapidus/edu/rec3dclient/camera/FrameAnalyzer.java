@@ -0,0 +1,20 @@
+package lapidus.edu.rec3dclient.camera;
+
+/**
+ * A stage that inspects the low-resolution frames delivered by {@link AnalysisStage}.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * Called on the analysis thread with the luma plane of the most recent frame. The buffer is
+     * tightly packed ({@code width * height} bytes) and reused for the next frame, so it must not
+     * be kept after this method returns.
+     *
+     * @param luma      The Y plane of the frame
+     * @param width     The width of the frame in pixels
+     * @param height    The height of the frame in pixels
+     * @param timestamp The sensor timestamp of the frame in nanoseconds
+     */
+    void analyze(byte[] luma, int width, int height, long timestamp);
+
+}
@@ -0,0 +1,93 @@
+package lapidus.edu.rec3dclient.camera;
+
+import java.util.Locale;
+
+/**
+ * Pose and quality data stored for every saved frame, one line per frame.
+ */
+public class FrameRecord {
+
+    /**
+     * Index of the frame, which also names its image and thumbnail files.
+     */
+    public final int index;
+
+    /**
+     * Orientation of the device in degrees.
+     */
+    public final float azimuth;
+    public final float pitch;
+    public final float roll;
+
+    /**
+     * Predicted motion blur in pixels at the time of capture.
+     */
+    public final float blur;
+
+    /**
+     * Sharpness score of the frame, see {@link SharpnessScorer}.
+     */
+    public final float sharpness;
+
+    public FrameRecord(int index, float[] orientation, float blur, float sharpness) {
+        this.index = index;
+        this.azimuth = (float) Math.toDegrees(orientation[0]);
+        this.pitch = (float) Math.toDegrees(orientation[1]);
+        this.roll = (float) Math.toDegrees(orientation[2]);
+        this.blur = blur;
+        this.sharpness = sharpness;
+    }
+
+    private FrameRecord(int index, float azimuth, float pitch, float roll, float blur,
+                        float sharpness) {
+        this.index = index;
+        this.azimuth = azimuth;
+        this.pitch = pitch;
+        this.roll = roll;
+        this.blur = blur;
+        this.sharpness = sharpness;
+    }
+
+    public static String getImageName(int index) {
+        return "pic" + index + ".jpg";
+    }
+
+    public String getImageName() {
+        return getImageName(index);
+    }
+
+    /**
+     * Returns the name of the thumbnail captured together with frame {@code index}.
+     */
+    public static String getThumbnailName(int index) {
+        return "thumb" + index + ".jpg";
+    }
+
+    public String getThumbnailName() {
+        return getThumbnailName(index);
+    }
+
+    /**
+     * Formats the record as a line of space separated values, starting with the orientation.
+     */
+    public String toLine() {
+        return String.format(Locale.US, "%.2f %.2f %.2f %.2f %.1f %d", azimuth, pitch, roll, blur,
+                sharpness, index);
+    }
+
+    /**
+     * Parses a line written by {@link #toLine()}.
+     *
+     * @throws IllegalArgumentException If the line is not a frame record
+     */
+    public static FrameRecord parse(String line) {
+        String[] values = line.split(" ");
+        if (values.length < 6) {
+            throw new IllegalArgumentException("Not a frame record: " + line);
+        }
+        return new FrameRecord(Integer.parseInt(values[5]), Float.parseFloat(values[0]),
+                Float.parseFloat(values[1]), Float.parseFloat(values[2]),
+                Float.parseFloat(values[3]), Float.parseFloat(values[4]));
+    }
+
+}
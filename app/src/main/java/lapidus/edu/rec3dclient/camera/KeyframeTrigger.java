@@ -0,0 +1,116 @@
+package lapidus.edu.rec3dclient.camera;
+
+import com.kircherelectronics.gyroscopeexplorer.activity.filter.OrientationListener;
+
+import lapidus.edu.rec3dclient.Sensor.PoseMath;
+
+/**
+ * Subscribes to the fused orientation and asks for a still capture whenever the device has
+ * rotated far enough from the pose of the last captured frame.
+ */
+public class KeyframeTrigger implements OrientationListener {
+
+    /**
+     * Receives keyframe requests from {@link KeyframeTrigger}.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the sensor thread when a new keyframe should be captured.
+         *
+         * @return Whether a capture was actually started
+         */
+        boolean onKeyframe();
+
+    }
+
+    private final Callback mCallback;
+
+    /**
+     * Pose of the last frame that was captured.
+     */
+    private final float[] mLastCaptured = new float[4];
+
+    /**
+     * Most recent pose reported by the orientation filter.
+     */
+    private final float[] mCurrent = new float[4];
+
+    private boolean mHasCurrent;
+
+    private boolean mHasLastCaptured;
+
+    private long mLastTriggerTimestamp;
+
+    private float mThreshold = (float) Math.toRadians(10);
+
+    private long mMinIntervalNanos = 500000000L;
+
+    private volatile boolean mEnabled;
+
+    public KeyframeTrigger(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @param degrees Angular distance from the last captured pose that triggers a new capture
+     */
+    public void setThreshold(float degrees) {
+        mThreshold = (float) Math.toRadians(degrees);
+    }
+
+    /**
+     * @param millis Minimum time between two automatic captures
+     */
+    public void setMinInterval(long millis) {
+        mMinIntervalNanos = millis * 1000000L;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Records the current pose as captured. Call this for captures that were not started by the
+     * trigger itself, so that automatic captures are spaced from manual ones too.
+     */
+    public synchronized void markCaptured() {
+        if (mHasCurrent) {
+            System.arraycopy(mCurrent, 0, mLastCaptured, 0, 4);
+            mHasLastCaptured = true;
+        }
+    }
+
+    /**
+     * Returns the angle in radians between the current pose and the last captured one, or zero if
+     * either is unknown.
+     */
+    public synchronized float getDistanceFromLastCapture() {
+        if (!mHasCurrent || !mHasLastCaptured) {
+            return 0;
+        }
+        return PoseMath.angleBetween(mCurrent, mLastCaptured);
+    }
+
+    @Override
+    public synchronized void onOrientationChanged(float[] orientation, long timestamp) {
+        PoseMath.eulerToQuaternion(orientation, mCurrent);
+        mHasCurrent = true;
+        if (!mEnabled || timestamp - mLastTriggerTimestamp < mMinIntervalNanos) {
+            return;
+        }
+        if (mHasLastCaptured && PoseMath.angleBetween(mCurrent, mLastCaptured) < mThreshold) {
+            return;
+        }
+        if (mCallback.onKeyframe()) {
+            mLastTriggerTimestamp = timestamp;
+            System.arraycopy(mCurrent, 0, mLastCaptured, 0, 4);
+            mHasLastCaptured = true;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package lapidus.edu.rec3dclient.camera;
+
+import lapidus.edu.rec3dclient.Clock;
+
+/**
+ * Accounts for the bytes of captured frames that are held in memory between being acquired from
+ * the camera and being written to disk, so capture can be throttled before the process runs out
+ * of memory.
+ * <p>
+ * A capture may be retried on every sensor event while it is refused, so refusals are counted
+ * at most once per {@link #REFUSAL_WINDOW_MS}. After the output was made smaller, a larger one
+ * is requested again once nothing was refused for {@link #UPSIZE_DELAY_MS} and frames of twice
+ * the size would fit.
+ */
+public class MemoryBudget {
+
+    /**
+     * Number of captures refused in a row after which a smaller output size is requested.
+     */
+    private static final int REFUSALS_BEFORE_DOWNSIZE = 3;
+
+    /**
+     * Refusals closer together than this count as one.
+     */
+    private static final long REFUSAL_WINDOW_MS = 500;
+
+    /**
+     * Time without refusals before the output may grow again.
+     */
+    private static final long UPSIZE_DELAY_MS = 10000;
+
+    private final Clock mClock;
+
+    private long mLimit;
+
+    private long mInFlight;
+
+    /**
+     * Bytes held outside the capture path, e.g. by the zero-shutter-lag ring. They count against
+     * the limit but are not in flight.
+     */
+    private long mReserved;
+
+    /**
+     * Bytes of upload and post-processing buffers, e.g. the bitmaps frames are decoded into to be
+     * downscaled. They count against the limit but are not in flight.
+     */
+    private long mBuffers;
+
+    /**
+     * Running estimate of the size of one frame, used to decide if another capture fits.
+     */
+    private long mFrameEstimate;
+
+    private int mRefusals;
+
+    private long mRefusalTime;
+
+    /**
+     * Number of downsize requests not yet undone.
+     */
+    private int mDownsizes;
+
+    /**
+     * @param limit         The number of bytes that may be in flight at the same time
+     * @param frameEstimate Initial estimate of the size of one frame in bytes
+     */
+    public MemoryBudget(long limit, long frameEstimate, Clock clock) {
+        mLimit = limit;
+        mFrameEstimate = frameEstimate;
+        mClock = clock;
+        mRefusalTime = clock.elapsedRealtime() - UPSIZE_DELAY_MS;
+    }
+
+    public synchronized void setLimit(long limit) {
+        mLimit = limit;
+    }
+
+    public synchronized void setFrameEstimate(long frameEstimate) {
+        mFrameEstimate = frameEstimate;
+    }
+
+    /**
+     * Sets the number of bytes held outside the capture path.
+     */
+    public synchronized void setReserved(long reserved) {
+        mReserved = reserved;
+    }
+
+    /**
+     * Asks whether another frame may be captured now.
+     *
+     * @return {@code true} if the estimated frame fits in the budget
+     */
+    public synchronized boolean tryStartCapture() {
+        if (mReserved + mBuffers + mInFlight + mFrameEstimate <= mLimit) {
+            mRefusals = 0;
+            return true;
+        }
+        long now = mClock.elapsedRealtime();
+        if (now - mRefusalTime >= REFUSAL_WINDOW_MS) {
+            mRefusals++;
+            mRefusalTime = now;
+        }
+        return false;
+    }
+
+    /**
+     * Whether captures have been refused often enough that the output should be made smaller.
+     * Reading the request clears it.
+     */
+    public synchronized boolean consumeDownsizeRequest() {
+        if (mRefusals < REFUSALS_BEFORE_DOWNSIZE) {
+            return false;
+        }
+        mRefusals = 0;
+        mDownsizes++;
+        return true;
+    }
+
+    /**
+     * Whether an output made smaller by {@link #consumeDownsizeRequest()} may be made larger
+     * again by one step. Reading the request clears it, and the next step waits for another
+     * quiet period.
+     */
+    public synchronized boolean consumeUpsizeRequest() {
+        long now = mClock.elapsedRealtime();
+        if (0 == mDownsizes || now - mRefusalTime < UPSIZE_DELAY_MS
+                || mReserved + mBuffers + mInFlight + 2 * mFrameEstimate > mLimit) {
+            return false;
+        }
+        mDownsizes--;
+        mRefusalTime = now;
+        return true;
+    }
+
+    /**
+     * Forgets the refusals and downsize requests, e.g. when the output is set up again at full
+     * size.
+     */
+    public synchronized void clearRequests() {
+        mRefusals = 0;
+        mDownsizes = 0;
+        mRefusalTime = mClock.elapsedRealtime() - UPSIZE_DELAY_MS;
+    }
+
+    /**
+     * Records that {@code bytes} of a frame are now held in memory.
+     */
+    public synchronized void acquire(long bytes) {
+        mInFlight += bytes;
+        // Follow the actual frame sizes, weighting the latest frame by a quarter.
+        mFrameEstimate = (3 * mFrameEstimate + bytes) / 4;
+    }
+
+    /**
+     * Records that {@code bytes} acquired earlier have been released.
+     */
+    public synchronized void release(long bytes) {
+        mInFlight = Math.max(0, mInFlight - bytes);
+    }
+
+    /**
+     * Records that a buffer of {@code bytes} is now held outside the capture path. Unlike
+     * {@link #acquire(long)}, it leaves the frame estimate alone.
+     */
+    public synchronized void acquireBuffer(long bytes) {
+        mBuffers += bytes;
+    }
+
+    /**
+     * Records that a buffer acquired with {@link #acquireBuffer(long)} has been released.
+     */
+    public synchronized void releaseBuffer(long bytes) {
+        mBuffers = Math.max(0, mBuffers - bytes);
+    }
+
+    public synchronized long getBuffers() {
+        return mBuffers;
+    }
+
+    public synchronized long getInFlight() {
+        return mInFlight;
+    }
+
+    public synchronized long getReserved() {
+        return mReserved;
+    }
+
+    public synchronized long getLimit() {
+        return mLimit;
+    }
+
+}
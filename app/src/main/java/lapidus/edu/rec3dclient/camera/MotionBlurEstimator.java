@@ -0,0 +1,43 @@
+package lapidus.edu.rec3dclient.camera;
+
+/**
+ * Predicts how far, in pixels of the still output, the image moves during one exposure for a
+ * given angular speed of the device.
+ */
+public class MotionBlurEstimator {
+
+    /**
+     * Focal length expressed in pixels of the still output.
+     */
+    private float mFocalLengthPixels;
+
+    /**
+     * @param focalLength      Lens focal length in millimeters
+     * @param sensorWidth      Physical width of the sensor in millimeters
+     * @param imageWidthPixels Width of the still output in pixels
+     */
+    public void setOptics(float focalLength, float sensorWidth, int imageWidthPixels) {
+        mFocalLengthPixels = focalLength / sensorWidth * imageWidthPixels;
+    }
+
+    public boolean hasOptics() {
+        return mFocalLengthPixels > 0;
+    }
+
+    public float getFocalLengthPixels() {
+        return mFocalLengthPixels;
+    }
+
+    /**
+     * Estimates the blur extent with the small angle approximation: the image point moves by the
+     * rotation angle times the focal length.
+     *
+     * @param angularSpeed Angular speed of the device in radians/second
+     * @param exposureTime Exposure time in nanoseconds
+     * @return The predicted blur in pixels
+     */
+    public float estimate(float angularSpeed, long exposureTime) {
+        return angularSpeed * (exposureTime / 1e9f) * mFocalLengthPixels;
+    }
+
+}
@@ -0,0 +1,197 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.Display;
+import android.view.Surface;
+import android.view.View;
+
+import com.kircherelectronics.gyroscopeexplorer.activity.filter.OrientationListener;
+
+import lapidus.edu.rec3dclient.Sensor.PoseMath;
+import lapidus.edu.rec3dclient.net.PointCloud;
+import lapidus.edu.rec3dclient.net.PointCloudDecoder;
+
+/**
+ * Draws the reconstruction streamed back by the server over the preview, so that the operator
+ * can see which parts of the object are still missing.
+ * <p>
+ * Cells are projected from the last registered camera position with the current device
+ * orientation and the field of view of the camera, assuming the server reconstructs in the world
+ * frame of the poses it is sent. Every frame spends at most {@link #DECODE_BUDGET_NANOS} applying
+ * updates and draws at most {@link #MAX_DRAWN} cells, evenly thinned out of the whole cloud.
+ */
+public class PointCloudOverlayView extends View implements OrientationListener {
+
+    private static final long DECODE_BUDGET_NANOS = 2000000;
+
+    private static final int MAX_DRAWN = 4096;
+
+    private static final float NEAR_METERS = 0.05f;
+
+    private static final float POINT_SIZE_DP = 3;
+
+    private final Paint mPaint = new Paint();
+
+    private final float[] mPoints = new float[MAX_DRAWN * 2];
+
+    private final float[] mCell = new float[3];
+
+    private final float[] mViewpoint = new float[3];
+
+    private final float[] mOrientation = new float[4];
+
+    private final float[] mRotation = new float[9];
+
+    private volatile PointCloudDecoder mDecoder;
+
+    /**
+     * Horizontal field of view of the camera along the long side of the sensor, in degrees.
+     */
+    private volatile float mFieldOfView = 60;
+
+    public PointCloudOverlayView(Context context) {
+        this(context, null);
+    }
+
+    public PointCloudOverlayView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public PointCloudOverlayView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        mPaint.setColor(0xc0ffeb3b);
+        mPaint.setStrokeWidth(POINT_SIZE_DP * getResources().getDisplayMetrics().density);
+        mPaint.setStrokeCap(Paint.Cap.ROUND);
+        mOrientation[0] = 1;
+    }
+
+    /**
+     * Sets the stream to draw, or {@code null} to draw nothing. Must be called on the UI thread.
+     */
+    public void setDecoder(PointCloudDecoder decoder) {
+        mDecoder = decoder;
+        invalidate();
+    }
+
+    /**
+     * @param degrees The field of view along the long side of the sensor
+     */
+    public void setFieldOfView(float degrees) {
+        if (degrees > 0) {
+            mFieldOfView = degrees;
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    public void onOrientationChanged(float[] orientation, long timestamp) {
+        if (null == mDecoder) {
+            return;
+        }
+        synchronized (mOrientation) {
+            PoseMath.eulerToQuaternion(orientation, mOrientation);
+        }
+        // Coalesced into at most one draw per display frame.
+        postInvalidateOnAnimation();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        PointCloudDecoder decoder = mDecoder;
+        if (null == decoder) {
+            return;
+        }
+        boolean pending = decoder.decode(DECODE_BUDGET_NANOS);
+        PointCloud cloud = decoder.getCloud();
+        if (cloud.size() > 0) {
+            canvas.drawPoints(mPoints, 0, project(cloud) * 2, mPaint);
+        }
+        if (pending) {
+            postInvalidateOnAnimation();
+        }
+    }
+
+    /**
+     * Projects a thinned out selection of the cells into {@link #mPoints}.
+     *
+     * @return The number of cells in front of the camera
+     */
+    private int project(PointCloud cloud) {
+        synchronized (mOrientation) {
+            float w = mOrientation[0];
+            float x = mOrientation[1];
+            float y = mOrientation[2];
+            float z = mOrientation[3];
+            mRotation[0] = 1 - 2 * (y * y + z * z);
+            mRotation[1] = 2 * (x * y - w * z);
+            mRotation[2] = 2 * (x * z + w * y);
+            mRotation[3] = 2 * (x * y + w * z);
+            mRotation[4] = 1 - 2 * (x * x + z * z);
+            mRotation[5] = 2 * (y * z - w * x);
+            mRotation[6] = 2 * (x * z - w * y);
+            mRotation[7] = 2 * (y * z + w * x);
+            mRotation[8] = 1 - 2 * (x * x + y * y);
+        }
+        int rotation = Surface.ROTATION_0;
+        Display display = getDisplay();
+        if (null != display) {
+            rotation = display.getRotation();
+        }
+        float centerX = getWidth() / 2f;
+        float centerY = getHeight() / 2f;
+        float focal = Math.max(centerX, centerY)
+                / (float) Math.tan(Math.toRadians(mFieldOfView / 2));
+        cloud.getViewpoint(mViewpoint);
+
+        int size = cloud.size();
+        int stride = (size + MAX_DRAWN - 1) / MAX_DRAWN;
+        int seen = 0;
+        int count = 0;
+        // Only the drawn cells are decoded, and the walk ends at the last cell.
+        for (int slot = 0, slots = cloud.getSlotCount(); slot < slots && seen < size; slot++) {
+            if (!cloud.isOccupied(slot) || seen++ % stride != 0) {
+                continue;
+            }
+            cloud.getPosition(slot, mCell, 0);
+            float vx = mCell[0] - mViewpoint[0];
+            float vy = mCell[1] - mViewpoint[1];
+            float vz = mCell[2] - mViewpoint[2];
+            // From the world into the device frame: the transposed device rotation.
+            float dx = mRotation[0] * vx + mRotation[3] * vy + mRotation[6] * vz;
+            float dy = mRotation[1] * vx + mRotation[4] * vy + mRotation[7] * vz;
+            float depth = -(mRotation[2] * vx + mRotation[5] * vy + mRotation[8] * vz);
+            if (depth < NEAR_METERS) {
+                continue;
+            }
+            // The back camera looks along -z; screen axes follow the display rotation.
+            float sx;
+            float sy;
+            switch (rotation) {
+                case Surface.ROTATION_90:
+                    sx = -dy;
+                    sy = dx;
+                    break;
+                case Surface.ROTATION_180:
+                    sx = -dx;
+                    sy = -dy;
+                    break;
+                case Surface.ROTATION_270:
+                    sx = dy;
+                    sy = -dx;
+                    break;
+                default:
+                    sx = dx;
+                    sy = dy;
+                    break;
+            }
+            mPoints[count * 2] = centerX + focal * sx / depth;
+            mPoints[count * 2 + 1] = centerY - focal * sy / depth;
+            count++;
+        }
+        return count;
+    }
+
+}
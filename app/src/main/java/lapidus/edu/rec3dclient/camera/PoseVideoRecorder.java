@@ -0,0 +1,203 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import lapidus.edu.rec3dclient.Sensor.PoseHistory;
+
+/**
+ * Records the camera stream as H.264 through {@link MediaCodec} and {@link MediaMuxer}, and writes
+ * the pose of every encoded frame to a track file next to the video.
+ * <p>
+ * The camera renders into {@link #getSurface()}, so frames never reach the app as pixels. Each
+ * encoded frame carries the sensor timestamp of its exposure as presentation time; the pose track
+ * has one line per frame with that presentation time in microseconds and the device orientation
+ * as a quaternion {@code w x y z}, looked up in a {@link PoseHistory}. A frame the history has
+ * no pose for, e.g. before the sensors delivered one, has {@code nan} for each component.
+ */
+public class PoseVideoRecorder {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "PoseVideoRecorder";
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+
+    private static final int FRAME_RATE = 30;
+
+    private static final int I_FRAME_INTERVAL = 1;
+
+    /**
+     * Bits per pixel and frame of the encoded stream.
+     */
+    private static final float BITS_PER_PIXEL = 0.1f;
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private final MediaCodec mEncoder;
+
+    private final MediaMuxer mMuxer;
+
+    private final Surface mSurface;
+
+    private final Writer mPoseWriter;
+
+    private final PoseHistory mPoseHistory;
+
+    private final long mPoseTimeOffset;
+
+    private final File mVideoFile;
+
+    private Thread mDrainThread;
+
+    private int mTrackIndex = -1;
+
+    private int mFrames;
+
+    /**
+     * @param videoFile       The MP4 file to write
+     * @param poseFile        The pose track to write
+     * @param size            The size of the video
+     * @param orientationHint Clockwise rotation in degrees for playback
+     * @param poseHistory     Recent device poses
+     * @param poseTimeOffset  Nanoseconds to add to a frame timestamp to get the time base of
+     *                        {@code poseHistory}
+     */
+    public PoseVideoRecorder(File videoFile, File poseFile, Size size, int orientationHint,
+                             PoseHistory poseHistory, long poseTimeOffset) throws IOException {
+        mVideoFile = videoFile;
+        mPoseHistory = poseHistory;
+        mPoseTimeOffset = poseTimeOffset;
+
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, size.getWidth(),
+                size.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE,
+                (int) (BITS_PER_PIXEL * size.getWidth() * size.getHeight() * FRAME_RATE));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        try {
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mSurface = mEncoder.createInputSurface();
+            mMuxer = new MediaMuxer(videoFile.getPath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(orientationHint);
+            mPoseWriter = new BufferedWriter(new FileWriter(poseFile));
+        } catch (IOException | RuntimeException e) {
+            mEncoder.release();
+            throw e;
+        }
+    }
+
+    /**
+     * The surface the camera renders the frames to encode into.
+     */
+    public Surface getSurface() {
+        return mSurface;
+    }
+
+    /**
+     * Starts the encoder and the thread that moves encoded frames into the file.
+     */
+    public void start() {
+        mEncoder.start();
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "VideoDrain");
+        mDrainThread.start();
+    }
+
+    /**
+     * Ends the stream and finishes both files. The camera must no longer render into the surface.
+     */
+    public void stop() {
+        try {
+            mEncoder.signalEndOfInputStream();
+            mDrainThread.join();
+        } catch (IllegalStateException | InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            mEncoder.stop();
+            mEncoder.release();
+            mSurface.release();
+            if (mTrackIndex >= 0) {
+                mMuxer.stop();
+            }
+            mMuxer.release();
+            try {
+                mPoseWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Log.i(TAG, "Recorded " + mFrames + " frames to " + mVideoFile);
+    }
+
+    private void drain() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        float[] pose = new float[4];
+        while (true) {
+            int index = mEncoder.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (MediaCodec.INFO_TRY_AGAIN_LATER == index) {
+                continue;
+            }
+            if (MediaCodec.INFO_OUTPUT_FORMAT_CHANGED == index) {
+                mTrackIndex = mMuxer.addTrack(mEncoder.getOutputFormat());
+                mMuxer.start();
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+            ByteBuffer data = mEncoder.getOutputBuffer(index);
+            boolean codecConfig = 0 != (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            if (null != data && !codecConfig && info.size > 0 && mTrackIndex >= 0) {
+                data.position(info.offset);
+                data.limit(info.offset + info.size);
+                mMuxer.writeSampleData(mTrackIndex, data, info);
+                writePose(info.presentationTimeUs, pose);
+                mFrames++;
+            }
+            mEncoder.releaseOutputBuffer(index, false);
+            if (0 != (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM)) {
+                return;
+            }
+        }
+    }
+
+    private void writePose(long presentationTimeUs, float[] pose) {
+        String line;
+        if (mPoseHistory.getPose(presentationTimeUs * 1000 + mPoseTimeOffset, pose)) {
+            line = String.format(Locale.US, "%d %.5f %.5f %.5f %.5f\n", presentationTimeUs,
+                    pose[0], pose[1], pose[2], pose[3]);
+        } else {
+            line = presentationTimeUs + " nan nan nan nan\n";
+        }
+        try {
+            mPoseWriter.write(line);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
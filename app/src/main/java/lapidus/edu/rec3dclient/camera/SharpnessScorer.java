@@ -0,0 +1,131 @@
+package lapidus.edu.rec3dclient.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Scores the sharpness of analysis frames as the variance of their Laplacian. Blurry frames have
+ * few strong edges and therefore a low variance.
+ * <p>
+ * The score is computed in a single pass over the luma plane and never allocates, so it can run
+ * on every frame delivered by {@link AnalysisStage}. The scores of the last {@link #HISTORY}
+ * frames are kept, so that a still can be given the score of the preview frame exposed closest
+ * to it.
+ */
+public class SharpnessScorer implements FrameAnalyzer {
+
+    private static final int HISTORY = 16;
+
+    /**
+     * Only every {@code mStep}-th pixel in each direction is scored.
+     */
+    private final int mStep;
+
+    private volatile float mScore;
+
+    private volatile long mTimestamp;
+
+    private final float[] mScores = new float[HISTORY];
+
+    private final long[] mTimestamps = new long[HISTORY];
+
+    private int mNext;
+
+    private int mCount;
+
+    public SharpnessScorer() {
+        this(1);
+    }
+
+    /**
+     * @param step Sampling step in pixels, to trade precision for speed on large frames
+     */
+    public SharpnessScorer(int step) {
+        mStep = Math.max(1, step);
+    }
+
+    @Override
+    public void analyze(byte[] luma, int width, int height, long timestamp) {
+        long sum = 0;
+        long sumOfSquares = 0;
+        long count = 0;
+        for (int y = 1; y < height - 1; y += mStep) {
+            int row = y * width;
+            for (int x = 1; x < width - 1; x += mStep) {
+                int i = row + x;
+                int laplacian = (luma[i - 1] & 0xff) + (luma[i + 1] & 0xff)
+                        + (luma[i - width] & 0xff) + (luma[i + width] & 0xff)
+                        - 4 * (luma[i] & 0xff);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        double mean = (double) sum / count;
+        float score = (float) ((double) sumOfSquares / count - mean * mean);
+        synchronized (mScores) {
+            mScores[mNext] = score;
+            mTimestamps[mNext] = timestamp;
+            mNext = (mNext + 1) % HISTORY;
+            mCount = Math.min(HISTORY, mCount + 1);
+        }
+        mScore = score;
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Returns the score of the most recently analyzed frame.
+     */
+    public float getScore() {
+        return mScore;
+    }
+
+    /**
+     * Returns the score of the recent frame whose sensor timestamp is closest to
+     * {@code timestamp}, or the latest score if no frame was analyzed yet.
+     */
+    public float getScore(long timestamp) {
+        synchronized (mScores) {
+            int best = -1;
+            for (int i = 0; i < mCount; i++) {
+                if (best < 0 || Math.abs(mTimestamps[i] - timestamp)
+                        < Math.abs(mTimestamps[best] - timestamp)) {
+                    best = i;
+                }
+            }
+            return best < 0 ? mScore : mScores[best];
+        }
+    }
+
+    /**
+     * Returns the sensor timestamp of the frame {@link #getScore()} belongs to.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Picks the least sharp frames of a session, e.g. to leave them out of an upload.
+     *
+     * @param records  The frames of the session
+     * @param fraction The fraction of frames to drop, between 0 and 1
+     * @return The records to drop, least sharp first
+     */
+    public static List<FrameRecord> selectDroppable(List<FrameRecord> records, float fraction) {
+        List<FrameRecord> sorted = new ArrayList<>(records);
+        Collections.sort(sorted, new Comparator<FrameRecord>() {
+            @Override
+            public int compare(FrameRecord lhs, FrameRecord rhs) {
+                return Float.compare(lhs.sharpness, rhs.sharpness);
+            }
+        });
+        int count = (int) (sorted.size() * fraction);
+        return sorted.subList(0, count);
+    }
+
+}
@@ -0,0 +1,60 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * Reads the battery state from the sticky {@link Intent#ACTION_BATTERY_CHANGED} broadcast. No
+ * receiver stays registered, the last broadcast is fetched again on every {@link #refresh()}.
+ */
+public class StickyBatterySource implements BatterySource {
+
+    private static final IntentFilter FILTER = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+
+    private final Context mContext;
+
+    /**
+     * The broadcast read by the last {@link #refresh()}, or {@code null}.
+     */
+    private Intent mStatus;
+
+    public StickyBatterySource(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public void refresh() {
+        mStatus = mContext.registerReceiver(null, FILTER);
+    }
+
+    @Override
+    public float getTemperature() {
+        Intent status = mStatus;
+        if (null == status) {
+            return Float.NaN;
+        }
+        // Reported in tenths of a degree.
+        int temperature = status.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+        return Integer.MIN_VALUE == temperature ? Float.NaN : temperature / 10f;
+    }
+
+    @Override
+    public float getLevel() {
+        Intent status = mStatus;
+        if (null == status) {
+            return Float.NaN;
+        }
+        int level = status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = status.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level < 0 || scale <= 0 ? Float.NaN : level / (float) scale;
+    }
+
+    @Override
+    public boolean isCharging() {
+        Intent status = mStatus;
+        return null != status && 0 != status.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+    }
+
+}
@@ -0,0 +1,290 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.hardware.SensorManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import lapidus.edu.rec3dclient.Clock;
+
+/**
+ * Steps the capture workload down before the platform starts throttling the device.
+ * <p>
+ * The governor looks at the battery temperature and charge level and at the preview frame
+ * interval, which stretches once the platform throttles the camera pipeline. It picks one of four
+ * tiers; each tier lowers the automatic capture rate, the sensor rate of the orientation filter
+ * and the share of preview frames that are analyzed. Tiers go up as soon as a threshold is
+ * crossed, but only come down one at a time after a dwell time and once the temperature is clearly
+ * below the threshold, so that the workload doesn't oscillate around it.
+ * <p>
+ * The frame interval is compared with the best one since the capture session was set up. Frames
+ * whose exposure fills their frame duration are left out, since auto exposure stretches those in
+ * low light without any heat involved.
+ */
+public class ThermalGovernor {
+
+    public static final int TIER_NORMAL = 0;
+    public static final int TIER_WARM = 1;
+    public static final int TIER_HOT = 2;
+    public static final int TIER_CRITICAL = 3;
+
+    private static final String[] TIER_NAMES = {"normal", "warm", "hot", "critical"};
+
+    /**
+     * Battery temperature in degrees Celsius from which each tier applies.
+     */
+    private static final float[] TEMPERATURE_THRESHOLDS = {Float.NEGATIVE_INFINITY, 38, 41, 44};
+
+    /**
+     * How far in degrees the temperature must fall below a threshold to leave its tier.
+     */
+    private static final float COOL_DOWN_MARGIN = 1.5f;
+
+    private static final float LOW_BATTERY_LEVEL = 0.15f;
+    private static final float CRITICAL_BATTERY_LEVEL = 0.05f;
+
+    /**
+     * Frame interval, relative to the best one seen, from which frames count as slowed down.
+     */
+    private static final float SLOW_FRAMES = 1.5f;
+    private static final float VERY_SLOW_FRAMES = 2f;
+
+    private static final int[] CAPTURE_INTERVAL_SCALES = {1, 2, 4, 8};
+
+    private static final int[] SENSOR_DELAYS = {SensorManager.SENSOR_DELAY_FASTEST,
+            SensorManager.SENSOR_DELAY_GAME, SensorManager.SENSOR_DELAY_UI,
+            SensorManager.SENSOR_DELAY_UI};
+
+    private static final int[] ANALYSIS_STRIDES = {1, 2, 4, 8};
+
+    private static final long EVALUATE_INTERVAL_MS = 5000;
+
+    /**
+     * Minimum time spent in a tier before stepping down from it.
+     */
+    private static final long MIN_DWELL_MS = 30000;
+
+    /**
+     * Frame intervals longer than this are gaps in the stream, not slow frames.
+     */
+    private static final long MAX_FRAME_INTERVAL_NS = 1000000000L;
+
+    private static final float FRAME_SMOOTHING = 0.05f;
+
+    /**
+     * Number of frames averaged before the frame interval is trusted.
+     */
+    private static final int WARMUP_FRAMES = 30;
+
+    /**
+     * Share of the frame duration from which the exposure limits the frame rate.
+     */
+    private static final float EXPOSURE_BOUND = 0.9f;
+
+    private static final int MAX_HISTORY = 32;
+
+    /**
+     * Notified whenever the governor changes tiers.
+     */
+    public interface Listener {
+
+        /**
+         * @param reason The readings that caused the change, for the log
+         */
+        void onTierChanged(int oldTier, int newTier, String reason);
+
+    }
+
+    private final BatterySource mBattery;
+
+    private final Clock mClock;
+
+    private Listener mListener;
+
+    private int mTier = TIER_NORMAL;
+
+    private long mLastChange;
+
+    private long mLastEvaluation;
+
+    private long mLastFrameTimestamp;
+
+    private int mFrames;
+
+    private float mFrameInterval;
+
+    private float mBestFrameInterval = Float.MAX_VALUE;
+
+    private final List<String> mHistory = new ArrayList<>();
+
+    public ThermalGovernor(BatterySource battery, Clock clock) {
+        mBattery = battery;
+        mClock = clock;
+        mLastChange = clock.elapsedRealtime();
+        mLastEvaluation = mLastChange;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public static String getTierName(int tier) {
+        return TIER_NAMES[tier];
+    }
+
+    public synchronized int getTier() {
+        return mTier;
+    }
+
+    /**
+     * @return The factor applied to the minimum interval between automatic captures
+     */
+    public synchronized int getCaptureIntervalScale() {
+        return CAPTURE_INTERVAL_SCALES[mTier];
+    }
+
+    /**
+     * @return The {@link SensorManager} rate for the gyroscope
+     */
+    public synchronized int getSensorDelay() {
+        return SENSOR_DELAYS[mTier];
+    }
+
+    /**
+     * @return Only one preview frame in this many is analyzed
+     */
+    public synchronized int getAnalysisStride() {
+        return ANALYSIS_STRIDES[mTier];
+    }
+
+    /**
+     * @return The tier changes so far, oldest first
+     */
+    public synchronized List<String> getHistory() {
+        return new ArrayList<>(mHistory);
+    }
+
+    /**
+     * Returns how much longer the current frame interval is than the best one seen, or 1 while
+     * there is not enough data.
+     */
+    public synchronized float getFrameSlowdown() {
+        if (mFrames < WARMUP_FRAMES || Float.MAX_VALUE == mBestFrameInterval) {
+            return 1;
+        }
+        return mFrameInterval / mBestFrameInterval;
+    }
+
+    /**
+     * Forgets the frame intervals seen so far, e.g. when the capture session is set up again with
+     * other outputs or frame rates.
+     */
+    public synchronized void resetFrames() {
+        mLastFrameTimestamp = 0;
+        mFrames = 0;
+        mFrameInterval = 0;
+        mBestFrameInterval = Float.MAX_VALUE;
+    }
+
+    /**
+     * Called for every preview frame. Re-evaluates the tier every few seconds.
+     *
+     * @param timestamp     The sensor timestamp of the frame in nanoseconds
+     * @param frameDuration The reported frame duration in nanoseconds, or 0 if unknown
+     * @param exposureTime  The reported exposure time in nanoseconds, or 0 if unknown
+     */
+    public synchronized void onFrame(long timestamp, long frameDuration, long exposureTime) {
+        long interval = timestamp - mLastFrameTimestamp;
+        mLastFrameTimestamp = timestamp;
+        if (frameDuration > 0 && exposureTime >= EXPOSURE_BOUND * frameDuration) {
+            // Slowed down by the exposure; the interval to the next frame is not counted either.
+            mLastFrameTimestamp = 0;
+        } else if (interval > 0 && interval < MAX_FRAME_INTERVAL_NS) {
+            mFrames++;
+            if (1 == mFrames) {
+                mFrameInterval = interval;
+            } else {
+                mFrameInterval += FRAME_SMOOTHING * (interval - mFrameInterval);
+            }
+            if (mFrames >= WARMUP_FRAMES) {
+                mBestFrameInterval = Math.min(mBestFrameInterval, mFrameInterval);
+            }
+        }
+        if (mClock.elapsedRealtime() - mLastEvaluation >= EVALUATE_INTERVAL_MS) {
+            evaluate();
+        }
+    }
+
+    /**
+     * Reads the battery and picks the tier.
+     *
+     * @return Whether the tier changed
+     */
+    public synchronized boolean evaluate() {
+        long now = mClock.elapsedRealtime();
+        mLastEvaluation = now;
+
+        mBattery.refresh();
+        float temperature = mBattery.getTemperature();
+        float level = mBattery.getLevel();
+        boolean charging = mBattery.isCharging();
+        float slowdown = getFrameSlowdown();
+
+        int target = TIER_NORMAL;
+        String cause = "conditions back to normal";
+        for (int tier = TIER_CRITICAL; tier > TIER_NORMAL; tier--) {
+            float threshold = TEMPERATURE_THRESHOLDS[tier];
+            if (tier <= mTier) {
+                threshold -= COOL_DOWN_MARGIN;
+            }
+            if (temperature >= threshold) {
+                target = tier;
+                cause = "battery temperature";
+                break;
+            }
+        }
+        if (!charging) {
+            int tier = level < CRITICAL_BATTERY_LEVEL ? TIER_HOT
+                    : level < LOW_BATTERY_LEVEL ? TIER_WARM : TIER_NORMAL;
+            if (tier > target) {
+                target = tier;
+                cause = "battery level";
+            }
+        }
+        int frameTier = slowdown >= VERY_SLOW_FRAMES ? TIER_HOT
+                : slowdown >= SLOW_FRAMES ? TIER_WARM : TIER_NORMAL;
+        if (frameTier > target) {
+            target = frameTier;
+            cause = "slow frames";
+        }
+
+        if (target < mTier) {
+            if (now - mLastChange < MIN_DWELL_MS) {
+                return false;
+            }
+            target = mTier - 1;
+            cause = "easing off, now limited by " + cause;
+        }
+        if (target == mTier) {
+            return false;
+        }
+
+        String reason = String.format(Locale.US,
+                "%s (battery %.1f C, %.0f%%%s, frames %.2fx slower)", cause, temperature,
+                level * 100, charging ? " charging" : "", slowdown);
+        int oldTier = mTier;
+        mTier = target;
+        mLastChange = now;
+        mHistory.add(now + " " + TIER_NAMES[oldTier] + " -> " + TIER_NAMES[target] + ": "
+                + reason);
+        if (mHistory.size() > MAX_HISTORY) {
+            mHistory.remove(0);
+        }
+        if (null != mListener) {
+            mListener.onTierChanged(oldTier, target, reason);
+        }
+        return true;
+    }
+
+}
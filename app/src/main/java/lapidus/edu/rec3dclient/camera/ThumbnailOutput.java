@@ -0,0 +1,184 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A small JPEG {@link ImageReader} that is targeted by the same still request as the full size
+ * output, so that the camera encodes a thumbnail of every frame from the same exposure.
+ * <p>
+ * The two outputs arrive independently. They are paired by sensor timestamp: the full frame
+ * announces where its thumbnail goes with {@link #expect}, and whichever of the two arrives last
+ * triggers the write. All methods but {@link #close()} must be called on the handler thread
+ * passed to the constructor.
+ */
+public class ThumbnailOutput implements ImageReader.OnImageAvailableListener {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "ThumbnailOutput";
+
+    /**
+     * Smallest width we consider for thumbnails.
+     */
+    private static final int MIN_THUMBNAIL_WIDTH = 320;
+
+    /**
+     * Number of unpaired thumbnails or files kept before the oldest is given up on.
+     */
+    private static final int MAX_PENDING = 2;
+
+    private final ImageReader mImageReader;
+
+    private final Handler mCameraHandler;
+
+    /**
+     * Thumbnails whose full frame hasn't arrived yet, by timestamp.
+     */
+    private final LongSparseArray<Image> mPendingImages = new LongSparseArray<>();
+
+    /**
+     * Files of full frames whose thumbnail hasn't arrived yet, by timestamp.
+     */
+    private final LongSparseArray<File> mPendingFiles = new LongSparseArray<>();
+
+    private byte[] mBytes = new byte[0];
+
+    private final Runnable mCloseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < mPendingImages.size(); i++) {
+                mPendingImages.valueAt(i).close();
+            }
+            mPendingImages.clear();
+            mPendingFiles.clear();
+            mImageReader.close();
+        }
+    };
+
+    /**
+     * @param size          The size of the thumbnails
+     * @param cameraHandler The handler on which the {@link ImageReader} delivers frames
+     */
+    public ThumbnailOutput(Size size, Handler cameraHandler) {
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.JPEG, /*maxImages*/MAX_PENDING + 1);
+        mImageReader.setOnImageAvailableListener(this, cameraHandler);
+        mCameraHandler = cameraHandler;
+    }
+
+    /**
+     * Picks the smallest JPEG size at least {@link #MIN_THUMBNAIL_WIDTH} wide that matches the
+     * aspect ratio of the still output, falling back to the smallest size with that aspect ratio.
+     */
+    public static Size chooseSize(Size[] choices, Size aspectRatio) {
+        Size best = null;
+        Size smallest = null;
+        int w = aspectRatio.getWidth();
+        int h = aspectRatio.getHeight();
+        for (Size option : choices) {
+            if ((long) option.getHeight() * w != (long) option.getWidth() * h) {
+                continue;
+            }
+            long area = (long) option.getWidth() * option.getHeight();
+            if (null == smallest || area < (long) smallest.getWidth() * smallest.getHeight()) {
+                smallest = option;
+            }
+            if (option.getWidth() >= MIN_THUMBNAIL_WIDTH &&
+                    (null == best || area < (long) best.getWidth() * best.getHeight())) {
+                best = option;
+            }
+        }
+        return null != best ? best : smallest;
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Announces that the thumbnail of the frame exposed at {@code timestamp} goes to {@code file}.
+     */
+    public void expect(long timestamp, File file) {
+        Image image = mPendingImages.get(timestamp);
+        if (null != image) {
+            mPendingImages.remove(timestamp);
+            save(image, file);
+            return;
+        }
+        mPendingFiles.put(timestamp, file);
+        if (mPendingFiles.size() > MAX_PENDING) {
+            Log.w(TAG, "No thumbnail for " + mPendingFiles.valueAt(0));
+            mPendingFiles.removeAt(0);
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (null == image) {
+            return;
+        }
+        long timestamp = image.getTimestamp();
+        File file = mPendingFiles.get(timestamp);
+        if (null != file) {
+            mPendingFiles.remove(timestamp);
+            save(image, file);
+            return;
+        }
+        mPendingImages.put(timestamp, image);
+        if (mPendingImages.size() > MAX_PENDING) {
+            mPendingImages.valueAt(0).close();
+            mPendingImages.removeAt(0);
+        }
+    }
+
+    private void save(Image image, File file) {
+        FileOutputStream output = null;
+        try {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            int size = buffer.remaining();
+            if (mBytes.length < size) {
+                mBytes = new byte[size];
+            }
+            buffer.get(mBytes, 0, size);
+            output = new FileOutputStream(file);
+            output.write(mBytes, 0, size);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            image.close();
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the unpaired thumbnails and closes the {@link ImageReader}. May be called on any
+     * thread: the work is done on the handler thread, after the frames already delivered, or
+     * right away if that thread has stopped.
+     */
+    public void close() {
+        if (!mCameraHandler.post(mCloseRunnable)) {
+            mCloseRunnable.run();
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.media.Image;
+import android.media.ImageReader;
+
+import lapidus.edu.rec3dclient.Clock;
+
+/**
+ * Keeps the most recent full-resolution frames of a repeating request for zero-shutter-lag
+ * capture.
+ * <p>
+ * The ring holds {@link Image}s straight from the {@link ImageReader}, so nothing is copied. When
+ * it is full the oldest frame is closed to give its buffer back to the camera. The reader must
+ * be created with at least {@code capacity + 2} max images so the camera always has a free buffer.
+ * The bytes of the frames in the ring are reserved in a {@link MemoryBudget}.
+ */
+public class ZslRingBuffer implements ImageReader.OnImageAvailableListener {
+
+    private final Image[] mImages;
+
+    /**
+     * Size in bytes of each frame in {@link #mImages}.
+     */
+    private final int[] mSizes;
+
+    /**
+     * Time each frame in {@link #mImages} arrived, in the time base of the sensor timestamps.
+     */
+    private final long[] mArrivals;
+
+    private final MemoryBudget mMemoryBudget;
+
+    private final Clock mSensorClock;
+
+    private long mBytes;
+
+    private long mTakenArrival;
+
+    /**
+     * Index of the oldest frame in {@link #mImages}.
+     */
+    private int mHead;
+
+    private int mCount;
+
+    /**
+     * @param sensorClock Reads the time base of the sensor timestamps in
+     *                    {@link Clock#elapsedRealtimeNanos()}
+     */
+    public ZslRingBuffer(int capacity, MemoryBudget memoryBudget, Clock sensorClock) {
+        mImages = new Image[capacity];
+        mSizes = new int[capacity];
+        mArrivals = new long[capacity];
+        mMemoryBudget = memoryBudget;
+        mSensorClock = sensorClock;
+    }
+
+    @Override
+    public synchronized void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (null == image) {
+            return;
+        }
+        long arrival = mSensorClock.elapsedRealtimeNanos();
+        if (mCount == mImages.length) {
+            mImages[mHead].close();
+            mImages[mHead] = null;
+            mBytes -= mSizes[mHead];
+            mHead = (mHead + 1) % mImages.length;
+            mCount--;
+        }
+        int slot = (mHead + mCount) % mImages.length;
+        mImages[slot] = image;
+        mSizes[slot] = image.getPlanes()[0].getBuffer().remaining();
+        mArrivals[slot] = arrival;
+        mBytes += mSizes[slot];
+        mCount++;
+        mMemoryBudget.setReserved(mBytes);
+    }
+
+    /**
+     * Takes the frame whose sensor timestamp is closest to {@code timestamp} out of the ring and
+     * releases all the others.
+     *
+     * @param timestamp The trigger time in the time base of the sensor timestamps
+     * @return The frame, owned by the caller, or {@code null} if the ring is empty
+     */
+    public synchronized Image take(long timestamp) {
+        Image best = null;
+        int bestSlot = -1;
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mHead + i) % mImages.length;
+            Image image = mImages[slot];
+            if (null == best || Math.abs(image.getTimestamp() - timestamp) <
+                    Math.abs(best.getTimestamp() - timestamp)) {
+                best = image;
+                bestSlot = slot;
+            }
+        }
+        if (bestSlot >= 0) {
+            mImages[bestSlot] = null;
+            mTakenArrival = mArrivals[bestSlot];
+        }
+        clear();
+        return best;
+    }
+
+    /**
+     * Returns the time the frame last returned by {@link #take} arrived from the camera, in the
+     * time base of the sensor timestamps.
+     */
+    public synchronized long getTakenArrivalTime() {
+        return mTakenArrival;
+    }
+
+    /**
+     * Closes every frame in the ring.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mImages.length; i++) {
+            if (null != mImages[i]) {
+                mImages[i].close();
+                mImages[i] = null;
+            }
+        }
+        mHead = 0;
+        mCount = 0;
+        mBytes = 0;
+        mMemoryBudget.setReserved(0);
+    }
+
+}
@@ -0,0 +1,316 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lapidus.edu.rec3dclient.Clock;
+
+/**
+ * A member of a multi-device session: joins a {@link ClockSyncServer}, keeps estimating how its
+ * clock maps onto the clock of the coordinator and reports the time of its frames, until each
+ * is confirmed.
+ * <p>
+ * Probes go out in a quick burst after joining and then once per {@link #PROBE_INTERVAL_MS}.
+ * Frames are sent with the current clock estimate once the estimate is usable; the coordinator
+ * places them with the last estimate it got. If the coordinator stays silent for
+ * {@link #REJOIN_TIMEOUT_MS}, e.g. because it was restarted, the member joins again.
+ */
+public class ClockSyncClient implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long JOIN_INTERVAL_MS = 500;
+
+    private static final int BURST_PROBES = 16;
+
+    private static final long BURST_INTERVAL_MS = 50;
+
+    private static final long PROBE_INTERVAL_MS = 1000;
+
+    private static final long REPORT_INTERVAL_MS = 500;
+
+    private static final long REJOIN_TIMEOUT_MS = 5000;
+
+    /**
+     * Receives the events of the member on its thread.
+     */
+    public interface Listener {
+
+        void onJoined(int device);
+
+        /**
+         * Called once when the member stops.
+         *
+         * @param cause The error, or {@code null} if {@link #close()} was called
+         */
+        void onClosed(IOException cause);
+
+    }
+
+    private final String mHost;
+
+    private final int mPort;
+
+    private final String mName;
+
+    private final Clock mClock;
+
+    private final Listener mListener;
+
+    private final ClockSyncEstimator mEstimator;
+
+    private final long mProbeInterval;
+
+    /**
+     * Local exposure time by frame index, of frames not confirmed yet.
+     */
+    private final Map<Integer, Long> mPendingFrames = new LinkedHashMap<>();
+
+    private final ByteBuffer mOut = ByteBuffer.allocate(ClockSyncProtocol.MAX_DATAGRAM);
+
+    private volatile DatagramSocket mSocket;
+
+    private InetSocketAddress mAddress;
+
+    private final Thread mThread;
+
+    private volatile boolean mClosed;
+
+    private int mSession;
+
+    /**
+     * The number given by the coordinator, or -1 while not joined.
+     */
+    private volatile int mDevice = -1;
+
+    private int mProbes;
+
+    /**
+     * @param host  The coordinator, resolved on the thread of the member
+     * @param port  The port of the coordinator
+     * @param name  The name of this device, unique in the session
+     * @param clock The clock of the frame timestamps
+     */
+    public ClockSyncClient(String host, int port, String name, Clock clock, Listener listener) {
+        this(host, port, name, clock, new ClockSyncEstimator(), PROBE_INTERVAL_MS, listener);
+    }
+
+    /**
+     * @param estimator       Receives the exchanges, empty
+     * @param probeIntervalMs Time between probes after the first burst
+     */
+    ClockSyncClient(String host, int port, String name, Clock clock,
+            ClockSyncEstimator estimator, long probeIntervalMs, Listener listener) {
+        mHost = host;
+        mPort = port;
+        mName = name;
+        mClock = clock;
+        mEstimator = estimator;
+        mProbeInterval = probeIntervalMs;
+        mListener = listener;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "ClockSyncClient");
+        mThread.start();
+    }
+
+    /**
+     * Queues a frame for the session index.
+     *
+     * @param timeNanos The time the frame was exposed, on the clock given to the constructor
+     */
+    public void reportFrame(int index, long timeNanos) {
+        synchronized (mPendingFrames) {
+            mPendingFrames.put(index, timeNanos);
+        }
+    }
+
+    /**
+     * Whether the clock estimate is usable.
+     */
+    public boolean isSynchronized() {
+        return mDevice > 0 && mEstimator.isSynchronized();
+    }
+
+    /**
+     * Maps a local time onto the timeline of the session with the current estimate.
+     */
+    public long toSessionTime(long timeNanos) {
+        return mEstimator.toRemote(timeNanos);
+    }
+
+    public ClockSyncEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    private void loop() {
+        IOException cause = null;
+        try {
+            mAddress = new InetSocketAddress(mHost, mPort);
+            mSocket = new DatagramSocket();
+            byte[] data = new byte[ClockSyncProtocol.MAX_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            long nextJoin = 0;
+            long nextProbe = 0;
+            long nextReport = 0;
+            long heard = 0;
+            while (!mClosed) {
+                long now = mClock.elapsedRealtime();
+                long next;
+                if (mDevice < 0) {
+                    if (now >= nextJoin) {
+                        ClockSyncProtocol.putHeader(mOut, ClockSyncProtocol.TYPE_JOIN, 0, 0);
+                        mOut.put(mName.getBytes(UTF_8));
+                        send();
+                        nextJoin = now + JOIN_INTERVAL_MS;
+                    }
+                    next = nextJoin;
+                } else if (now - heard > REJOIN_TIMEOUT_MS) {
+                    mDevice = -1;
+                    mEstimator.clear();
+                    continue;
+                } else {
+                    if (now >= nextProbe) {
+                        probe();
+                        nextProbe = now + (++mProbes < BURST_PROBES ? BURST_INTERVAL_MS
+                                : mProbeInterval);
+                    }
+                    if (now >= nextReport) {
+                        if (mEstimator.isSynchronized()) {
+                            report();
+                        }
+                        nextReport = now + REPORT_INTERVAL_MS;
+                    }
+                    next = Math.min(nextProbe, nextReport);
+                }
+
+                mSocket.setSoTimeout((int) Math.max(1, next - now));
+                try {
+                    packet.setLength(data.length);
+                    mSocket.receive(packet);
+                    long received = mClock.elapsedRealtimeNanos();
+                    if (handle(ByteBuffer.wrap(data, 0, packet.getLength()), received)) {
+                        heard = mClock.elapsedRealtime();
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Time to send.
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                cause = e;
+            }
+        } finally {
+            if (null != mSocket) {
+                mSocket.close();
+            }
+        }
+        mListener.onClosed(cause);
+    }
+
+    private void send() throws IOException {
+        mSocket.send(new DatagramPacket(mOut.array(), mOut.position(), mAddress));
+    }
+
+    private void probe() throws IOException {
+        ClockSyncProtocol.putHeader(mOut, ClockSyncProtocol.TYPE_SYNC, mSession, mDevice);
+        // The send time goes in last, as late as possible.
+        mOut.putLong(mClock.elapsedRealtimeNanos());
+        send();
+    }
+
+    /**
+     * Sends the clock estimate and the oldest unconfirmed frames.
+     */
+    private void report() throws IOException {
+        ClockSyncProtocol.putHeader(mOut, ClockSyncProtocol.TYPE_FRAMES, mSession, mDevice);
+        mOut.putLong(mEstimator.getReference());
+        mOut.putLong(mEstimator.getOffset());
+        mOut.putDouble(mEstimator.getDrift());
+        int countPosition = mOut.position();
+        mOut.put((byte) 0);
+        int count = 0;
+        synchronized (mPendingFrames) {
+            Iterator<Map.Entry<Integer, Long>> frames = mPendingFrames.entrySet().iterator();
+            while (count < ClockSyncProtocol.MAX_FRAMES && frames.hasNext()) {
+                Map.Entry<Integer, Long> frame = frames.next();
+                mOut.putInt(frame.getKey());
+                mOut.putLong(frame.getValue());
+                count++;
+            }
+        }
+        mOut.put(countPosition, (byte) count);
+        send();
+    }
+
+    /**
+     * Handles one datagram from the coordinator.
+     *
+     * @return Whether it belongs to the session
+     */
+    private boolean handle(ByteBuffer datagram, long received) {
+        try {
+            if (ClockSyncProtocol.VERSION != datagram.get()) {
+                return false;
+            }
+            int type = datagram.get();
+            int session = datagram.getInt();
+            int device = datagram.getShort() & 0xffff;
+            if (ClockSyncProtocol.TYPE_WELCOME == type) {
+                if (mDevice < 0) {
+                    mSession = session;
+                    mDevice = device;
+                    mProbes = 0;
+                    mListener.onJoined(device);
+                }
+                return session == mSession;
+            }
+            if (session != mSession || device != mDevice) {
+                return false;
+            }
+            if (ClockSyncProtocol.TYPE_SYNC_REPLY == type) {
+                long sent = datagram.getLong();
+                long arrived = datagram.getLong();
+                long replied = datagram.getLong();
+                mEstimator.add(sent, arrived, replied, received);
+            } else if (ClockSyncProtocol.TYPE_FRAMES_ACK == type) {
+                int count = datagram.get() & 0xff;
+                synchronized (mPendingFrames) {
+                    for (int i = 0; i < count; i++) {
+                        mPendingFrames.remove(datagram.getInt());
+                    }
+                }
+            }
+            return true;
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops the member. Frames not confirmed yet are not sent.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mThread.interrupt();
+        DatagramSocket socket = mSocket;
+        if (null != socket) {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how a local clock maps onto the clock of a coordinator from NTP-style exchanges.
+ * <p>
+ * Every exchange gives the time the probe left (t0, local), arrived (t1, remote), the reply left
+ * (t2, remote) and arrived (t3, local). Assuming both directions take equally long, the remote
+ * clock is ahead by ((t1 - t0) + (t2 - t3)) / 2, give or take half the round trip delay
+ * (t3 - t0) - (t2 - t1). Exchanges delayed by queueing are the least accurate, so only the faster
+ * half of the last {@link #WINDOW} exchanges is used, and a straight line through their offsets
+ * gives both the offset and the drift, the rate at which the two clocks run apart.
+ */
+public class ClockSyncEstimator {
+
+    private static final int WINDOW = 64;
+
+    /**
+     * Exchanges needed before the estimate is used.
+     */
+    public static final int MIN_SAMPLES = 8;
+
+    /**
+     * Shortest time covered by the exchanges before drift is estimated, in nanoseconds. Over
+     * shorter spans the noise of single exchanges is mistaken for drift.
+     */
+    public static final long MIN_DRIFT_SPAN_NANOS = 10000000000L;
+
+    /**
+     * Largest drift believed, as a fraction: quartz oscillators stay well within 100 ppm.
+     */
+    private static final double MAX_DRIFT = 500e-6;
+
+    /**
+     * Local midpoint of each exchange.
+     */
+    private final long[] mTimes = new long[WINDOW];
+
+    private final long[] mOffsets = new long[WINDOW];
+
+    private final long[] mDelays = new long[WINDOW];
+
+    private final long[] mSorted = new long[WINDOW];
+
+    private int mNext;
+
+    private int mSize;
+
+    private long mReference;
+
+    private long mOffset;
+
+    private double mDrift;
+
+    private long mMinDelay;
+
+    private final long mMinDriftSpan;
+
+    public ClockSyncEstimator() {
+        this(MIN_DRIFT_SPAN_NANOS);
+    }
+
+    /**
+     * @param minDriftSpanNanos Shortest time covered by the exchanges before drift is estimated
+     */
+    public ClockSyncEstimator(long minDriftSpanNanos) {
+        mMinDriftSpan = minDriftSpanNanos;
+    }
+
+    /**
+     * Maps a local time onto the remote clock.
+     *
+     * @param reference The local time at which the remote clock is ahead by {@code offset}
+     * @param drift     The rate by which the remote clock runs faster, as a fraction
+     */
+    public static long toRemote(long local, long reference, long offset, double drift) {
+        return local + offset + Math.round(drift * (local - reference));
+    }
+
+    /**
+     * Adds one exchange, all times in nanoseconds.
+     */
+    public synchronized void add(long t0, long t1, long t2, long t3) {
+        long delay = (t3 - t0) - (t2 - t1);
+        if (delay < 0) {
+            // One of the clocks stepped.
+            return;
+        }
+        mTimes[mNext] = t0 + (t3 - t0) / 2;
+        mOffsets[mNext] = ((t1 - t0) + (t2 - t3)) / 2;
+        mDelays[mNext] = delay;
+        mNext = (mNext + 1) % WINDOW;
+        mSize = Math.min(WINDOW, mSize + 1);
+        fit();
+    }
+
+    private void fit() {
+        System.arraycopy(mDelays, 0, mSorted, 0, mSize);
+        Arrays.sort(mSorted, 0, mSize);
+        long limit = mSorted[(mSize - 1) / 2];
+        mMinDelay = mSorted[0];
+        mReference = mTimes[(mNext + WINDOW - 1) % WINDOW];
+
+        // Times relative to the newest exchange, so that doubles keep nanosecond precision.
+        double sumTime = 0;
+        double sumOffset = 0;
+        int count = 0;
+        long first = Long.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            if (mDelays[i] <= limit) {
+                sumTime += mTimes[i] - mReference;
+                sumOffset += mOffsets[i];
+                first = Math.min(first, mTimes[i]);
+                count++;
+            }
+        }
+        double meanTime = sumTime / count;
+        double meanOffset = sumOffset / count;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mDelays[i] <= limit) {
+                double time = mTimes[i] - mReference - meanTime;
+                covariance += time * (mOffsets[i] - meanOffset);
+                variance += time * time;
+            }
+        }
+        mDrift = 0;
+        if (mReference - first >= mMinDriftSpan && variance > 0) {
+            mDrift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, covariance / variance));
+        }
+        mOffset = Math.round(meanOffset - mDrift * meanTime);
+    }
+
+    /**
+     * Forgets all exchanges, e.g. when joining another coordinator.
+     */
+    public synchronized void clear() {
+        mSize = 0;
+        mNext = 0;
+        mOffset = 0;
+        mDrift = 0;
+    }
+
+    /**
+     * Whether enough exchanges were made for {@link #toRemote(long)} to be meaningful.
+     */
+    public synchronized boolean isSynchronized() {
+        return mSize >= MIN_SAMPLES;
+    }
+
+    /**
+     * Maps a local time onto the remote clock with the current estimate.
+     */
+    public synchronized long toRemote(long local) {
+        return toRemote(local, mReference, mOffset, mDrift);
+    }
+
+    /**
+     * @return The local time that {@link #getOffset()} refers to
+     */
+    public synchronized long getReference() {
+        return mReference;
+    }
+
+    /**
+     * @return How far the remote clock is ahead at {@link #getReference()}, in nanoseconds
+     */
+    public synchronized long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return How much faster the remote clock runs, as a fraction
+     */
+    public synchronized double getDrift() {
+        return mDrift;
+    }
+
+    /**
+     * @return Half the shortest round trip delay seen, a bound on the error of the offset
+     */
+    public synchronized long getUncertainty() {
+        return mMinDelay / 2;
+    }
+
+}
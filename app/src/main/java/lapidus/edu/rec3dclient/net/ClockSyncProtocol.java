@@ -0,0 +1,75 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants of the datagrams exchanged between {@link ClockSyncClient} and
+ * {@link ClockSyncServer}.
+ * <p>
+ * Every datagram starts with a header: the version (1 byte), the type (1 byte), the session id
+ * (4 bytes) and the device number (2 bytes), both 0 in a {@link #TYPE_JOIN}. A coordinator picks a
+ * new session id when it starts and ignores datagrams of other sessions; a member that hears
+ * nothing for a while joins again. All times are in nanoseconds.
+ */
+public final class ClockSyncProtocol {
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 1 + 1 + 4 + 2;
+
+    /**
+     * Asks to join: the payload is the UTF-8 name of the device.
+     */
+    public static final int TYPE_JOIN = 1;
+
+    /**
+     * Admits a device: the header carries the session and the number of the device.
+     */
+    public static final int TYPE_WELCOME = 2;
+
+    /**
+     * A probe: the time it was sent on the clock of the member (8 bytes).
+     */
+    public static final int TYPE_SYNC = 3;
+
+    /**
+     * The answer to a probe: the time of the probe, the time it arrived and the time the answer
+     * was sent on the clock of the coordinator (8 bytes each).
+     */
+    public static final int TYPE_SYNC_REPLY = 4;
+
+    /**
+     * The clock estimate of a member, as the reference time (8 bytes), offset (8 bytes) and drift
+     * (8 byte double) of {@link ClockSyncEstimator#toRemote(long, long, long, double)}, followed by
+     * the number of frames (1 byte) and, for each, its index (4 bytes) and the time it was
+     * exposed on the clock of the member (8 bytes).
+     */
+    public static final int TYPE_FRAMES = 5;
+
+    /**
+     * Confirms frames: their number (1 byte) and indices (4 bytes each).
+     */
+    public static final int TYPE_FRAMES_ACK = 6;
+
+    /**
+     * Small enough to avoid IP fragmentation on common links.
+     */
+    public static final int MAX_DATAGRAM = 1200;
+
+    public static final int MAX_FRAMES = (MAX_DATAGRAM - HEADER_SIZE - 8 - 8 - 8 - 1) / (4 + 8);
+
+    private ClockSyncProtocol() {
+    }
+
+    /**
+     * Writes a header into {@code buffer}, which is cleared first.
+     */
+    public static void putHeader(ByteBuffer buffer, int type, int session, int device) {
+        buffer.clear();
+        buffer.put((byte) VERSION);
+        buffer.put((byte) type);
+        buffer.putInt(session);
+        buffer.putShort((short) device);
+    }
+
+}
@@ -0,0 +1,236 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import lapidus.edu.rec3dclient.Clock;
+
+/**
+ * The coordinator of a multi-device session: admits {@link ClockSyncClient} members, answers
+ * their clock probes with its own clock, which is the common timeline of the session, and
+ * collects their frames into a {@link SessionIndex}. The coordinator is device 0 of the session
+ * and reports its own frames with {@link #reportFrame}.
+ */
+public class ClockSyncServer implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int WRITE_INTERVAL_MS = 5000;
+
+    /**
+     * Receives the events of the coordinator on its thread.
+     */
+    public interface Listener {
+
+        void onJoined(int device, String name);
+
+        /**
+         * Called once when the coordinator stops.
+         *
+         * @param cause The error, or {@code null} if {@link #close()} was called
+         */
+        void onClosed(IOException cause);
+
+    }
+
+    private final Clock mClock;
+
+    private final File mIndexFile;
+
+    private final Listener mListener;
+
+    private final SessionIndex mIndex = new SessionIndex();
+
+    private final int mSession;
+
+    /**
+     * Device number by name, so that a member joining again keeps its number.
+     */
+    private final Map<String, Integer> mDevices = new HashMap<>();
+
+    private final DatagramSocket mSocket;
+
+    private final Thread mThread;
+
+    private volatile boolean mClosed;
+
+    /**
+     * @param port      The UDP port, or 0 for any
+     * @param clock     The clock of the session
+     * @param name      The name of this device
+     * @param indexFile Where the index is written every few seconds and when closing, or
+     *                  {@code null}
+     */
+    public ClockSyncServer(int port, Clock clock, String name, File indexFile, Listener listener)
+            throws IOException {
+        mClock = clock;
+        mIndexFile = indexFile;
+        mListener = listener;
+        mSession = new Random().nextInt(Integer.MAX_VALUE - 1) + 1;
+        mIndex.addDevice(0, name);
+        mSocket = new DatagramSocket(port);
+        mSocket.setSoTimeout(WRITE_INTERVAL_MS);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "ClockSyncServer");
+        mThread.start();
+    }
+
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    public SessionIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Records a frame of this device.
+     *
+     * @param timeNanos The time the frame was exposed, on the clock given to the constructor
+     */
+    public void reportFrame(int index, long timeNanos) {
+        mIndex.addFrame(0, index, timeNanos);
+    }
+
+    private void serve() {
+        byte[] data = new byte[ClockSyncProtocol.MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        ByteBuffer reply = ByteBuffer.allocate(ClockSyncProtocol.MAX_DATAGRAM);
+        IOException cause = null;
+        long writeTime = mClock.elapsedRealtime();
+        try {
+            while (!mClosed) {
+                try {
+                    packet.setLength(data.length);
+                    mSocket.receive(packet);
+                    long received = mClock.elapsedRealtimeNanos();
+                    if (handle(ByteBuffer.wrap(data, 0, packet.getLength()), received, reply)) {
+                        if (ClockSyncProtocol.TYPE_SYNC_REPLY == reply.get(1)) {
+                            // The send time goes in last, as late as possible.
+                            reply.putLong(mClock.elapsedRealtimeNanos());
+                        }
+                        mSocket.send(new DatagramPacket(reply.array(), reply.position(),
+                                packet.getSocketAddress()));
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Time to write the index.
+                }
+                long now = mClock.elapsedRealtime();
+                if (now - writeTime >= WRITE_INTERVAL_MS) {
+                    writeIndex();
+                    writeTime = now;
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                cause = e;
+            }
+        }
+        try {
+            writeIndex();
+        } catch (IOException e) {
+            if (null == cause) {
+                cause = e;
+            }
+        }
+        mListener.onClosed(cause);
+    }
+
+    private void writeIndex() throws IOException {
+        if (null != mIndexFile) {
+            mIndex.write(mIndexFile);
+        }
+    }
+
+    /**
+     * Handles one datagram.
+     *
+     * @param reply Receives the answer
+     * @return Whether to send the answer
+     */
+    private boolean handle(ByteBuffer datagram, long received, ByteBuffer reply) {
+        try {
+            if (ClockSyncProtocol.VERSION != datagram.get()) {
+                return false;
+            }
+            int type = datagram.get();
+            int session = datagram.getInt();
+            int device = datagram.getShort() & 0xffff;
+            if (ClockSyncProtocol.TYPE_JOIN == type) {
+                String name = new String(datagram.array(), datagram.position(),
+                        datagram.remaining(), UTF_8);
+                device = join(name);
+                ClockSyncProtocol.putHeader(reply, ClockSyncProtocol.TYPE_WELCOME, mSession,
+                        device);
+                return true;
+            }
+            if (session != mSession || 0 == device) {
+                return false;
+            }
+            if (ClockSyncProtocol.TYPE_SYNC == type) {
+                long sent = datagram.getLong();
+                ClockSyncProtocol.putHeader(reply, ClockSyncProtocol.TYPE_SYNC_REPLY, mSession,
+                        device);
+                reply.putLong(sent);
+                reply.putLong(received);
+                return true;
+            }
+            if (ClockSyncProtocol.TYPE_FRAMES == type) {
+                long reference = datagram.getLong();
+                long offset = datagram.getLong();
+                double drift = datagram.getDouble();
+                if (!mIndex.setClock(device, reference, offset, drift)) {
+                    return false;
+                }
+                int count = datagram.get() & 0xff;
+                ClockSyncProtocol.putHeader(reply, ClockSyncProtocol.TYPE_FRAMES_ACK, mSession,
+                        device);
+                reply.put((byte) count);
+                for (int i = 0; i < count; i++) {
+                    int index = datagram.getInt();
+                    mIndex.addFrame(device, index, datagram.getLong());
+                    reply.putInt(index);
+                }
+                return true;
+            }
+        } catch (BufferUnderflowException e) {
+            // Truncated, ignore.
+        }
+        return false;
+    }
+
+    private int join(String name) {
+        Integer device = mDevices.get(name);
+        if (null == device) {
+            device = mDevices.size() + 1;
+            mDevices.put(name, device);
+            mIndex.addDevice(device, name);
+            mListener.onJoined(device, name);
+        }
+        return device;
+    }
+
+    /**
+     * Stops the coordinator and writes the index a last time.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mSocket.close();
+    }
+
+}
@@ -0,0 +1,318 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One long-lived socket carrying many interleaved streams, framed as described in
+ * {@link MuxProtocol}.
+ * <p>
+ * Frames are written with gather writes, so the header and the payload leave in one system call
+ * without being copied together; file contents are mapped straight from their {@link FileChannel}.
+ * Writes from several threads are serialized frame by frame, so large files on different streams
+ * interleave instead of blocking each other. A reader thread delivers incoming frames to the
+ * {@link Listener} and applies the credit the peer grants.
+ */
+public class MuxConnection implements Closeable {
+
+    /**
+     * Receives incoming frames on the reader thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param payload The payload, only valid during the call
+         */
+        void onFrame(int type, int flags, int streamId, ByteBuffer payload);
+
+        /**
+         * Called once when the connection is closed, by either side or by an error.
+         *
+         * @param cause The error, or {@code null} if {@link #close()} was called
+         */
+        void onClosed(IOException cause);
+
+    }
+
+    /**
+     * Send credit of one stream.
+     */
+    private static class Stream {
+
+        int credit = MuxProtocol.INITIAL_CREDIT;
+
+    }
+
+    private final SocketChannel mChannel;
+
+    private final Listener mListener;
+
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Header of the frame being written, guarded by {@link #mWriteLock}.
+     */
+    private final ByteBuffer mHeader = ByteBuffer.allocateDirect(MuxProtocol.HEADER_SIZE);
+
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+
+    /**
+     * Payload of the file chunk being written, guarded by {@link #mWriteLock}. Reused, so that
+     * sending a file maps nothing and allocates nothing per chunk.
+     */
+    private final ByteBuffer mChunk = ByteBuffer.allocateDirect(MuxProtocol.MAX_PAYLOAD);
+
+    /**
+     * Open streams by id. Also the monitor that senders wait on for credit.
+     */
+    private final Map<Integer, Stream> mStreams = new HashMap<>();
+
+    private int mNextStreamId = 1;
+
+    private volatile boolean mClosed;
+
+    private final Thread mReaderThread;
+
+    private MuxConnection(SocketChannel channel, Listener listener) {
+        mChannel = channel;
+        mListener = listener;
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "MuxReader");
+    }
+
+    /**
+     * Connects to {@code address} and starts reading.
+     */
+    public static MuxConnection connect(InetSocketAddress address, Listener listener)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        return accept(channel, listener);
+    }
+
+    /**
+     * Wraps a connected channel, e.g. one accepted by a server, and starts reading.
+     */
+    public static MuxConnection accept(SocketChannel channel, Listener listener) {
+        MuxConnection connection = new MuxConnection(channel, listener);
+        connection.mReaderThread.start();
+        return connection;
+    }
+
+    /**
+     * Allocates a new stream with the initial credit.
+     */
+    public int openStream() throws IOException {
+        synchronized (mStreams) {
+            checkOpen();
+            for (int tries = 0; tries < MuxProtocol.MAX_STREAM_ID; tries++) {
+                int id = mNextStreamId;
+                mNextStreamId = mNextStreamId % MuxProtocol.MAX_STREAM_ID + 1;
+                if (!mStreams.containsKey(id)) {
+                    mStreams.put(id, new Stream());
+                    return id;
+                }
+            }
+            throw new IOException("No stream id available");
+        }
+    }
+
+    /**
+     * Releases a stream id once the stream is complete on both sides.
+     */
+    public void closeStream(int streamId) {
+        synchronized (mStreams) {
+            mStreams.remove(streamId);
+        }
+    }
+
+    /**
+     * Sends {@code payload} as a single frame. Data frames wait for enough credit.
+     */
+    public void send(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (payload.remaining() > MuxProtocol.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too large: " + payload.remaining());
+        }
+        if (MuxProtocol.isFlowControlled(type)) {
+            int needed = payload.remaining();
+            while (needed > 0) {
+                needed -= acquireCredit(streamId, needed);
+            }
+        }
+        writeFrame(type, flags, streamId, payload);
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code file} from {@code position} on a stream, as frames of at
+     * most {@link MuxProtocol#MAX_PAYLOAD} bytes sized by the available credit.
+     *
+     * @param endStream Whether to mark the last frame as the end of the stream
+     */
+    public void sendFile(int type, int streamId, FileChannel file, long position, long count,
+                         boolean endStream) throws IOException {
+        long end = position + count;
+        do {
+            int wanted = (int) Math.min(MuxProtocol.MAX_PAYLOAD, end - position);
+            int length = wanted > 0 ? acquireCredit(streamId, wanted) : 0;
+            int flags = endStream && position + length == end ? MuxProtocol.FLAG_END_STREAM : 0;
+            synchronized (mWriteLock) {
+                mChunk.clear();
+                mChunk.limit(length);
+                while (mChunk.hasRemaining()) {
+                    long at = position + mChunk.position();
+                    if (file.read(mChunk, at) < 0) {
+                        throw new EOFException("File ended at byte " + at);
+                    }
+                }
+                mChunk.flip();
+                writeFrame(type, flags, streamId, mChunk);
+            }
+            position += length;
+        } while (position < end);
+    }
+
+    /**
+     * Grants the peer {@code bytes} more credit on a stream.
+     */
+    public void grantCredit(int streamId, int bytes) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(bytes).flip();
+        writeFrame(MuxProtocol.TYPE_CREDIT, 0, streamId, payload);
+    }
+
+    /**
+     * Waits until the stream has credit and takes up to {@code wanted} bytes of it.
+     */
+    private int acquireCredit(int streamId, int wanted) throws IOException {
+        synchronized (mStreams) {
+            while (true) {
+                checkOpen();
+                Stream stream = mStreams.get(streamId);
+                if (null == stream) {
+                    throw new IOException("Stream " + streamId + " is not open");
+                }
+                if (stream.credit > 0) {
+                    int granted = Math.min(stream.credit, wanted);
+                    stream.credit -= granted;
+                    return granted;
+                }
+                try {
+                    mStreams.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for credit", e);
+                }
+            }
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException {
+        synchronized (mWriteLock) {
+            checkOpen();
+            MuxProtocol.putHeader(mHeader, type, flags, streamId, payload.remaining());
+            mGather[0] = mHeader;
+            mGather[1] = payload;
+            try {
+                while (payload.hasRemaining() || mHeader.hasRemaining()) {
+                    mChannel.write(mGather);
+                }
+            } catch (IOException e) {
+                closeWith(e);
+                throw e;
+            } finally {
+                mGather[1] = null;
+            }
+        }
+    }
+
+    private void read() {
+        ByteBuffer header = ByteBuffer.allocate(MuxProtocol.HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(MuxProtocol.MAX_PAYLOAD);
+        try {
+            while (!mClosed) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                int type = header.get() & 0xff;
+                int flags = header.get() & 0xff;
+                int streamId = header.getShort() & 0xffff;
+                int length = header.getInt();
+                if (length < 0 || length > MuxProtocol.MAX_PAYLOAD) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                payload.clear();
+                payload.limit(length);
+                readFully(payload);
+                payload.flip();
+                if (MuxProtocol.TYPE_CREDIT == type) {
+                    onCredit(streamId, payload.getInt());
+                } else {
+                    mListener.onFrame(type, flags, streamId, payload);
+                }
+            }
+        } catch (IOException e) {
+            closeWith(mClosed ? null : e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+        }
+    }
+
+    private void onCredit(int streamId, int bytes) {
+        synchronized (mStreams) {
+            Stream stream = mStreams.get(streamId);
+            if (null != stream) {
+                stream.credit += bytes;
+                mStreams.notifyAll();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void close() {
+        closeWith(null);
+    }
+
+    private void closeWith(IOException cause) {
+        synchronized (mStreams) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mStreams.notifyAll();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mListener.onClosed(cause);
+    }
+
+}
@@ -0,0 +1,108 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants of the framing protocol spoken by {@link MuxConnection}.
+ * <p>
+ * Every frame starts with an 8 byte big-endian header: the frame type (1 byte), flags (1 byte),
+ * the stream id (2 bytes) and the payload length (4 bytes), followed by the payload. Frames of
+ * different streams may be interleaved freely; the frames of one stream arrive in order.
+ * <p>
+ * Data frames (image chunks, pose records and sensor traces) are flow controlled per stream: a
+ * sender may only send as many payload bytes on a stream as the receiver granted, starting with
+ * {@link #INITIAL_CREDIT} and topped up by {@link #TYPE_CREDIT} frames. Reconstruction updates
+ * from the server are not: the client bounds what it keeps of them itself.
+ */
+public final class MuxProtocol {
+
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * A piece of an image file.
+     */
+    public static final int TYPE_IMAGE_CHUNK = 1;
+
+    /**
+     * A pose record: the frame index as a 4 byte integer, the scale of the image as 1 byte
+     * (the divisor of its width and height, 1 for the original) and the UTF-8 record. A
+     * thumbnail or reduced copy and the original of a frame share the index.
+     */
+    public static final int TYPE_POSE = 2;
+
+    /**
+     * Raw sensor samples.
+     */
+    public static final int TYPE_SENSOR_TRACE = 3;
+
+    /**
+     * A control message, whose first payload byte is one of the {@code CONTROL_} codes.
+     */
+    public static final int TYPE_CONTROL = 4;
+
+    /**
+     * Grants the peer more credit on a stream: the payload is a 4 byte byte count.
+     */
+    public static final int TYPE_CREDIT = 5;
+
+    /**
+     * A reconstruction update from the server, as decoded by {@link PointCloudDecoder}.
+     */
+    public static final int TYPE_POINT_CLOUD = 6;
+
+    /**
+     * Set on the last frame of a stream.
+     */
+    public static final int FLAG_END_STREAM = 1;
+
+    /**
+     * The stream was received completely and accepted.
+     */
+    public static final int CONTROL_ACK = 1;
+
+    /**
+     * The stream was rejected.
+     */
+    public static final int CONTROL_NACK = 2;
+
+    /**
+     * The server asks for frames in the order of the 4 byte frame indices that follow.
+     */
+    public static final int CONTROL_ORDER = 3;
+
+    /**
+     * Largest payload of a single frame.
+     */
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    /**
+     * Credit every stream starts with, in bytes.
+     */
+    public static final int INITIAL_CREDIT = 256 * 1024;
+
+    public static final int MAX_STREAM_ID = 0xffff;
+
+    private MuxProtocol() {
+    }
+
+    /**
+     * Whether frames of {@code type} consume stream credit.
+     */
+    public static boolean isFlowControlled(int type) {
+        return TYPE_CONTROL != type && TYPE_CREDIT != type && TYPE_POINT_CLOUD != type;
+    }
+
+    /**
+     * Writes a frame header into {@code header}, which is cleared first and flipped afterwards.
+     */
+    public static void putHeader(ByteBuffer header, int type, int flags, int streamId,
+                                 int length) {
+        header.clear();
+        header.put((byte) type);
+        header.put((byte) flags);
+        header.putShort((short) streamId);
+        header.putInt(length);
+        header.flip();
+    }
+
+}
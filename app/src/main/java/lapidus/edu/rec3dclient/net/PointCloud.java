@@ -0,0 +1,219 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.util.Arrays;
+
+/**
+ * The sparse reconstruction streamed back by the server, as the set of occupied cells of a
+ * regular grid.
+ * <p>
+ * A cell is named by the Morton code of its three 16-bit grid coordinates, which interleaves
+ * their bits, so cells that are close in space are mostly close in code order. Codes are kept in
+ * an open-addressing hash table of primitive arrays, allocated once: the cloud never holds more
+ * than the capacity given to the constructor and adds beyond it are refused.
+ * <p>
+ * Not thread safe.
+ */
+public class PointCloud {
+
+    /**
+     * Bits per grid coordinate.
+     */
+    public static final int BITS = 16;
+
+    private static final long EMPTY = -1;
+
+    private final long[] mCodes;
+
+    private final int mMask;
+
+    private final int mShift;
+
+    private final int mCapacity;
+
+    private int mSize;
+
+    private float mOriginX;
+
+    private float mOriginY;
+
+    private float mOriginZ;
+
+    private float mCellSize;
+
+    private final float[] mViewpoint = new float[3];
+
+    /**
+     * @param capacity The largest number of cells held
+     */
+    public PointCloud(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        // Keep the table at most three quarters full, so probe sequences stay short.
+        int slots = Integer.highestOneBit(capacity + capacity / 3) << 1;
+        mCodes = new long[slots];
+        Arrays.fill(mCodes, EMPTY);
+        mMask = slots - 1;
+        mShift = 64 - Integer.numberOfTrailingZeros(slots);
+        mCapacity = capacity;
+    }
+
+    /**
+     * Returns the Morton code of a cell.
+     *
+     * @param x The grid coordinates, each in [0, 2^{@link #BITS})
+     */
+    public static long encode(int x, int y, int z) {
+        return spread(x) | spread(y) << 1 | spread(z) << 2;
+    }
+
+    private static long spread(int value) {
+        long x = value & 0xffff;
+        x = (x | x << 16) & 0x1f0000ff0000ffL;
+        x = (x | x << 8) & 0x100f00f00f00f00fL;
+        x = (x | x << 4) & 0x10c30c30c30c30c3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+        return x;
+    }
+
+    private static int compact(long code) {
+        long x = code & 0x1249249249249249L;
+        x = (x | x >>> 2) & 0x10c30c30c30c30c3L;
+        x = (x | x >>> 4) & 0x100f00f00f00f00fL;
+        x = (x | x >>> 8) & 0x1f0000ff0000ffL;
+        x = (x | x >>> 16) & 0xffffL;
+        return (int) x;
+    }
+
+    /**
+     * Sets the grid that codes refer to. The cloud is cleared if the grid differs from the
+     * current one.
+     *
+     * @param cellSize The edge of a cell, in meters
+     */
+    public void setGrid(float originX, float originY, float originZ, float cellSize) {
+        if (originX != mOriginX || originY != mOriginY || originZ != mOriginZ
+                || cellSize != mCellSize) {
+            clear();
+            mOriginX = originX;
+            mOriginY = originY;
+            mOriginZ = originZ;
+            mCellSize = cellSize;
+        }
+    }
+
+    /**
+     * Sets the position of the camera of the last frame the server registered.
+     */
+    public void setViewpoint(float x, float y, float z) {
+        mViewpoint[0] = x;
+        mViewpoint[1] = y;
+        mViewpoint[2] = z;
+    }
+
+    /**
+     * @param out Receives the position set by {@link #setViewpoint}
+     */
+    public void getViewpoint(float[] out) {
+        System.arraycopy(mViewpoint, 0, out, 0, 3);
+    }
+
+    private int home(long code) {
+        return (int) ((code * 0x9e3779b97f4a7c15L) >>> mShift);
+    }
+
+    /**
+     * Adds a cell.
+     *
+     * @return Whether the cell is in the cloud now, i.e. {@code false} only if the cloud is full
+     */
+    public boolean add(long code) {
+        int slot = home(code);
+        while (EMPTY != mCodes[slot]) {
+            if (code == mCodes[slot]) {
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mSize == mCapacity) {
+            return false;
+        }
+        mCodes[slot] = code;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Removes a cell if present.
+     */
+    public void remove(long code) {
+        int slot = home(code);
+        while (code != mCodes[slot]) {
+            if (EMPTY == mCodes[slot]) {
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        // Move later entries of the probe sequence back into the hole, so that lookups never
+        // need to skip deleted slots.
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mMask;
+            long moved = mCodes[next];
+            if (EMPTY == moved) {
+                break;
+            }
+            int want = home(moved);
+            boolean stays = slot <= next ? slot < want && want <= next
+                    : slot < want || want <= next;
+            if (!stays) {
+                mCodes[slot] = moved;
+                slot = next;
+            }
+        }
+        mCodes[slot] = EMPTY;
+        mSize--;
+    }
+
+    public void clear() {
+        Arrays.fill(mCodes, EMPTY);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of slots, for iterating with {@link #isOccupied} and
+     * {@link #getPosition}
+     */
+    public int getSlotCount() {
+        return mCodes.length;
+    }
+
+    /**
+     * Whether a slot holds a cell. Cheaper than {@link #getPosition}, which decodes the cell.
+     */
+    public boolean isOccupied(int slot) {
+        return EMPTY != mCodes[slot];
+    }
+
+    /**
+     * Returns the center of the cell in a slot.
+     *
+     * @param out Receives x, y and z in meters, starting at {@code offset}
+     * @return Whether the slot holds a cell
+     */
+    public boolean getPosition(int slot, float[] out, int offset) {
+        long code = mCodes[slot];
+        if (EMPTY == code) {
+            return false;
+        }
+        out[offset] = mOriginX + (compact(code) + 0.5f) * mCellSize;
+        out[offset + 1] = mOriginY + (compact(code >>> 1) + 0.5f) * mCellSize;
+        out[offset + 2] = mOriginZ + (compact(code >>> 2) + 0.5f) * mCellSize;
+        return true;
+    }
+
+}
@@ -0,0 +1,222 @@
+package lapidus.edu.rec3dclient.net;
+
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Applies the reconstruction updates streamed by the server to a {@link PointCloud}, a little at
+ * a time, so that decoding never takes more than a given budget of a frame.
+ * <p>
+ * An update is one message. It starts with a header: the version (1 byte), flags (1 byte, see
+ * {@link #FLAG_RESET}), the origin of the grid and the edge of a cell in meters (4 floats), and
+ * the position of the camera of the last registered frame (3 floats). Then come the cells added
+ * and the cells removed, each list as a count followed by the {@link PointCloud} Morton codes in
+ * ascending order, every code as its difference to the previous one, all as unsigned varints.
+ * Neighbouring cells have close codes, so most cells take one or two bytes.
+ * <p>
+ * Messages are queued by {@link #offer} on the network thread and decoded by {@link #decode} on
+ * the thread that owns the cloud. The queue holds at most the given number of bytes: when the
+ * server sends faster than the cloud is updated, the oldest messages are dropped. The server is
+ * expected to send the whole cloud with {@link #FLAG_RESET} now and then, which repairs what was
+ * lost.
+ */
+public class PointCloudDecoder {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "PointCloudDecoder";
+
+    public static final int VERSION = 1;
+
+    /**
+     * The cloud is cleared before the cells of the message are added.
+     */
+    public static final int FLAG_RESET = 1;
+
+    public static final int HEADER_SIZE = 1 + 1 + 4 * 4 + 3 * 4;
+
+    /**
+     * Number of cells decoded between two looks at the clock.
+     */
+    static final int CELLS_PER_CHECK = 64;
+
+    private final PointCloud mCloud;
+
+    private final int mMaxPendingBytes;
+
+    private final ArrayDeque<byte[]> mPending = new ArrayDeque<>();
+
+    private int mPendingBytes;
+
+    private int mDroppedMessages;
+
+    /**
+     * The message being decoded, or {@code null}.
+     */
+    private ByteBuffer mMessage;
+
+    /**
+     * Whether the cells left in {@link #mMessage} are removed rather than added.
+     */
+    private boolean mRemoving;
+
+    private long mRemaining;
+
+    private long mPrevious;
+
+    private int mRefusedCells;
+
+    /**
+     * @param capacity        The largest number of cells kept
+     * @param maxPendingBytes The largest number of bytes of messages waiting to be decoded
+     */
+    public PointCloudDecoder(int capacity, int maxPendingBytes) {
+        mCloud = new PointCloud(capacity);
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Returns the cloud, which may only be used on the thread calling {@link #decode}.
+     */
+    public PointCloud getCloud() {
+        return mCloud;
+    }
+
+    /**
+     * Queues a message.
+     *
+     * @param message The message, copied before returning
+     */
+    public void offer(ByteBuffer message) {
+        int length = message.remaining();
+        if (length > mMaxPendingBytes) {
+            Log.w(TAG, "Dropping a message of " + length + " bytes");
+            return;
+        }
+        byte[] copy = new byte[length];
+        message.get(copy);
+        synchronized (mPending) {
+            while (mPendingBytes + length > mMaxPendingBytes) {
+                mPendingBytes -= mPending.removeFirst().length;
+                mDroppedMessages++;
+            }
+            mPending.addLast(copy);
+            mPendingBytes += length;
+        }
+    }
+
+    /**
+     * Applies queued messages to the cloud until they are all applied or the budget is spent.
+     * A message cut short is continued by the next call.
+     *
+     * @param budgetNanos The time that may be spent
+     * @return Whether messages are left to decode
+     */
+    public boolean decode(long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        int cells = 0;
+        while (true) {
+            if (null == mMessage && !next()) {
+                return false;
+            }
+            try {
+                while (mRemaining > 0) {
+                    mPrevious += getUnsignedVarint(mMessage);
+                    mRemaining--;
+                    if (mPrevious < 0 || mPrevious >= 1L << 3 * PointCloud.BITS) {
+                        throw new IllegalArgumentException("Cell code out of range");
+                    }
+                    if (mRemoving) {
+                        mCloud.remove(mPrevious);
+                    } else if (!mCloud.add(mPrevious)) {
+                        mRefusedCells++;
+                    }
+                    if (++cells % CELLS_PER_CHECK == 0 && System.nanoTime() >= deadline) {
+                        return true;
+                    }
+                }
+                if (!mRemoving) {
+                    mRemoving = true;
+                    mRemaining = getUnsignedVarint(mMessage);
+                    mPrevious = 0;
+                } else {
+                    mMessage = null;
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                Log.e(TAG, "Malformed message: " + e);
+                mMessage = null;
+            }
+        }
+    }
+
+    /**
+     * Starts decoding the oldest queued message.
+     *
+     * @return Whether there was one
+     */
+    private boolean next() {
+        while (true) {
+            byte[] bytes;
+            synchronized (mPending) {
+                bytes = mPending.pollFirst();
+                if (null == bytes) {
+                    return false;
+                }
+                mPendingBytes -= bytes.length;
+            }
+            ByteBuffer message = ByteBuffer.wrap(bytes);
+            try {
+                if (VERSION != message.get()) {
+                    throw new IllegalArgumentException("Unknown message version");
+                }
+                int flags = message.get();
+                mCloud.setGrid(message.getFloat(), message.getFloat(), message.getFloat(),
+                        message.getFloat());
+                if ((flags & FLAG_RESET) != 0) {
+                    mCloud.clear();
+                }
+                mCloud.setViewpoint(message.getFloat(), message.getFloat(), message.getFloat());
+                mRemaining = getUnsignedVarint(message);
+                mRemoving = false;
+                mPrevious = 0;
+                mMessage = message;
+                return true;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                Log.e(TAG, "Malformed message header: " + e);
+            }
+        }
+    }
+
+    static long getUnsignedVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * @return The number of messages dropped because the queue was full
+     */
+    public int getDroppedMessages() {
+        synchronized (mPending) {
+            return mDroppedMessages;
+        }
+    }
+
+    /**
+     * @return The number of cells not added because the cloud was full
+     */
+    public int getRefusedCells() {
+        return mRefusedCells;
+    }
+
+}
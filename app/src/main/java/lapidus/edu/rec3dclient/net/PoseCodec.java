@@ -0,0 +1,254 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact encoding of timestamped orientation quaternions for {@link PoseTelemetryPublisher}.
+ * <p>
+ * A quaternion is quantized with the smallest-three scheme: the component of largest magnitude is
+ * dropped (its sign is made positive, which doesn't change the rotation) and restored from the
+ * unit length, and the other three, which lie within +-1/sqrt(2), are stored as {@link #BITS}-bit
+ * integers.
+ * <p>
+ * A packet starts with a header: the version (1 byte), a sequence number (4 bytes), the time of
+ * the first sample in microseconds (8 bytes) and the number of samples (1 byte). Each sample then
+ * holds the index of the dropped component (1 byte), the time since the previous sample in
+ * microseconds, and the three components minus those of the previous sample, all as zigzag
+ * varints. The first sample, and a sample whose dropped component differs from the previous one,
+ * is coded against zero. Every packet decodes on its own, so losing one doesn't affect the next.
+ */
+public final class PoseCodec {
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 1 + 4 + 8 + 1;
+
+    /**
+     * Largest encoded size of one sample.
+     */
+    public static final int MAX_SAMPLE_SIZE = 1 + 10 + 3 * 5;
+
+    public static final int MAX_SAMPLES = 255;
+
+    /**
+     * Bits per stored component.
+     */
+    public static final int BITS = 16;
+
+    private static final float RANGE = (float) (1 / Math.sqrt(2));
+
+    private static final int SCALE = (1 << (BITS - 1)) - 1;
+
+    private PoseCodec() {
+    }
+
+    /**
+     * Quantizes a unit quaternion.
+     *
+     * @param q      The quaternion {w, x, y, z}
+     * @param values Receives the three remaining components, in order
+     * @return The index of the dropped component
+     */
+    public static int quantize(float[] q, int[] values) {
+        int largest = 0;
+        for (int i = 1; i < 4; i++) {
+            if (Math.abs(q[i]) > Math.abs(q[largest])) {
+                largest = i;
+            }
+        }
+        float sign = q[largest] < 0 ? -1 : 1;
+        for (int i = 0, j = 0; i < 4; i++) {
+            if (i != largest) {
+                float v = Math.max(-RANGE, Math.min(RANGE, sign * q[i]));
+                values[j++] = Math.round(v / RANGE * SCALE);
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Restores a quaternion quantized by {@link #quantize}.
+     *
+     * @param q Receives the quaternion {w, x, y, z}
+     */
+    public static void dequantize(int largest, int[] values, float[] q) {
+        float sum = 0;
+        for (int i = 0, j = 0; i < 4; i++) {
+            if (i != largest) {
+                q[i] = values[j++] * RANGE / SCALE;
+                sum += q[i] * q[i];
+            }
+        }
+        q[largest] = (float) Math.sqrt(Math.max(0, 1 - sum));
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    static long getVarint(ByteBuffer buffer) {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Writes one packet into a buffer.
+     */
+    public static class Packer {
+
+        private final int[] mValues = new int[3];
+
+        private final int[] mPrevious = new int[3];
+
+        private ByteBuffer mBuffer;
+
+        private int mCountPosition;
+
+        private int mCount;
+
+        private int mPreviousLargest;
+
+        private long mPreviousTimeUs;
+
+        /**
+         * Starts a packet at the position of {@code buffer}.
+         *
+         * @param timeUs The time of the first sample
+         */
+        public void start(ByteBuffer buffer, int sequence, long timeUs) {
+            mBuffer = buffer;
+            buffer.put((byte) VERSION);
+            buffer.putInt(sequence);
+            buffer.putLong(timeUs);
+            mCountPosition = buffer.position();
+            buffer.put((byte) 0);
+            mCount = 0;
+            mPreviousLargest = -1;
+            mPreviousTimeUs = timeUs;
+        }
+
+        /**
+         * Whether another sample is guaranteed to fit.
+         */
+        public boolean hasRoom() {
+            return mCount < MAX_SAMPLES && mBuffer.remaining() >= MAX_SAMPLE_SIZE;
+        }
+
+        public void put(long timeUs, float[] q) {
+            int largest = quantize(q, mValues);
+            if (largest != mPreviousLargest) {
+                mPrevious[0] = mPrevious[1] = mPrevious[2] = 0;
+            }
+            mBuffer.put((byte) largest);
+            putVarint(mBuffer, timeUs - mPreviousTimeUs);
+            for (int i = 0; i < 3; i++) {
+                putVarint(mBuffer, mValues[i] - mPrevious[i]);
+                mPrevious[i] = mValues[i];
+            }
+            mPreviousLargest = largest;
+            mPreviousTimeUs = timeUs;
+            mCount++;
+        }
+
+        /**
+         * Completes the packet.
+         *
+         * @return The number of samples in it
+         */
+        public int finish() {
+            mBuffer.put(mCountPosition, (byte) mCount);
+            return mCount;
+        }
+
+    }
+
+    /**
+     * Reads the samples of one packet.
+     */
+    public static class Unpacker {
+
+        private final int[] mValues = new int[3];
+
+        private ByteBuffer mBuffer;
+
+        private int mSequence;
+
+        private int mRemaining;
+
+        private int mPreviousLargest;
+
+        private long mTimeUs;
+
+        /**
+         * Reads the header of the packet at the position of {@code buffer}.
+         *
+         * @throws IllegalArgumentException If the packet is not of this version or truncated
+         */
+        public void start(ByteBuffer buffer) {
+            try {
+                if (VERSION != buffer.get()) {
+                    throw new IllegalArgumentException("Unknown packet version");
+                }
+                mSequence = buffer.getInt();
+                mTimeUs = buffer.getLong();
+                mRemaining = buffer.get() & 0xff;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated packet header");
+            }
+            mBuffer = buffer;
+            mPreviousLargest = -1;
+        }
+
+        public int getSequence() {
+            return mSequence;
+        }
+
+        public boolean hasNext() {
+            return mRemaining > 0;
+        }
+
+        /**
+         * Reads the next sample.
+         *
+         * @param q Receives the quaternion {w, x, y, z}
+         * @return The time of the sample in microseconds
+         * @throws IllegalArgumentException If the packet is malformed
+         */
+        public long next(float[] q) {
+            try {
+                int largest = mBuffer.get();
+                if (largest < 0 || largest > 3) {
+                    throw new IllegalArgumentException("Bad component index " + largest);
+                }
+                if (largest != mPreviousLargest) {
+                    mValues[0] = mValues[1] = mValues[2] = 0;
+                }
+                mTimeUs += getVarint(mBuffer);
+                for (int i = 0; i < 3; i++) {
+                    mValues[i] += (int) getVarint(mBuffer);
+                }
+                mPreviousLargest = largest;
+                mRemaining--;
+                dequantize(largest, mValues, q);
+                return mTimeUs;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated packet");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,174 @@
+package lapidus.edu.rec3dclient.net;
+
+import android.util.Log;
+
+import com.kircherelectronics.gyroscopeexplorer.activity.filter.OrientationListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import lapidus.edu.rec3dclient.Sensor.PoseMath;
+
+/**
+ * Streams the fused orientation over UDP at sensor rate, for watching a scan live on a desktop,
+ * e.g. with the {@code PoseTelemetryReceiver} of the unit test sources.
+ * <p>
+ * Samples are kept in a ring as they arrive and sent in batches every {@link #SEND_INTERVAL_MS},
+ * as many per datagram as fit in {@link #MAX_DATAGRAM} bytes, encoded by {@link PoseCodec}. When
+ * the sender falls behind, the ring overwrites the oldest samples, and a datagram the socket
+ * can't take at once is dropped rather than waited for: a live view only needs the newest pose.
+ */
+public class PoseTelemetryPublisher implements OrientationListener, Closeable {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "PoseTelemetry";
+
+    private static final int CAPACITY = 512;
+
+    private static final long SEND_INTERVAL_MS = 20;
+
+    /**
+     * Small enough to avoid IP fragmentation on common links.
+     */
+    private static final int MAX_DATAGRAM = 1200;
+
+    private final String mHost;
+
+    private final int mPort;
+
+    private final long[] mTimes = new long[CAPACITY];
+
+    private final float[] mPoses = new float[CAPACITY * 4];
+
+    private final float[] mSample = new float[4];
+
+    /**
+     * Index of the oldest sample.
+     */
+    private int mTail;
+
+    private int mSize;
+
+    private int mDroppedSamples;
+
+    private final PoseCodec.Packer mPacker = new PoseCodec.Packer();
+
+    private final ByteBuffer mDatagram = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    private int mSequence;
+
+    private int mSentDatagrams;
+
+    private int mDroppedDatagrams;
+
+    private long mSentBytes;
+
+    private final Thread mSenderThread;
+
+    private volatile boolean mClosed;
+
+    /**
+     * @param host The receiver, resolved on the sender thread
+     * @param port The port of the receiver
+     */
+    public PoseTelemetryPublisher(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mSenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "PoseTelemetry");
+        mSenderThread.setPriority(Thread.MIN_PRIORITY);
+        mSenderThread.start();
+    }
+
+    @Override
+    public synchronized void onOrientationChanged(float[] orientation, long timestamp) {
+        if (CAPACITY == mSize) {
+            mTail = (mTail + 1) % CAPACITY;
+            mSize--;
+            mDroppedSamples++;
+        }
+        int index = (mTail + mSize) % CAPACITY;
+        PoseMath.eulerToQuaternion(orientation, mSample);
+        System.arraycopy(mSample, 0, mPoses, index * 4, 4);
+        mTimes[index] = timestamp;
+        mSize++;
+    }
+
+    private void send() {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(mHost, mPort));
+            channel.configureBlocking(false);
+            while (!mClosed) {
+                Thread.sleep(SEND_INTERVAL_MS);
+                while (pack()) {
+                    int length = mDatagram.remaining();
+                    if (channel.write(mDatagram) > 0) {
+                        mSentDatagrams++;
+                        mSentBytes += length;
+                    } else {
+                        mDroppedDatagrams++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.e(TAG, "Telemetry to " + mHost + ":" + mPort + " stopped", e);
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        } finally {
+            if (null != channel) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        Log.i(TAG, "Sent " + mSentDatagrams + " datagrams (" + mSentBytes + " bytes), dropped "
+                + mDroppedDatagrams + " datagrams and " + mDroppedSamples + " samples");
+    }
+
+    /**
+     * Moves the oldest samples into {@link #mDatagram}.
+     *
+     * @return Whether there was any sample to send
+     */
+    private synchronized boolean pack() {
+        if (0 == mSize) {
+            return false;
+        }
+        mDatagram.clear();
+        mPacker.start(mDatagram, mSequence++, mTimes[mTail] / 1000);
+        while (mSize > 0 && mPacker.hasRoom()) {
+            System.arraycopy(mPoses, mTail * 4, mSample, 0, 4);
+            mPacker.put(mTimes[mTail] / 1000, mSample);
+            mTail = (mTail + 1) % CAPACITY;
+            mSize--;
+        }
+        mPacker.finish();
+        mDatagram.flip();
+        return true;
+    }
+
+    /**
+     * Stops the sender thread. Samples not sent yet are discarded.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mSenderThread.interrupt();
+    }
+
+}
@@ -0,0 +1,173 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The frames of every device of a multi-device session, placed on the clock of the coordinator.
+ * <p>
+ * Frames are kept with the time they were exposed on the clock of their own device, and each
+ * device with its latest clock estimate, so that {@link #write} places every frame with the best
+ * estimate known at the end, not the one current when the frame was reported.
+ */
+public class SessionIndex {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A device of the session.
+     */
+    private static class Device {
+
+        String name;
+
+        long reference;
+
+        long offset;
+
+        double drift;
+
+        /**
+         * Local exposure time by frame index.
+         */
+        final Map<Integer, Long> frames = new HashMap<>();
+
+        Device(String name) {
+            this.name = name;
+        }
+
+    }
+
+    private final Map<Integer, Device> mDevices = new LinkedHashMap<>();
+
+    private boolean mChanged;
+
+    /**
+     * Adds a device, or renames it if the number is taken.
+     */
+    public synchronized void addDevice(int device, String name) {
+        Device entry = mDevices.get(device);
+        if (null == entry) {
+            mDevices.put(device, new Device(name));
+        } else {
+            entry.name = name;
+        }
+        mChanged = true;
+    }
+
+    /**
+     * Sets the clock estimate of a device, see
+     * {@link ClockSyncEstimator#toRemote(long, long, long, double)}.
+     *
+     * @return Whether the device is known
+     */
+    public synchronized boolean setClock(int device, long reference, long offset, double drift) {
+        Device entry = mDevices.get(device);
+        if (null == entry) {
+            return false;
+        }
+        entry.reference = reference;
+        entry.offset = offset;
+        entry.drift = drift;
+        mChanged = true;
+        return true;
+    }
+
+    /**
+     * Records a frame. Reporting a frame again replaces its time.
+     *
+     * @param localNanos The time the frame was exposed, on the clock of the device
+     * @return Whether the device is known
+     */
+    public synchronized boolean addFrame(int device, int index, long localNanos) {
+        Device entry = mDevices.get(device);
+        if (null == entry) {
+            return false;
+        }
+        entry.frames.put(index, localNanos);
+        mChanged = true;
+        return true;
+    }
+
+    public synchronized int getFrameCount() {
+        int count = 0;
+        for (Device device : mDevices.values()) {
+            count += device.frames.size();
+        }
+        return count;
+    }
+
+    /**
+     * Writes the index if it changed since it was last written: first one comment line per
+     * device with its number, offset in nanoseconds, drift in ppm and name, then one line per
+     * frame, in the order they were exposed, with the time on the clock of the coordinator, the
+     * time on the clock of the device, the device number and the frame index.
+     *
+     * @param file Replaced at once, through a temporary file
+     */
+    public void write(File file) throws IOException {
+        List<String> devices = new ArrayList<>();
+        // Time on the coordinator, local time, device and index of every frame.
+        List<long[]> frames = new ArrayList<>();
+        synchronized (this) {
+            if (!mChanged) {
+                return;
+            }
+            mChanged = false;
+            for (Map.Entry<Integer, Device> entry : mDevices.entrySet()) {
+                Device device = entry.getValue();
+                devices.add(String.format(Locale.US, "# device %d %d %.3f %s", entry.getKey(),
+                        device.offset, device.drift * 1e6, device.name));
+                for (Map.Entry<Integer, Long> frame : device.frames.entrySet()) {
+                    long local = frame.getValue();
+                    frames.add(new long[]{ClockSyncEstimator.toRemote(local, device.reference,
+                            device.offset, device.drift), local, entry.getKey(), frame.getKey()});
+                }
+            }
+        }
+        Collections.sort(frames, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+
+        try {
+            File temp = new File(file.getPath() + ".tmp");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+            try {
+                for (String line : devices) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                for (long[] frame : frames) {
+                    writer.write(String.format(Locale.US, "%d %d %d %d\n", frame[0], frame[1],
+                            frame[2], frame[3]));
+                }
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                mChanged = true;
+            }
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small HTTP/1.1 server for pulling a session directory to a workstation over the local
+ * network, much faster than {@code adb pull} of one file at a time.
+ * <p>
+ * {@code GET /} returns the index of the session: one line per file with its size in bytes, its
+ * last modification time in milliseconds and its name, separated by tabs. {@code GET /<name>}
+ * returns a file, sent with {@link FileChannel#transferTo} so the kernel copies it to the socket
+ * without passing through the app. Single byte ranges ({@code Range: bytes=a-b}) are served as
+ * 206 responses, so interrupted pulls can resume. Connections are kept alive between requests.
+ * <p>
+ * Each connection is served by one worker thread. Connections beyond the worker cap are answered
+ * with 503 and closed, so the capture never competes with more than a few pulls.
+ */
+public class SessionServer implements Closeable {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Time a kept-alive connection may stay idle before it is closed.
+     */
+    private static final int IDLE_TIMEOUT_MS = 15000;
+
+    private static final int MAX_HEADER_BYTES = 8192;
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("journal", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("poses", "text/plain; charset=utf-8");
+    }
+
+    /**
+     * A parsed request line and the headers we use.
+     */
+    private static class Request {
+
+        String method;
+
+        String path;
+
+        boolean keepAlive;
+
+        String range;
+
+    }
+
+    private final File mRoot;
+
+    private final String mRootPath;
+
+    private final ServerSocketChannel mServer;
+
+    private final ThreadPoolExecutor mWorkers;
+
+    private final Thread mAcceptThread;
+
+    private volatile boolean mClosed;
+
+    /**
+     * Starts serving.
+     *
+     * @param root       The session directory
+     * @param port       The port to listen on, or 0 for any free port
+     * @param maxWorkers Largest number of connections served at the same time
+     */
+    public SessionServer(File root, int port, int maxWorkers) throws IOException {
+        mRoot = root;
+        mRootPath = root.getCanonicalPath();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().setReuseAddress(true);
+        mServer.socket().bind(new InetSocketAddress(port));
+        maxWorkers = Math.max(1, maxWorkers);
+        mWorkers = new ThreadPoolExecutor(0, maxWorkers, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>());
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "SessionServer");
+        mAcceptThread.start();
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    private void accept() {
+        while (!mClosed) {
+            final SocketChannel channel;
+            try {
+                channel = mServer.accept();
+            } catch (IOException e) {
+                if (!mClosed) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            try {
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    writeHeader(channel, 503, "Service Unavailable", 0, null, false,
+                            "Retry-After: 1\r\n");
+                } catch (IOException ignored) {
+                    // The client is told by the closed connection instead.
+                }
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try {
+            channel.socket().setSoTimeout(IDLE_TIMEOUT_MS);
+            channel.socket().setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(channel.socket().getInputStream());
+            while (!mClosed) {
+                Request request = readRequest(input);
+                if (null == request || !respond(channel, request)) {
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            // Idle or closed by the client.
+        } catch (IOException e) {
+            if (!mClosed) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Reads the next request head from a connection.
+     *
+     * @return The request, or {@code null} if the connection was closed between requests
+     */
+    private static Request readRequest(InputStream input) throws IOException {
+        String line = readLine(input);
+        if (null == line) {
+            return null;
+        }
+        String[] parts = line.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            throw new IOException("Bad request line: " + line);
+        }
+        Request request = new Request();
+        request.method = parts[0];
+        request.path = parts[1];
+        request.keepAlive = "HTTP/1.1".equals(parts[2]);
+        while (true) {
+            line = readLine(input);
+            if (null == line) {
+                throw new EOFException("Truncated request");
+            }
+            if (line.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = line.substring(colon + 1).trim();
+            if ("connection".equals(name)) {
+                request.keepAlive = "keep-alive".equalsIgnoreCase(value)
+                        || (request.keepAlive && !"close".equalsIgnoreCase(value));
+            } else if ("range".equals(name)) {
+                request.range = value;
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Reads a line ending with CRLF or LF.
+     *
+     * @return The line, or {@code null} at the end of the stream before any byte
+     */
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) {
+                if (0 == line.size()) {
+                    return null;
+                }
+                throw new EOFException("Truncated request");
+            }
+            if (line.size() >= MAX_HEADER_BYTES) {
+                throw new IOException("Header line too long");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), US_ASCII);
+    }
+
+    /**
+     * Sends the response to one request.
+     *
+     * @return Whether the connection stays open
+     */
+    private boolean respond(SocketChannel channel, Request request) throws IOException {
+        boolean head = "HEAD".equals(request.method);
+        if (!head && !"GET".equals(request.method)) {
+            writeHeader(channel, 405, "Method Not Allowed", 0, null, false,
+                    "Allow: GET, HEAD\r\n");
+            return false;
+        }
+        String name = decode(request.path);
+        if (null == name) {
+            writeHeader(channel, 400, "Bad Request", 0, null, false, null);
+            return false;
+        }
+        if (name.isEmpty()) {
+            byte[] index = getIndex().getBytes("UTF-8");
+            writeHeader(channel, 200, "OK", index.length, "text/plain; charset=utf-8",
+                    request.keepAlive, null);
+            if (!head) {
+                write(channel, ByteBuffer.wrap(index));
+            }
+            return request.keepAlive;
+        }
+
+        File file = resolve(name);
+        if (null == file) {
+            writeHeader(channel, 404, "Not Found", 0, null, request.keepAlive, null);
+            return request.keepAlive;
+        }
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel source = input.getChannel();
+            long length = source.size();
+            long start = 0;
+            long end = length;
+            String extra = "Accept-Ranges: bytes\r\n";
+            int status = 200;
+            String reason = "OK";
+            if (null != request.range) {
+                long[] range = parseRange(request.range, length);
+                if (null == range) {
+                    writeHeader(channel, 416, "Range Not Satisfiable", 0, null,
+                            request.keepAlive, "Content-Range: bytes */" + length + "\r\n");
+                    return request.keepAlive;
+                }
+                start = range[0];
+                end = range[1];
+                status = 206;
+                reason = "Partial Content";
+                extra += "Content-Range: bytes " + start + "-" + (end - 1) + "/" + length + "\r\n";
+            }
+            writeHeader(channel, status, reason, end - start, getContentType(name),
+                    request.keepAlive, extra);
+            if (!head) {
+                // Straight from the page cache to the socket.
+                long position = start;
+                while (position < end) {
+                    long sent = source.transferTo(position, end - position, channel);
+                    if (sent <= 0) {
+                        throw new EOFException(file + " shrank while being sent");
+                    }
+                    position += sent;
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return request.keepAlive;
+    }
+
+    /**
+     * Parses a single byte range.
+     *
+     * @return The range as {start, end} with an exclusive end, or {@code null} if it can't be
+     * satisfied
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // The last n bytes.
+                long suffix = Long.parseLong(last);
+                start = Math.max(0, length - suffix);
+                end = length;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length : Math.min(length, Long.parseLong(last) + 1);
+            }
+            return start < end ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a request path into a file name relative to the root.
+     *
+     * @return The name, or {@code null} if the path is malformed
+     */
+    private static String decode(String path) {
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        if (!path.startsWith("/")) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(path.substring(1).replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file for a name, or {@code null} if it doesn't exist or lies outside the root.
+     */
+    private File resolve(String name) throws IOException {
+        File file = new File(mRoot, name);
+        if (!file.getCanonicalPath().startsWith(mRootPath + File.separator) || !file.isFile()) {
+            return null;
+        }
+        return file;
+    }
+
+    private String getIndex() {
+        File[] files = mRoot.listFiles();
+        StringBuilder sb = new StringBuilder();
+        if (null != files) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile()) {
+                    sb.append(file.length()).append('\t').append(file.lastModified()).append('\t')
+                            .append(file.getName()).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String getContentType(String name) {
+        String type = CONTENT_TYPES.get(name.substring(name.lastIndexOf('.') + 1)
+                .toLowerCase(Locale.US));
+        return null != type ? type : "application/octet-stream";
+    }
+
+    private static void writeHeader(SocketChannel channel, int status, String reason,
+                                    long length, String contentType, boolean keepAlive,
+                                    String extra) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        sb.append("Content-Length: ").append(length).append("\r\n");
+        if (null != contentType) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (null != extra) {
+            sb.append(extra);
+        }
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        write(channel, ByteBuffer.wrap(sb.toString().getBytes(US_ASCII)));
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops accepting connections. Open connections end after their current response.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        closeQuietly(mServer);
+        mWorkers.shutdown();
+    }
+
+}
@@ -0,0 +1,216 @@
+package lapidus.edu.rec3dclient.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Uploads frames as fixed-size chunks identified by their SHA-256, so that an interrupted upload
+ * resumes instead of starting over, and chunks the server already holds are never sent twice.
+ * <p>
+ * For every frame the transport
+ * <ol>
+ * <li>posts the hashes of the chunks not yet acknowledged to {@code chunks/missing}, and gets
+ * back those the server doesn't have,</li>
+ * <li>puts each missing chunk to {@code chunks/<hash>}, recording every acknowledged chunk in the
+ * {@link UploadProgressStore},</li>
+ * <li>posts the list of all chunk hashes to {@code frames}, with the frame index and pose in the
+ * same headers as {@link HttpTransport}, which tells the server to assemble the frame.</li>
+ * </ol>
+ * Any response may carry the order the server wants frames in, as in {@link HttpTransport}.
+ */
+public class ChunkedTransport implements Transport {
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private final String mEndpoint;
+
+    private final UploadProgressStore mStore;
+
+    private volatile OrderListener mOrderListener;
+
+    /**
+     * @param endpoint The base URL of the server
+     * @param store    Where progress is kept across restarts
+     */
+    public ChunkedTransport(URL endpoint, UploadProgressStore store) {
+        String base = endpoint.toString();
+        mEndpoint = base.endsWith("/") ? base : base + '/';
+        mStore = store;
+    }
+
+    @Override
+    public void send(UploadItem item) throws IOException {
+        String key = UploadProgressStore.key(item.file);
+        String[] hashes = mStore.getHashes(key);
+        if (null == hashes) {
+            hashes = hashChunks(item);
+            mStore.putHashes(key, hashes);
+        }
+
+        int acked = mStore.getAcked(key);
+        if (acked < hashes.length) {
+            Set<String> missing = queryMissing(hashes, acked);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            RandomAccessFile file = new RandomAccessFile(item.file, "r");
+            try {
+                for (int i = acked; i < hashes.length; i++) {
+                    if (missing.contains(hashes[i])) {
+                        file.seek((long) i * CHUNK_SIZE);
+                        int length = (int) Math.min(CHUNK_SIZE,
+                                file.length() - file.getFilePointer());
+                        file.readFully(chunk, 0, length);
+                        if (!hashes[i].equals(hash(chunk, length))) {
+                            mStore.remove(key);
+                            throw new IOException(item.file + " changed during the upload");
+                        }
+                        request("PUT", mEndpoint + "chunks/" + hashes[i], null, chunk, length);
+                    }
+                    mStore.setAcked(key, i + 1);
+                }
+            } finally {
+                file.close();
+            }
+        }
+
+        byte[] manifest = join(hashes, 0).getBytes(UTF_8);
+        request("POST", mEndpoint + "frames", item, manifest, manifest.length);
+        mStore.remove(key);
+    }
+
+    @Override
+    public void setOrderListener(OrderListener listener) {
+        mOrderListener = listener;
+    }
+
+    @Override
+    public void close() {
+        // Connections are not kept between frames.
+    }
+
+    /**
+     * Asks the server which of the chunks from {@code first} on it doesn't have yet.
+     */
+    private Set<String> queryMissing(String[] hashes, int first) throws IOException {
+        byte[] query = join(hashes, first).getBytes(UTF_8);
+        String response = new String(request("POST", mEndpoint + "chunks/missing", null, query,
+                query.length), UTF_8);
+        Set<String> missing = new HashSet<>();
+        for (String line : response.split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                missing.add(line);
+            }
+        }
+        return missing;
+    }
+
+    private static String[] hashChunks(UploadItem item) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(item.file, "r");
+        try {
+            int count = (int) Math.max(1, (file.length() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            String[] hashes = new String[count];
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for (int i = 0; i < count; i++) {
+                int length = (int) Math.min(CHUNK_SIZE, file.length() - file.getFilePointer());
+                file.readFully(chunk, 0, length);
+                hashes[i] = hash(chunk, length);
+            }
+            return hashes;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static String hash(byte[] data, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(data, 0, length);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String join(String[] hashes, int first) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = first; i < hashes.length; i++) {
+            sb.append(hashes[i]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends one request and returns the response body.
+     *
+     * @param item If not {@code null}, the frame whose index and pose go into the headers
+     * @throws IOException If the request fails or is not answered with a 2xx code
+     */
+    private byte[] request(String method, String url, UploadItem item, byte[] body,
+                                  int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod(method);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            if (null != item) {
+                connection.setRequestProperty(HttpTransport.INDEX_HEADER,
+                        Integer.toString(item.index));
+                connection.setRequestProperty(HttpTransport.POSE_HEADER, item.pose);
+                connection.setRequestProperty(HttpTransport.SCALE_HEADER,
+                        Integer.toString(item.scale));
+            }
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(body, 0, length);
+            } finally {
+                output.close();
+            }
+
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException(method + " " + url + " failed with HTTP " + code);
+            }
+            HttpTransport.notifyOrder(connection, mOrderListener);
+            InputStream input = connection.getInputStream();
+            try {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    response.write(buffer, 0, read);
+                }
+                return response.toByteArray();
+            } finally {
+                input.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+}
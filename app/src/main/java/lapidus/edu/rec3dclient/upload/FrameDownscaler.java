@@ -0,0 +1,177 @@
+package lapidus.edu.rec3dclient.upload;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import lapidus.edu.rec3dclient.camera.MemoryBudget;
+
+/**
+ * Makes reduced copies of frames for upload over slow links.
+ * <p>
+ * Frames are decoded with {@link BitmapFactory.Options#inSampleSize}, so the decoder itself skips
+ * the pixels that are not needed, into bitmaps that are pooled per scale and reused for the next
+ * frame. The copy is recompressed at a quality that drops with the scale and keeps the EXIF
+ * orientation of the original.
+ * <p>
+ * Every bitmap held, in use or pooled, is counted as a buffer in the {@link MemoryBudget} of the
+ * capture, which throttles the capture when decoding frames takes up its room.
+ */
+public class FrameDownscaler {
+
+    private final File mDirectory;
+
+    /**
+     * Idle bitmaps by scale.
+     */
+    private final SparseArray<Bitmap> mPool = new SparseArray<>();
+
+    private final MemoryBudget mMemoryBudget;
+
+    private boolean mClosed;
+
+    /**
+     * @param directory    Where the reduced copies are written
+     * @param memoryBudget Accounts for the bitmaps, or {@code null} outside of a capture
+     */
+    public FrameDownscaler(File directory, MemoryBudget memoryBudget) {
+        mDirectory = directory;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return The JPEG quality used for frames reduced by {@code scale}
+     */
+    public static int getQuality(int scale) {
+        return scale >= 4 ? 75 : 85;
+    }
+
+    /**
+     * Writes a copy of the frame reduced by {@code scale}. The caller deletes the copy once sent.
+     *
+     * @return The item to send in place of {@code item}
+     */
+    public UploadItem downscale(UploadItem item, int scale) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(item.file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Cannot decode " + item.file);
+        }
+        long bytes = 4L * ((options.outWidth + scale - 1) / scale)
+                * ((options.outHeight + scale - 1) / scale);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = scale;
+        options.inMutable = true;
+        options.inBitmap = take(scale);
+        if (null != options.inBitmap && options.inBitmap.getAllocationByteCount() < bytes) {
+            // The pooled bitmap is too small for this frame.
+            recycle(options.inBitmap);
+            options.inBitmap = null;
+        }
+        if (null == options.inBitmap) {
+            acquire(bytes);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(item.file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            if (null == options.inBitmap) {
+                release(bytes);
+                throw e;
+            }
+            // The pooled bitmap cannot be reused for this frame.
+            recycle(options.inBitmap);
+            options.inBitmap = null;
+            acquire(bytes);
+            bitmap = BitmapFactory.decodeFile(item.file.getPath(), options);
+        }
+        if (null == bitmap) {
+            if (null == options.inBitmap) {
+                release(bytes);
+            } else {
+                recycle(options.inBitmap);
+            }
+            throw new IOException("Cannot decode " + item.file);
+        }
+        if (bitmap != options.inBitmap) {
+            // Count what was actually allocated.
+            release(bytes);
+            acquire(bitmap.getAllocationByteCount());
+        }
+
+        File file = new File(mDirectory, item.file.getName().replace(".jpg", "_" + scale + ".jpg"));
+        OutputStream output = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, getQuality(scale), output);
+        } finally {
+            output.close();
+            give(scale, bitmap);
+        }
+
+        String orientation = new ExifInterface(item.file.getPath())
+                .getAttribute(ExifInterface.TAG_ORIENTATION);
+        if (null != orientation) {
+            ExifInterface exif = new ExifInterface(file.getPath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, orientation);
+            exif.saveAttributes();
+        }
+        return new UploadItem(item.index, file, item.pose, scale);
+    }
+
+    private Bitmap take(int scale) {
+        synchronized (mPool) {
+            Bitmap bitmap = mPool.get(scale);
+            mPool.remove(scale);
+            return bitmap;
+        }
+    }
+
+    private void give(int scale, Bitmap bitmap) {
+        synchronized (mPool) {
+            if (!mClosed && null == mPool.get(scale)) {
+                mPool.put(scale, bitmap);
+                return;
+            }
+        }
+        recycle(bitmap);
+    }
+
+    private void recycle(Bitmap bitmap) {
+        release(bitmap.getAllocationByteCount());
+        bitmap.recycle();
+    }
+
+    private void acquire(long bytes) {
+        if (null != mMemoryBudget) {
+            mMemoryBudget.acquireBuffer(bytes);
+        }
+    }
+
+    private void release(long bytes) {
+        if (null != mMemoryBudget) {
+            mMemoryBudget.releaseBuffer(bytes);
+        }
+    }
+
+    /**
+     * Recycles the pooled bitmaps. Bitmaps in use are recycled once their frame is written.
+     */
+    public void close() {
+        synchronized (mPool) {
+            mClosed = true;
+            for (int i = 0; i < mPool.size(); i++) {
+                recycle(mPool.valueAt(i));
+            }
+            mPool.clear();
+        }
+    }
+
+}
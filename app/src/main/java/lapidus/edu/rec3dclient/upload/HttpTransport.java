@@ -0,0 +1,115 @@
+package lapidus.edu.rec3dclient.upload;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Posts every frame as a JPEG body to the endpoint, with its index and pose in headers. The
+ * server may answer with the frames it wants next in {@link #ORDER_HEADER}.
+ */
+public class HttpTransport implements Transport {
+
+    public static final String INDEX_HEADER = "X-Frame-Index";
+    public static final String POSE_HEADER = "X-Frame-Pose";
+    public static final String SCALE_HEADER = "X-Frame-Scale";
+
+    /**
+     * Response header with a comma separated list of the frame indices the server wants next.
+     */
+    public static final String ORDER_HEADER = "X-Upload-Order";
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final URL mEndpoint;
+
+    private volatile OrderListener mOrderListener;
+
+    /**
+     * @param endpoint The URL frames are posted to
+     */
+    public HttpTransport(URL endpoint) {
+        mEndpoint = endpoint;
+    }
+
+    @Override
+    public void send(UploadItem item) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode((int) item.file.length());
+            connection.setRequestProperty("Content-Type", "image/jpeg");
+            connection.setRequestProperty(INDEX_HEADER, Integer.toString(item.index));
+            connection.setRequestProperty(POSE_HEADER, item.pose);
+            connection.setRequestProperty(SCALE_HEADER, Integer.toString(item.scale));
+
+            InputStream input = new FileInputStream(item.file);
+            try {
+                OutputStream output = connection.getOutputStream();
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException("Frame " + item.index + " rejected with HTTP " + code);
+            }
+            notifyOrder(connection, mOrderListener);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void setOrderListener(OrderListener listener) {
+        mOrderListener = listener;
+    }
+
+    @Override
+    public void close() {
+        // Connections are not kept between frames.
+    }
+
+    /**
+     * Passes the {@link #ORDER_HEADER} of a response, if any, to {@code listener}.
+     */
+    static void notifyOrder(HttpURLConnection connection, OrderListener listener) {
+        String order = connection.getHeaderField(ORDER_HEADER);
+        if (null == order || null == listener) {
+            return;
+        }
+        String[] values = order.split(",");
+        int[] indices = new int[values.length];
+        int count = 0;
+        for (String value : values) {
+            try {
+                indices[count] = Integer.parseInt(value.trim());
+                count++;
+            } catch (NumberFormatException e) {
+                // Skip it, the rest of the order still holds.
+            }
+        }
+        listener.onOrder(Arrays.copyOf(indices, count));
+    }
+
+}
@@ -0,0 +1,179 @@
+package lapidus.edu.rec3dclient.upload;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lapidus.edu.rec3dclient.net.MuxConnection;
+import lapidus.edu.rec3dclient.net.MuxProtocol;
+import lapidus.edu.rec3dclient.net.PointCloudDecoder;
+
+/**
+ * Sends frames over one persistent {@link MuxConnection}. Every frame is a stream: a pose record
+ * followed by the image chunks, and the server answers with an ack or nack on the same stream.
+ * Frames sent from several upload threads travel interleaved over the same socket. The server may
+ * send the order it wants frames in, and updates of its reconstruction, at any time, on any
+ * stream.
+ */
+public class MuxTransport implements Transport, MuxConnection.Listener {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+
+    /**
+     * A frame waiting for the answer of the server.
+     */
+    private static class Pending {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile boolean accepted;
+
+    }
+
+    private final String mHost;
+
+    private final int mPort;
+
+    private final Map<Integer, Pending> mPending = new HashMap<>();
+
+    private MuxConnection mConnection;
+
+    private volatile OrderListener mOrderListener;
+
+    private volatile PointCloudDecoder mPointCloudDecoder;
+
+    /**
+     * @param host The server, resolved on the upload thread when connecting
+     * @param port The port of the server
+     */
+    public MuxTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Returns the open connection, connecting again if the last one was closed.
+     */
+    private synchronized MuxConnection getConnection() throws IOException {
+        if (null == mConnection || mConnection.isClosed()) {
+            mConnection = MuxConnection.connect(new InetSocketAddress(mHost, mPort), this);
+        }
+        return mConnection;
+    }
+
+    @Override
+    public void send(UploadItem item) throws IOException {
+        MuxConnection connection = getConnection();
+        int streamId = connection.openStream();
+        Pending pending = new Pending();
+        synchronized (mPending) {
+            mPending.put(streamId, pending);
+        }
+        try {
+            byte[] record = item.pose.getBytes(UTF_8);
+            ByteBuffer pose = ByteBuffer.allocate(5 + record.length);
+            pose.putInt(item.index).put((byte) item.scale).put(record).flip();
+            connection.send(MuxProtocol.TYPE_POSE, 0, streamId, pose);
+
+            FileInputStream input = new FileInputStream(item.file);
+            try {
+                FileChannel file = input.getChannel();
+                connection.sendFile(MuxProtocol.TYPE_IMAGE_CHUNK, streamId, file, 0, file.size(),
+                        true);
+            } finally {
+                input.close();
+            }
+
+            if (!pending.done.await(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("No answer for frame " + item.index);
+            }
+            if (!pending.accepted) {
+                throw new IOException("Frame " + item.index + " rejected");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for frame " + item.index, e);
+        } finally {
+            synchronized (mPending) {
+                mPending.remove(streamId);
+            }
+            connection.closeStream(streamId);
+        }
+    }
+
+    @Override
+    public void setOrderListener(OrderListener listener) {
+        mOrderListener = listener;
+    }
+
+    /**
+     * Sets the decoder that reconstruction updates are queued to, or {@code null} to ignore them.
+     */
+    public void setPointCloudDecoder(PointCloudDecoder decoder) {
+        mPointCloudDecoder = decoder;
+    }
+
+    @Override
+    public void onFrame(int type, int flags, int streamId, ByteBuffer payload) {
+        if (MuxProtocol.TYPE_POINT_CLOUD == type) {
+            PointCloudDecoder decoder = mPointCloudDecoder;
+            if (null != decoder) {
+                decoder.offer(payload);
+            }
+            return;
+        }
+        if (MuxProtocol.TYPE_CONTROL != type || !payload.hasRemaining()) {
+            return;
+        }
+        int code = payload.get();
+        if (MuxProtocol.CONTROL_ORDER == code) {
+            OrderListener listener = mOrderListener;
+            if (null != listener) {
+                int[] indices = new int[payload.remaining() / 4];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = payload.getInt();
+                }
+                listener.onOrder(indices);
+            }
+            return;
+        }
+        Pending pending;
+        synchronized (mPending) {
+            pending = mPending.get(streamId);
+        }
+        if (null != pending) {
+            pending.accepted = MuxProtocol.CONTROL_ACK == code;
+            pending.done.countDown();
+        }
+    }
+
+    @Override
+    public void onClosed(IOException cause) {
+        // Fail every frame in flight. The next frame connects again.
+        synchronized (mPending) {
+            for (Pending pending : mPending.values()) {
+                pending.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @Override
+    public synchronized void close() {
+        if (null != mConnection) {
+            mConnection.close();
+            mConnection = null;
+        }
+    }
+
+}
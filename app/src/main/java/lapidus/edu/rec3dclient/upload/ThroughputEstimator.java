@@ -0,0 +1,61 @@
+package lapidus.edu.rec3dclient.upload;
+
+/**
+ * Estimates the throughput of one upload from the frames sent so far, and picks the scale frames
+ * should be sent at to keep up with the capture.
+ */
+public class ThroughputEstimator {
+
+    /**
+     * Scales a frame may be sent at, as divisors of its width and height.
+     */
+    public static final int[] SCALES = {1, 2, 4};
+
+    private static final float SMOOTHING = 0.3f;
+
+    /**
+     * Bytes per second of one upload, or 0 before the first sample.
+     */
+    private double mBytesPerSecond;
+
+    /**
+     * Records a completed upload.
+     *
+     * @param bytes The size of the file sent
+     * @param nanos The time it took
+     */
+    public synchronized void onSent(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        double sample = bytes * 1e9 / nanos;
+        mBytesPerSecond = 0 == mBytesPerSecond ? sample
+                : mBytesPerSecond + SMOOTHING * (sample - mBytesPerSecond);
+    }
+
+    /**
+     * @return The estimated bytes per second of one upload, or 0 if unknown
+     */
+    public synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Picks the smallest divisor from {@link #SCALES} at which a frame of {@code bytes} is
+     * expected to upload within {@code budgetNanos}. Every pixel is assumed to cost the same, so
+     * halving the size quarters the bytes.
+     */
+    public synchronized int chooseScale(long bytes, long budgetNanos) {
+        if (0 == mBytesPerSecond) {
+            return 1;
+        }
+        for (int scale : SCALES) {
+            double seconds = bytes / (double) (scale * scale) / mBytesPerSecond;
+            if (seconds * 1e9 <= budgetNanos) {
+                return scale;
+            }
+        }
+        return SCALES[SCALES.length - 1];
+    }
+
+}
@@ -0,0 +1,38 @@
+package lapidus.edu.rec3dclient.upload;
+
+import java.io.IOException;
+
+/**
+ * Delivers frames to the reconstruction server.
+ */
+public interface Transport {
+
+    /**
+     * Receives the order in which the server wants the full frames.
+     */
+    interface OrderListener {
+
+        /**
+         * Called from the upload threads, or from the reader thread of a connection.
+         *
+         * @param indices Frame indices, the most wanted first
+         */
+        void onOrder(int[] indices);
+
+    }
+
+    /**
+     * Sends one frame and its pose. Called from the upload threads, possibly concurrently.
+     *
+     * @throws IOException If the frame was not accepted
+     */
+    void send(UploadItem item) throws IOException;
+
+    void setOrderListener(OrderListener listener);
+
+    /**
+     * Releases the connections, once no frame is being sent anymore.
+     */
+    void close();
+
+}
@@ -0,0 +1,38 @@
+package lapidus.edu.rec3dclient.upload;
+
+import android.content.Context;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Creates the {@link Transport} for an upload endpoint.
+ */
+public final class Transports {
+
+    private Transports() {
+    }
+
+    /**
+     * A {@code tcp://host:port} endpoint is served by a {@link MuxTransport}, any other URL by a
+     * {@link ChunkedTransport} or an {@link HttpTransport}.
+     *
+     * @param endpoint The endpoint from the settings
+     * @param chunked  Whether HTTP uploads are chunked
+     * @throws IllegalArgumentException If the endpoint is not an absolute URL
+     */
+    public static Transport create(Context context, String endpoint, boolean chunked)
+            throws URISyntaxException, MalformedURLException {
+        URI uri = new URI(endpoint);
+        if ("tcp".equals(uri.getScheme())) {
+            // One persistent multiplexed connection.
+            return new MuxTransport(uri.getHost(), uri.getPort());
+        } else if (chunked) {
+            return new ChunkedTransport(uri.toURL(), new UploadProgressStore(context));
+        } else {
+            return new HttpTransport(uri.toURL());
+        }
+    }
+
+}
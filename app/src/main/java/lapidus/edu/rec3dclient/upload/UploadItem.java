@@ -0,0 +1,41 @@
+package lapidus.edu.rec3dclient.upload;
+
+import java.io.File;
+
+/**
+ * A saved frame and its pose, ready to be sent to the reconstruction server.
+ */
+public class UploadItem {
+
+    /**
+     * Index of the frame in the session.
+     */
+    public final int index;
+
+    /**
+     * The JPEG file of the frame.
+     */
+    public final File file;
+
+    /**
+     * The pose record of the frame, as written to the capture journal.
+     */
+    public final String pose;
+
+    /**
+     * Divisor of the width and height of the frame as captured, 1 for the original.
+     */
+    public final int scale;
+
+    public UploadItem(int index, File file, String pose) {
+        this(index, file, pose, 1);
+    }
+
+    public UploadItem(int index, File file, String pose, int scale) {
+        this.index = index;
+        this.file = file;
+        this.pose = pose;
+        this.scale = scale;
+    }
+
+}
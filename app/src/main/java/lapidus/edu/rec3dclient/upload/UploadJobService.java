@@ -0,0 +1,155 @@
+package lapidus.edu.rec3dclient.upload;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+
+import lapidus.edu.rec3dclient.camera.CaptureSettings;
+
+/**
+ * Drains the {@link UploadQueue} when no capture is running, under the network and charging
+ * constraints of the {@link CaptureSettings}.
+ * <p>
+ * The job sends every due thumbnail, then every due frame at full size, then finishes and
+ * schedules itself again for the next frame held back by a backoff.
+ */
+public class UploadJobService extends JobService {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "UploadJobService";
+
+    private static final int JOB_ID = 1;
+
+    /**
+     * Shortest delay before the job runs again while frames are still due, e.g. because they are
+     * being sent by the capture.
+     */
+    private static final long MIN_RESCHEDULE_MILLIS = 5000;
+
+    private UploadPipeline mPipeline;
+
+    private JobParameters mParams;
+
+    /**
+     * Schedules the job to run once {@code delayMillis} have passed and the constraints are met.
+     */
+    public static void schedule(Context context, long delayMillis) {
+        CaptureSettings settings = new CaptureSettings(context);
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context,
+                UploadJobService.class))
+                .setRequiredNetworkType(settings.isUploadUnmeteredOnly()
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(settings.isUploadChargingOnly())
+                .setMinimumLatency(delayMillis)
+                .setPersisted(true)
+                .build();
+        getScheduler(context).schedule(job);
+    }
+
+    /**
+     * Cancels the job, e.g. while a capture sends the frames itself.
+     */
+    public static void cancel(Context context) {
+        getScheduler(context).cancel(JOB_ID);
+    }
+
+    private static JobScheduler getScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        final UploadQueue queue;
+        Transport transport;
+        CaptureSettings settings = new CaptureSettings(this);
+        String endpoint = settings.getUploadEndpoint();
+        try {
+            queue = UploadQueue.get(this);
+            if (0 == queue.size() || endpoint.isEmpty()) {
+                return false;
+            }
+            transport = Transports.create(this, endpoint, settings.isUploadChunked());
+        } catch (URISyntaxException | MalformedURLException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid upload endpoint " + endpoint, e);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open the upload queue", e);
+            return false;
+        }
+
+        queue.setMaxInFlight(settings.getUploadConcurrency());
+        final UploadPipeline pipeline = new UploadPipeline(transport, queue,
+                new FrameDownscaler(getCacheDir(), null), settings.getUploadConcurrency());
+        synchronized (this) {
+            mPipeline = pipeline;
+            mParams = params;
+        }
+        pipeline.setListener(new UploadPipeline.Listener() {
+            @Override
+            public void onUploaded(UploadItem item, long nanos) {
+            }
+
+            @Override
+            public void onUploadFailed(UploadItem item, IOException e) {
+            }
+
+            @Override
+            public void onIdle() {
+                if (finish(pipeline)) {
+                    long delay = queue.getNextDelay();
+                    if (delay >= 0) {
+                        schedule(UploadJobService.this, Math.max(MIN_RESCHEDULE_MILLIS, delay));
+                    }
+                }
+            }
+        });
+        pipeline.start();
+        return true;
+    }
+
+    /**
+     * Ends the run of {@code pipeline} if it is still the current one.
+     *
+     * @return Whether the job was finished by this call
+     */
+    private boolean finish(UploadPipeline pipeline) {
+        JobParameters params;
+        synchronized (this) {
+            if (pipeline != mPipeline) {
+                return false;
+            }
+            params = mParams;
+            mPipeline = null;
+            mParams = null;
+        }
+        pipeline.shutdown();
+        jobFinished(params, false);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        UploadPipeline pipeline;
+        synchronized (this) {
+            pipeline = mPipeline;
+            mPipeline = null;
+            mParams = null;
+        }
+        if (null != pipeline) {
+            // Frames being sent complete; the rest wait for the next run.
+            pipeline.shutdown();
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,462 @@
+package lapidus.edu.rec3dclient.upload;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Uploads frames in the background while the capture goes on.
+ * <p>
+ * Frames are added to an {@link UploadQueue} as soon as they are on disk and sent by a small fixed
+ * number of threads, so uploads overlap with capture without competing with it for more than a
+ * few connections. Frames are taken from the queue by priority, so they may complete out of
+ * order. Every frame that completes lets the next one out of the queue. A frame that fails stays
+ * queued and is retried after a backoff, by this pipeline once it is due or by
+ * {@link UploadJobService} once the capture is over.
+ * <p>
+ * Every frame is queued twice: as a thumbnail reduced by {@link #THUMBNAIL_SCALE}, which goes
+ * before any full frame, and at full size. The server can start aligning views from the
+ * thumbnails while the full frames are still on their way, and can reorder those with
+ * {@link Transport.OrderListener}.
+ * <p>
+ * Given the capture rate, the pipeline measures the upload throughput and sends frames reduced to
+ * 1/2 or 1/4 of their size when the originals wouldn't keep up. The originals of reduced frames
+ * are queued with {@link UploadQueue#PRIORITY_DEFERRED} and sent once nothing else is due and the
+ * link is fast enough for full frames.
+ */
+public class UploadPipeline {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "UploadPipeline";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Divisor of the width and height of thumbnails, e.g. 500 pixels wide for a 4000 pixel frame.
+     */
+    public static final int THUMBNAIL_SCALE = 8;
+
+    /**
+     * Notified on the upload threads as frames complete.
+     */
+    public interface Listener {
+
+        /**
+         * @param nanos Time spent sending the frame
+         */
+        void onUploaded(UploadItem item, long nanos);
+
+        void onUploadFailed(UploadItem item, IOException e);
+
+        /**
+         * Called when nothing is being sent and no queued frame may be sent now.
+         */
+        void onIdle();
+
+    }
+
+    /**
+     * Runs the pump again once a frame held back by a backoff is due.
+     */
+    interface RetryScheduler {
+
+        /**
+         * Runs {@code task} once in {@code delayMillis}, unless a run is already scheduled by
+         * then, in which case that run is kept.
+         */
+        void schedule(Runnable task, long delayMillis);
+
+        /**
+         * Drops the scheduled run and ignores any later one.
+         */
+        void shutdown();
+
+    }
+
+    /**
+     * Schedules retries on a daemon thread.
+     */
+    private static class TimerRetryScheduler implements RetryScheduler {
+
+        private final ScheduledExecutorService mTimer =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "UploadRetry");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        private ScheduledFuture<?> mRetry;
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMillis) {
+            if (null != mRetry && !mRetry.isDone()) {
+                if (mRetry.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+                    return;
+                }
+                mRetry.cancel(false);
+            }
+            try {
+                mRetry = mTimer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down meanwhile.
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            mTimer.shutdownNow();
+        }
+
+    }
+
+    private final Transport mTransport;
+
+    private final UploadQueue mQueue;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Frames taken from the queue and not yet done.
+     */
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    private final AtomicInteger mUploaded = new AtomicInteger();
+
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    private final AtomicLong mBytes = new AtomicLong();
+
+    private final int mConcurrency;
+
+    private final ThroughputEstimator mEstimator = new ThroughputEstimator();
+
+    /**
+     * Frames and bytes sent at each of {@link ThroughputEstimator#SCALES}, then thumbnails.
+     */
+    private final AtomicIntegerArray mScaleFrames =
+            new AtomicIntegerArray(ThroughputEstimator.SCALES.length + 1);
+
+    private final AtomicLongArray mScaleBytes =
+            new AtomicLongArray(ThroughputEstimator.SCALES.length + 1);
+
+    private final FrameDownscaler mDownscaler;
+
+    /**
+     * Time one upload thread may spend per frame to keep up with the capture, or 0 to always
+     * send originals.
+     */
+    private volatile long mFrameBudgetNanos;
+
+    private volatile Listener mListener;
+
+    private final AtomicBoolean mTransportClosed = new AtomicBoolean();
+
+    private final RetryScheduler mRetryScheduler;
+
+    private final Runnable mPumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    /**
+     * @param transport   Sends the frames
+     * @param queue       Holds the frames to send
+     * @param downscaler  Makes the thumbnails and reduced frames
+     * @param concurrency Number of frames sent at the same time
+     */
+    public UploadPipeline(Transport transport, UploadQueue queue, FrameDownscaler downscaler,
+                          int concurrency) {
+        this(transport, queue, downscaler, concurrency, new TimerRetryScheduler());
+    }
+
+    /**
+     * @param retryScheduler Runs the retries, on the clock of {@code queue}
+     */
+    UploadPipeline(Transport transport, UploadQueue queue, FrameDownscaler downscaler,
+                   int concurrency, RetryScheduler retryScheduler) {
+        mTransport = transport;
+        mRetryScheduler = retryScheduler;
+        mQueue = queue;
+        mDownscaler = downscaler;
+        concurrency = Math.max(1, concurrency);
+        mConcurrency = concurrency;
+        mExecutor = new ThreadPoolExecutor(concurrency, concurrency, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Upload-" + mCount.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+        transport.setOrderListener(new Transport.OrderListener() {
+            @Override
+            public void onOrder(int[] indices) {
+                mQueue.setOrder(indices);
+                pump();
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Lets the pipeline send reduced frames when the link is too slow for the capture rate.
+     *
+     * @param captureFps The rate at which frames are captured
+     */
+    public void setCaptureRate(float captureFps) {
+        mFrameBudgetNanos = (long) (mConcurrency * 1e9 / Math.max(0.01f, captureFps));
+    }
+
+    /**
+     * Queues a frame and its thumbnail for upload.
+     *
+     * @param priority  The priority of the full frame, {@link UploadQueue#PRIORITY_KEYFRAME} or
+     *                  {@link UploadQueue#PRIORITY_FRAME}
+     * @param sharpness Orders frames of the same priority, sharpest first
+     */
+    public void submit(UploadItem item, int priority, float sharpness) throws IOException {
+        mQueue.add(new UploadItem(item.index, item.file, item.pose, THUMBNAIL_SCALE),
+                UploadQueue.PRIORITY_THUMBNAIL, 0);
+        mQueue.add(item, priority, sharpness);
+        pump();
+    }
+
+    /**
+     * Starts sending the frames already queued.
+     */
+    public void start() {
+        pump();
+    }
+
+    /**
+     * Takes frames from the queue as long as the queue lets more frames out.
+     */
+    private void pump() {
+        while (!mExecutor.isShutdown()) {
+            final UploadQueue.Entry entry = mQueue.take();
+            if (null == entry) {
+                break;
+            }
+            if (UploadQueue.PRIORITY_DEFERRED == entry.priority && mFrameBudgetNanos > 0
+                    && mEstimator.chooseScale(entry.item.file.length(), mFrameBudgetNanos) > 1) {
+                // Nothing else is due, and the link is still too slow for originals.
+                mQueue.release(entry);
+                break;
+            }
+            mPending.incrementAndGet();
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        upload(entry);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shut down meanwhile.
+                mPending.decrementAndGet();
+                mQueue.release(entry);
+                break;
+            }
+        }
+        if (mExecutor.isShutdown()) {
+            closeTransportIfIdle();
+        }
+        if (0 != mPending.get()) {
+            // The frames being sent pump again when they complete.
+            return;
+        }
+        long delay = mQueue.getNextDelay();
+        if (delay > 0) {
+            // Everything left is held back by a backoff.
+            mRetryScheduler.schedule(mPumpRunnable, delay);
+        }
+        Listener listener = mListener;
+        if (null != listener) {
+            listener.onIdle();
+        }
+    }
+
+    private void upload(UploadQueue.Entry entry) {
+        if (entry.item.file.exists()) {
+            send(entry);
+        } else {
+            Log.w(TAG, "Dropping frame " + entry.item.index + ", " + entry.item.file + " is gone");
+            dequeue(entry);
+            mPending.decrementAndGet();
+        }
+        // Let the next frame out.
+        pump();
+    }
+
+    private void send(UploadQueue.Entry entry) {
+        UploadItem item = entry.item;
+        UploadItem sent = item;
+        boolean reduced = false;
+        try {
+            if (item.scale > 1) {
+                // Queued as a thumbnail of the saved frame.
+                sent = mDownscaler.downscale(item, item.scale);
+            } else if (mFrameBudgetNanos > 0 && (UploadQueue.PRIORITY_KEYFRAME == entry.priority
+                    || UploadQueue.PRIORITY_FRAME == entry.priority)) {
+                int scale = mEstimator.chooseScale(item.file.length(), mFrameBudgetNanos);
+                if (scale > 1) {
+                    sent = mDownscaler.downscale(item, scale);
+                    reduced = true;
+                }
+            }
+            long start = System.nanoTime();
+            mTransport.send(sent);
+            long nanos = System.nanoTime() - start;
+            long bytes = sent.file.length();
+            if (UploadQueue.PRIORITY_THUMBNAIL != entry.priority) {
+                mEstimator.onSent(bytes, nanos);
+            }
+            mUploaded.incrementAndGet();
+            mBytes.addAndGet(bytes);
+            int slot = UploadQueue.PRIORITY_THUMBNAIL == entry.priority
+                    ? ThroughputEstimator.SCALES.length : getScaleSlot(sent.scale);
+            mScaleFrames.incrementAndGet(slot);
+            mScaleBytes.addAndGet(slot, bytes);
+            if (reduced) {
+                mQueue.add(item, UploadQueue.PRIORITY_DEFERRED, entry.sharpness);
+            }
+            dequeue(entry);
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onUploaded(sent, nanos);
+            }
+        } catch (IOException e) {
+            mFailed.incrementAndGet();
+            Log.w(TAG, "Upload of frame " + item.index + " failed", e);
+            try {
+                mQueue.onFailed(entry);
+            } catch (IOException journalError) {
+                Log.e(TAG, "Cannot record the failure of frame " + item.index, journalError);
+            }
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onUploadFailed(item, e);
+            }
+        } finally {
+            // Make sure the entry can be taken again if it wasn't completed.
+            mQueue.release(entry);
+            if (sent != item && !sent.file.delete()) {
+                Log.w(TAG, "Cannot delete " + sent.file);
+            }
+            mPending.decrementAndGet();
+        }
+    }
+
+    private void dequeue(UploadQueue.Entry entry) {
+        try {
+            mQueue.onSent(entry);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot remove frame " + entry.item.index + " from the queue", e);
+        }
+    }
+
+    private static int getScaleSlot(int scale) {
+        int[] scales = ThroughputEstimator.SCALES;
+        for (int i = 0; i < scales.length; i++) {
+            if (scales[i] == scale) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return A summary of the throughput estimate and of the frames sent at each scale
+     */
+    public String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%.0f kB/s per upload",
+                mEstimator.getBytesPerSecond() / 1000));
+        int[] scales = ThroughputEstimator.SCALES;
+        for (int i = 0; i < scales.length; i++) {
+            sb.append(String.format(Locale.US, ", 1/%d: %d frames %d kB", scales[i],
+                    mScaleFrames.get(i), mScaleBytes.get(i) / 1000));
+        }
+        int thumbnails = ThroughputEstimator.SCALES.length;
+        sb.append(String.format(Locale.US, ", thumbnails: %d frames %d kB",
+                mScaleFrames.get(thumbnails), mScaleBytes.get(thumbnails) / 1000));
+        sb.append(", ").append(mQueue.size()).append(" queued");
+        return sb.toString();
+    }
+
+    /**
+     * @return The number of frames being sent
+     */
+    public int getPending() {
+        return mPending.get();
+    }
+
+    public int getUploaded() {
+        return mUploaded.get();
+    }
+
+    public int getFailed() {
+        return mFailed.get();
+    }
+
+    /**
+     * @return The number of bytes of frames sent successfully
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * Closes the transport once the last frame being sent is completed.
+     */
+    private void closeTransportIfIdle() {
+        if (0 == mPending.get() && mTransportClosed.compareAndSet(false, true)) {
+            mTransport.close();
+        }
+    }
+
+    /**
+     * Stops taking frames from the queue. Frames being sent are still completed, then the
+     * transport is closed; the other frames stay queued.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        mRetryScheduler.shutdown();
+        closeTransportIfIdle();
+        if (null != mDownscaler) {
+            mDownscaler.close();
+        }
+        Log.i(TAG, "Uploaded " + mUploaded.get() + " frames (" + mBytes.get() + " bytes), "
+                + mFailed.get() + " failed, " + mPending.get() + " still in flight; "
+                + getMetrics());
+    }
+
+}
@@ -0,0 +1,83 @@
+package lapidus.edu.rec3dclient.upload;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+/**
+ * Remembers, across process restarts, the chunk hashes of the files being uploaded and how many
+ * of their chunks the server has acknowledged.
+ */
+public class UploadProgressStore {
+
+    private static final String PREFS_NAME = "upload_progress";
+
+    private static final String HASHES_SUFFIX = "|hashes";
+
+    private static final String ACKED_SUFFIX = "|acked";
+
+    private final SharedPreferences mPrefs;
+
+    public UploadProgressStore(Context context) {
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    UploadProgressStore(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Builds the key of a file. A file that is rewritten gets a new key.
+     */
+    public static String key(File file) {
+        return file.getPath() + '|' + file.length() + '|' + file.lastModified();
+    }
+
+    /**
+     * Returns the chunk hashes stored for {@code key}, or {@code null}.
+     */
+    public String[] getHashes(String key) {
+        String hashes = mPrefs.getString(key + HASHES_SUFFIX, null);
+        return null == hashes ? null : hashes.split(",");
+    }
+
+    /**
+     * Stores the chunk hashes of a file and resets its progress.
+     */
+    public void putHashes(String key, String[] hashes) {
+        StringBuilder joined = new StringBuilder();
+        for (String hash : hashes) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(hash);
+        }
+        mPrefs.edit()
+                .putString(key + HASHES_SUFFIX, joined.toString())
+                .putInt(key + ACKED_SUFFIX, 0)
+                .apply();
+    }
+
+    /**
+     * Returns the number of leading chunks of a file the server has acknowledged.
+     */
+    public int getAcked(String key) {
+        return mPrefs.getInt(key + ACKED_SUFFIX, 0);
+    }
+
+    public void setAcked(String key, int chunks) {
+        mPrefs.edit().putInt(key + ACKED_SUFFIX, chunks).apply();
+    }
+
+    /**
+     * Forgets a file once it is uploaded completely.
+     */
+    public void remove(String key) {
+        mPrefs.edit()
+                .remove(key + HASHES_SUFFIX)
+                .remove(key + ACKED_SUFFIX)
+                .apply();
+    }
+
+}
@@ -0,0 +1,384 @@
+package lapidus.edu.rec3dclient.upload;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import lapidus.edu.rec3dclient.Clock;
+import lapidus.edu.rec3dclient.camera.CaptureJournal;
+
+/**
+ * Frames waiting for upload, kept in a {@link CaptureJournal} so that they survive the activity
+ * and the process.
+ * <p>
+ * Thumbnails are handed out first, in the order they were added. Full frames follow in the order
+ * last asked for by the server with {@link #setOrder}, then by priority, the sharpest first within
+ * a priority, and in the order they were added otherwise. At most {@link #setMaxInFlight} frames
+ * are out at a time, whoever sends them. A frame that fails is held back for an exponentially
+ * growing delay before it is handed out again. Only the number of attempts is stored: after a
+ * restart, every frame is due at once.
+ */
+public class UploadQueue {
+
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "UploadQueue";
+
+    private static final String FILE_NAME = "upload.journal";
+
+    /**
+     * Small renditions of frames, which let the server start aligning views early.
+     */
+    public static final int PRIORITY_THUMBNAIL = 3;
+
+    /**
+     * Frames chosen by the keyframe trigger.
+     */
+    public static final int PRIORITY_KEYFRAME = 2;
+
+    /**
+     * Other captured frames.
+     */
+    public static final int PRIORITY_FRAME = 1;
+
+    /**
+     * Originals of frames that were already sent reduced.
+     */
+    public static final int PRIORITY_DEFERRED = 0;
+
+    private static final long BASE_BACKOFF_MILLIS = 2000;
+
+    private static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000;
+
+    private static final int JOURNAL_COMMIT_RECORDS = 8;
+
+    private static final long JOURNAL_COMMIT_MILLIS = 500;
+
+    private static final String ADD = "+";
+
+    private static final String REMOVE = "-";
+
+    private static final String FAIL = "!";
+
+    private static UploadQueue sInstance;
+
+    /**
+     * A queued frame.
+     */
+    public static class Entry {
+
+        public final long id;
+
+        public final UploadItem item;
+
+        public final int priority;
+
+        public final float sharpness;
+
+        private int mAttempts;
+
+        private long mNotBefore;
+
+        private boolean mInFlight;
+
+        /**
+         * Position in the order asked for by the server, or {@link Integer#MAX_VALUE}.
+         */
+        private int mRank = Integer.MAX_VALUE;
+
+        Entry(long id, UploadItem item, int priority, float sharpness) {
+            this.id = id;
+            this.item = item;
+            this.priority = priority;
+            this.sharpness = sharpness;
+        }
+
+        /**
+         * @return The number of failed attempts to send the frame
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * Whether this entry goes before {@code other}.
+         */
+        boolean precedes(Entry other) {
+            boolean thumbnail = PRIORITY_THUMBNAIL == priority;
+            if (thumbnail != (PRIORITY_THUMBNAIL == other.priority)) {
+                return thumbnail;
+            }
+            if (mRank != other.mRank) {
+                return mRank < other.mRank;
+            }
+            if (priority != other.priority) {
+                return priority > other.priority;
+            }
+            if (sharpness != other.sharpness) {
+                return sharpness > other.sharpness;
+            }
+            return id < other.id;
+        }
+
+        String toRecord() {
+            return String.format(Locale.US, "%s|%d|%d|%.1f|%d|%d|%d|%s|%s", ADD, id, priority,
+                    sharpness, mAttempts, item.index, item.scale, item.file.getPath(), item.pose);
+        }
+
+        static Entry parse(String record) {
+            String[] values = record.split("\\|", 9);
+            if (values.length < 9) {
+                throw new IllegalArgumentException("Not a queue entry: " + record);
+            }
+            Entry entry = new Entry(Long.parseLong(values[1]), new UploadItem(
+                    Integer.parseInt(values[5]), new File(values[7]), values[8],
+                    Integer.parseInt(values[6])), Integer.parseInt(values[2]),
+                    Float.parseFloat(values[3]));
+            entry.mAttempts = Integer.parseInt(values[4]);
+            return entry;
+        }
+
+    }
+
+    private final File mFile;
+
+    private final Clock mClock;
+
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * The order last asked for by the server, as rank by frame index.
+     */
+    private final Map<Integer, Integer> mOrder = new HashMap<>();
+
+    private CaptureJournal mJournal;
+
+    private long mNextId;
+
+    private int mInFlight;
+
+    private int mMaxInFlight = 1;
+
+    /**
+     * @param file  The journal, created if needed
+     * @param clock The time base of the backoff
+     */
+    public UploadQueue(File file, Clock clock) throws IOException {
+        mFile = file;
+        mClock = clock;
+        if (file.exists()) {
+            CaptureJournal journal = CaptureJournal.open(file, JOURNAL_COMMIT_RECORDS,
+                    JOURNAL_COMMIT_MILLIS);
+            journal.close();
+            replay(journal.getRecovered());
+        }
+        compact();
+    }
+
+    /**
+     * Returns the queue of the app, opening it on the first call.
+     */
+    public static synchronized UploadQueue get(Context context) throws IOException {
+        if (null == sInstance) {
+            sInstance = new UploadQueue(new File(context.getFilesDir(), FILE_NAME), Clock.SYSTEM);
+        }
+        return sInstance;
+    }
+
+    private void replay(List<String> records) {
+        for (String record : records) {
+            try {
+                if (record.startsWith(ADD)) {
+                    Entry entry = Entry.parse(record);
+                    mEntries.add(entry);
+                    mNextId = Math.max(mNextId, entry.id + 1);
+                    continue;
+                }
+                String[] values = record.split("\\|");
+                Entry entry = find(Long.parseLong(values[1]));
+                if (null == entry) {
+                    continue;
+                }
+                if (record.startsWith(REMOVE)) {
+                    mEntries.remove(entry);
+                } else if (record.startsWith(FAIL)) {
+                    entry.mAttempts = Integer.parseInt(values[2]);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                Log.e(TAG, "Unexpected record in upload journal " + e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with one record per queued frame.
+     */
+    private void compact() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        if (temp.exists() && !temp.delete()) {
+            throw new IOException("Cannot delete " + temp);
+        }
+        CaptureJournal journal = CaptureJournal.open(temp, Integer.MAX_VALUE, Long.MAX_VALUE);
+        try {
+            for (Entry entry : mEntries) {
+                journal.append(entry.toRecord());
+            }
+        } finally {
+            journal.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mJournal = CaptureJournal.open(mFile, JOURNAL_COMMIT_RECORDS, JOURNAL_COMMIT_MILLIS);
+    }
+
+    private Entry find(long id) {
+        for (Entry entry : mEntries) {
+            if (entry.id == id) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the largest number of frames handed out at the same time.
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        mMaxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Queues a frame.
+     */
+    public synchronized Entry add(UploadItem item, int priority, float sharpness)
+            throws IOException {
+        Entry entry = new Entry(mNextId++, item, priority, sharpness);
+        rank(entry);
+        mJournal.append(entry.toRecord());
+        mEntries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Puts the full frames with the given indices first, in that order, replacing the order set
+     * before. Frames queued later are ranked by the same order.
+     *
+     * @param indices Frame indices, the most wanted first
+     */
+    public synchronized void setOrder(int[] indices) {
+        mOrder.clear();
+        for (int i = indices.length - 1; i >= 0; i--) {
+            mOrder.put(indices[i], i);
+        }
+        for (Entry entry : mEntries) {
+            rank(entry);
+        }
+    }
+
+    private void rank(Entry entry) {
+        Integer rank = PRIORITY_THUMBNAIL == entry.priority ? null : mOrder.get(entry.item.index);
+        entry.mRank = null == rank ? Integer.MAX_VALUE : rank;
+    }
+
+    /**
+     * Hands out the first frame that is due, unless {@link #setMaxInFlight} frames are out
+     * already. The frame stays queued until it is passed to {@link #onSent}, {@link #onFailed}
+     * or {@link #release}.
+     *
+     * @return The frame, or {@code null} if none may be sent now
+     */
+    public synchronized Entry take() {
+        if (mInFlight >= mMaxInFlight) {
+            return null;
+        }
+        long now = mClock.elapsedRealtime();
+        Entry best = null;
+        for (Entry entry : mEntries) {
+            if (!entry.mInFlight && entry.mNotBefore <= now
+                    && (null == best || entry.precedes(best))) {
+                best = entry;
+            }
+        }
+        if (null != best) {
+            best.mInFlight = true;
+            mInFlight++;
+        }
+        return best;
+    }
+
+    /**
+     * Removes a frame that was sent, or that can't be sent at all.
+     */
+    public synchronized void onSent(Entry entry) throws IOException {
+        release(entry);
+        if (mEntries.remove(entry)) {
+            mJournal.append(REMOVE + '|' + entry.id);
+        }
+    }
+
+    /**
+     * Holds a frame back after a failed attempt, twice as long as after the previous one.
+     */
+    public synchronized void onFailed(Entry entry) throws IOException {
+        release(entry);
+        entry.mAttempts++;
+        entry.mNotBefore = mClock.elapsedRealtime() + getBackoff(entry.mAttempts);
+        mJournal.append(FAIL + '|' + entry.id + '|' + entry.mAttempts);
+    }
+
+    /**
+     * Returns a frame that was handed out but not attempted.
+     */
+    public synchronized void release(Entry entry) {
+        if (entry.mInFlight) {
+            entry.mInFlight = false;
+            mInFlight--;
+        }
+    }
+
+    /**
+     * @return The delay in milliseconds after the {@code attempts}-th failure
+     */
+    static long getBackoff(int attempts) {
+        if (attempts <= 0) {
+            return 0;
+        }
+        int shift = Math.min(attempts - 1, 20);
+        return Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << shift);
+    }
+
+    /**
+     * @return Milliseconds until a queued frame is due, 0 if one is due or out now, or -1 if the
+     * queue is empty
+     */
+    public synchronized long getNextDelay() {
+        long now = mClock.elapsedRealtime();
+        long delay = -1;
+        for (Entry entry : mEntries) {
+            long wait = Math.max(0, entry.mNotBefore - now);
+            delay = delay < 0 ? wait : Math.min(delay, wait);
+        }
+        return delay;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Commits the pending records and closes the journal.
+     */
+    public synchronized void close() throws IOException {
+        mJournal.close();
+    }
+
+}
@@ -0,0 +1,39 @@
+package lapidus.edu.rec3dclient;
+
+/**
+ * A {@link Clock} that only moves when told to.
+ */
+public class FakeClock implements Clock {
+
+    private long mNanos;
+
+    public FakeClock() {
+        this(0);
+    }
+
+    /**
+     * @param millis The time to start at
+     */
+    public FakeClock(long millis) {
+        mNanos = millis * 1000000;
+    }
+
+    public synchronized void advance(long millis) {
+        mNanos += millis * 1000000;
+    }
+
+    public synchronized void advanceNanos(long nanos) {
+        mNanos += nanos;
+    }
+
+    @Override
+    public synchronized long elapsedRealtime() {
+        return mNanos / 1000000;
+    }
+
+    @Override
+    public synchronized long elapsedRealtimeNanos() {
+        return mNanos;
+    }
+
+}
@@ -0,0 +1,160 @@
+package lapidus.edu.rec3dclient;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link SharedPreferences} kept in memory. Two objects sharing one instance see the same values,
+ * as two runs of the process would.
+ */
+public class FakeSharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return (String) get(key, defValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return (Set<String>) get(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return (Integer) get(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return (Long) get(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return (Float) get(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return (Boolean) get(key, defValue);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    private synchronized Object get(String key, Object defValue) {
+        return mValues.containsKey(key) ? mValues.get(key) : defValue;
+    }
+
+    @Override
+    public Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Collects changes and applies them at once. A {@code null} value stands for a removal.
+     */
+    private class FakeEditor implements Editor {
+
+        private final Map<String, Object> mChanges = new HashMap<>();
+
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            mChanges.put(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (FakeSharedPreferences.this) {
+                if (mClear) {
+                    mValues.clear();
+                }
+                for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                    if (null == change.getValue()) {
+                        mValues.remove(change.getKey());
+                    } else {
+                        mValues.put(change.getKey(), change.getValue());
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+
+    }
+
+}
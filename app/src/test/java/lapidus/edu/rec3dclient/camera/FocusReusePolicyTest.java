@@ -0,0 +1,101 @@
+package lapidus.edu.rec3dclient.camera;
+
+import android.hardware.camera2.CaptureResult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import lapidus.edu.rec3dclient.FakeClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FocusReusePolicyTest {
+
+    private static final Float DISTANCE = 2.5f;
+
+    private FakeClock mClock;
+
+    private FocusReusePolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock(1000);
+        mPolicy = new FocusReusePolicy(mClock);
+        mPolicy.setThreshold(2);
+        mPolicy.onFocusLocked(rolled(0), DISTANCE);
+    }
+
+    @Test
+    public void reusesTheFocusWithinTheThreshold() {
+        assertEquals(DISTANCE, mPolicy.getReusableFocus(rolled(0)));
+        assertEquals(DISTANCE, mPolicy.getReusableFocus(rolled(1.5f)));
+        assertNull(mPolicy.getReusableFocus(rolled(2.5f)));
+
+        mPolicy.setThreshold(5);
+        assertEquals(DISTANCE, mPolicy.getReusableFocus(rolled(2.5f)));
+
+        // A threshold of 0 turns reuse off.
+        mPolicy.setThreshold(0);
+        assertNull(mPolicy.getReusableFocus(rolled(0)));
+    }
+
+    @Test
+    public void expiresOldLocks() {
+        mClock.advance(FocusReusePolicy.MAX_AGE_MS);
+        assertEquals(DISTANCE, mPolicy.getReusableFocus(rolled(0)));
+
+        mClock.advance(1);
+        assertNull(mPolicy.getReusableFocus(rolled(0)));
+
+        // A new lock starts over.
+        mPolicy.onFocusLocked(rolled(0), DISTANCE);
+        assertEquals(DISTANCE, mPolicy.getReusableFocus(rolled(0)));
+    }
+
+    @Test
+    public void keepsTheFocusWhileTheLensReportsFocused() {
+        mPolicy.onPreviewResult(CaptureResult.CONTROL_AF_STATE_INACTIVE,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        mPolicy.onPreviewResult(CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED, null);
+        mPolicy.onPreviewResult(null, CaptureResult.CONTROL_AE_STATE_LOCKED);
+        assertEquals(DISTANCE, mPolicy.getReusableFocus(rolled(0)));
+    }
+
+    @Test
+    public void dropsTheFocusOnceTheLensScans() {
+        mPolicy.onPreviewResult(CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN, null);
+        assertNull(mPolicy.getReusableFocus(rolled(0)));
+
+        // Focused again, but possibly on another subject: only a new lock counts.
+        mPolicy.onPreviewResult(CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED, null);
+        assertNull(mPolicy.getReusableFocus(rolled(0)));
+    }
+
+    @Test
+    public void waitsForTheExposureToConverge() {
+        mPolicy.onPreviewResult(null, CaptureResult.CONTROL_AE_STATE_SEARCHING);
+        assertNull(mPolicy.getReusableFocus(rolled(0)));
+
+        mPolicy.onPreviewResult(null, CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals(DISTANCE, mPolicy.getReusableFocus(rolled(0)));
+    }
+
+    @Test
+    public void forgetsTheLock() {
+        mPolicy.invalidate();
+        assertNull(mPolicy.getReusableFocus(rolled(0)));
+
+        // A lock without a reported distance leaves nothing to reuse.
+        mPolicy.onFocusLocked(rolled(0), null);
+        assertNull(mPolicy.getReusableFocus(rolled(0)));
+    }
+
+    /**
+     * @return An orientation rolled by {@code degrees}
+     */
+    private static float[] rolled(float degrees) {
+        return new float[]{0, 0, (float) Math.toRadians(degrees)};
+    }
+
+}
@@ -0,0 +1,219 @@
+package lapidus.edu.rec3dclient.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lapidus.edu.rec3dclient.FakeClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThermalGovernorTest {
+
+    private static final long EXPOSURE_NS = 10000000;
+
+    /**
+     * A battery whose state is set by the test and only becomes visible on {@link #refresh()}.
+     */
+    private static class FakeBattery implements BatterySource {
+
+        float temperature = 30;
+
+        float level = 0.8f;
+
+        boolean charging;
+
+        int refreshes;
+
+        private float mTemperature;
+
+        private float mLevel;
+
+        private boolean mCharging;
+
+        @Override
+        public void refresh() {
+            refreshes++;
+            mTemperature = temperature;
+            mLevel = level;
+            mCharging = charging;
+        }
+
+        @Override
+        public float getTemperature() {
+            return mTemperature;
+        }
+
+        @Override
+        public float getLevel() {
+            return mLevel;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return mCharging;
+        }
+
+    }
+
+    private FakeClock mClock;
+
+    private FakeBattery mBattery;
+
+    private ThermalGovernor mGovernor;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock(1000);
+        mBattery = new FakeBattery();
+        mGovernor = new ThermalGovernor(mBattery, mClock);
+    }
+
+    @Test
+    public void stepsUpAtOnce() {
+        mBattery.temperature = 42;
+        assertTrue(mGovernor.evaluate());
+        assertEquals(ThermalGovernor.TIER_HOT, mGovernor.getTier());
+        assertEquals(4, mGovernor.getCaptureIntervalScale());
+        assertEquals(4, mGovernor.getAnalysisStride());
+    }
+
+    @Test
+    public void stepsDownOneTierAtATimeAfterDwell() {
+        mBattery.temperature = 45;
+        mGovernor.evaluate();
+        assertEquals(ThermalGovernor.TIER_CRITICAL, mGovernor.getTier());
+
+        mBattery.temperature = 30;
+        mClock.advance(10000);
+        assertFalse(mGovernor.evaluate());
+        assertEquals(ThermalGovernor.TIER_CRITICAL, mGovernor.getTier());
+
+        int[] expected = {ThermalGovernor.TIER_HOT, ThermalGovernor.TIER_WARM,
+                ThermalGovernor.TIER_NORMAL};
+        for (int tier : expected) {
+            mClock.advance(30000);
+            assertTrue(mGovernor.evaluate());
+            assertEquals(tier, mGovernor.getTier());
+            // The next step waits for another dwell time.
+            mClock.advance(1000);
+            assertFalse(mGovernor.evaluate());
+        }
+    }
+
+    @Test
+    public void leavesTierOnlyWellBelowThreshold() {
+        mBattery.temperature = 41.5f;
+        mGovernor.evaluate();
+        assertEquals(ThermalGovernor.TIER_HOT, mGovernor.getTier());
+
+        mBattery.temperature = 40;
+        mClock.advance(60000);
+        assertFalse(mGovernor.evaluate());
+        assertEquals(ThermalGovernor.TIER_HOT, mGovernor.getTier());
+
+        mBattery.temperature = 39;
+        assertTrue(mGovernor.evaluate());
+        assertEquals(ThermalGovernor.TIER_WARM, mGovernor.getTier());
+    }
+
+    @Test
+    public void lowBatteryCountsOnlyWhenNotCharging() {
+        mBattery.level = 0.1f;
+        mBattery.charging = true;
+        assertFalse(mGovernor.evaluate());
+        assertEquals(ThermalGovernor.TIER_NORMAL, mGovernor.getTier());
+
+        mBattery.charging = false;
+        assertTrue(mGovernor.evaluate());
+        assertEquals(ThermalGovernor.TIER_WARM, mGovernor.getTier());
+
+        mBattery.level = 0.03f;
+        assertTrue(mGovernor.evaluate());
+        assertEquals(ThermalGovernor.TIER_HOT, mGovernor.getTier());
+    }
+
+    @Test
+    public void readsBatteryOncePerEvaluation() {
+        mGovernor.evaluate();
+        mGovernor.evaluate();
+        mGovernor.evaluate();
+        assertEquals(3, mBattery.refreshes);
+    }
+
+    @Test
+    public void slowFramesRaiseTierOnFrame() {
+        long timestamp = frames(0, 100, 33000000, EXPOSURE_NS);
+        assertEquals(1f, mGovernor.getFrameSlowdown(), 0.01f);
+
+        // Throttled to a third of the rate; the tier is re-evaluated every few seconds.
+        frames(timestamp, 200, 100000000, EXPOSURE_NS);
+        assertTrue(mGovernor.getFrameSlowdown() >= 2);
+        assertEquals(ThermalGovernor.TIER_HOT, mGovernor.getTier());
+        assertTrue(mBattery.refreshes > 0);
+    }
+
+    @Test
+    public void framesStretchedByTheExposureAreNotSlow() {
+        long timestamp = frames(0, 100, 33000000, EXPOSURE_NS);
+
+        // Auto exposure halves the frame rate in low light.
+        timestamp = frames(timestamp, 200, 66000000, 65000000);
+        assertEquals(1f, mGovernor.getFrameSlowdown(), 0.01f);
+        assertEquals(ThermalGovernor.TIER_NORMAL, mGovernor.getTier());
+
+        // Back in the light, the frames are as fast as before.
+        frames(timestamp, 100, 33000000, EXPOSURE_NS);
+        assertEquals(1f, mGovernor.getFrameSlowdown(), 0.01f);
+        assertEquals(ThermalGovernor.TIER_NORMAL, mGovernor.getTier());
+    }
+
+    @Test
+    public void measuresFramesAgainstTheCurrentSession() {
+        long timestamp = frames(0, 100, 33000000, EXPOSURE_NS);
+
+        // A session at half the frame rate, e.g. for video.
+        mGovernor.resetFrames();
+        assertEquals(1f, mGovernor.getFrameSlowdown(), 0.01f);
+        frames(timestamp, 200, 66000000, EXPOSURE_NS);
+        assertEquals(1f, mGovernor.getFrameSlowdown(), 0.01f);
+        assertEquals(ThermalGovernor.TIER_NORMAL, mGovernor.getTier());
+    }
+
+    @Test
+    public void notifiesListenerAndKeepsHistory() {
+        final List<int[]> changes = new ArrayList<>();
+        mGovernor.setListener(new ThermalGovernor.Listener() {
+            @Override
+            public void onTierChanged(int oldTier, int newTier, String reason) {
+                changes.add(new int[]{oldTier, newTier});
+            }
+        });
+        mBattery.temperature = 39;
+        mGovernor.evaluate();
+        assertEquals(1, changes.size());
+        assertEquals(ThermalGovernor.TIER_NORMAL, changes.get(0)[0]);
+        assertEquals(ThermalGovernor.TIER_WARM, changes.get(0)[1]);
+        assertEquals(1, mGovernor.getHistory().size());
+    }
+
+    /**
+     * Feeds {@code count} preview frames of the given interval, each of which advances the clock
+     * by its interval.
+     *
+     * @return The timestamp of the last frame
+     */
+    private long frames(long timestamp, int count, long interval, long exposureTime) {
+        for (int i = 0; i < count; i++) {
+            timestamp += interval;
+            mClock.advanceNanos(interval);
+            mGovernor.onFrame(timestamp, interval, exposureTime);
+        }
+        return timestamp;
+    }
+
+}
@@ -0,0 +1,49 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.File;
+import java.io.IOException;
+
+import lapidus.edu.rec3dclient.Clock;
+
+/**
+ * Runs a {@link ClockSyncServer} on a desktop JVM on {@link System#nanoTime()}, to try a session
+ * with {@link ClockSyncMember}s on one machine:
+ * <pre>
+ * java lapidus.edu.rec3dclient.net.ClockSyncCoordinator [port [index file]]
+ * </pre>
+ */
+public class ClockSyncCoordinator {
+
+    private static final int DEFAULT_PORT = 9760;
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        File index = new File(args.length > 1 ? args[1] : "session_index.txt");
+        ClockSyncServer server = new ClockSyncServer(port, new Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return System.nanoTime() / 1000000;
+            }
+
+            @Override
+            public long elapsedRealtimeNanos() {
+                return System.nanoTime();
+            }
+        }, "coordinator", index, new ClockSyncServer.Listener() {
+            @Override
+            public void onJoined(int device, String name) {
+                System.err.println("Device " + device + " joined: " + name);
+            }
+
+            @Override
+            public void onClosed(IOException cause) {
+                if (null != cause) {
+                    cause.printStackTrace();
+                }
+            }
+        });
+        System.err.println("Coordinating on UDP port " + server.getPort() + ", writing "
+                + index);
+    }
+
+}
@@ -0,0 +1,266 @@
+package lapidus.edu.rec3dclient.net;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lapidus.edu.rec3dclient.Clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClockSyncLoopbackTest {
+
+    /**
+     * Offsets of the simulated members, in nanoseconds.
+     */
+    private static final long[] OFFSETS = {1500000000L, -250000000000L, 7000000L};
+
+    /**
+     * Drifts of the simulated members, as fractions.
+     */
+    private static final double[] DRIFTS = {80e-6, -40e-6, 0};
+
+    private static final int FRAMES = 20;
+
+    /**
+     * Time between the frames of one device; the devices take turns within it.
+     */
+    private static final long FRAME_INTERVAL_NANOS = 40000000L;
+
+    private static final long MAX_MAPPING_ERROR_NANOS = 1000000L;
+
+    private static final double MAX_DRIFT_ERROR = 10e-6;
+
+    /**
+     * Shorter than {@link ClockSyncEstimator#MIN_DRIFT_SPAN_NANOS}, so that the test does not
+     * wait ten seconds for a drift estimate. Probes go out faster to make up for the span.
+     */
+    private static final long DRIFT_SPAN_NANOS = 3000000000L;
+
+    private static final long PROBE_INTERVAL_MS = 100;
+
+    private static final long TIMEOUT_NANOS = 20000000000L;
+
+    /**
+     * A device clock that is {@code offset} ahead of {@link System#nanoTime()} at {@code start}
+     * and runs {@code drift} faster.
+     */
+    private static class SkewedClock implements Clock {
+
+        final long offset;
+
+        final double drift;
+
+        final long start;
+
+        SkewedClock(long offset, double drift, long start) {
+            this.offset = offset;
+            this.drift = drift;
+            this.start = start;
+        }
+
+        long toLocal(long nanoTime) {
+            return nanoTime + offset + Math.round(drift * (nanoTime - start));
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return elapsedRealtimeNanos() / 1000000;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return toLocal(System.nanoTime());
+        }
+
+    }
+
+    /**
+     * The clock of the coordinator, which is the timeline of the session.
+     */
+    private static final Clock NANO_TIME = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final ClockSyncServer.Listener SERVER_LISTENER =
+            new ClockSyncServer.Listener() {
+                @Override
+                public void onJoined(int device, String name) {
+                }
+
+                @Override
+                public void onClosed(IOException cause) {
+                }
+            };
+
+    private static final ClockSyncClient.Listener CLIENT_LISTENER =
+            new ClockSyncClient.Listener() {
+                @Override
+                public void onJoined(int device) {
+                }
+
+                @Override
+                public void onClosed(IOException cause) {
+                }
+            };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ClockSyncServer mServer;
+
+    private final List<ClockSyncClient> mClients = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ClockSyncClient client : mClients) {
+            client.close();
+        }
+        if (null != mServer) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void estimatesSkewedClocksAndMergesTheirFrames() throws Exception {
+        long start = System.nanoTime();
+        mServer = new ClockSyncServer(0, NANO_TIME, "coordinator", null, SERVER_LISTENER);
+        SkewedClock[] clocks = new SkewedClock[OFFSETS.length];
+        for (int i = 0; i < clocks.length; i++) {
+            clocks[i] = new SkewedClock(OFFSETS[i], DRIFTS[i], start);
+            mClients.add(new ClockSyncClient("127.0.0.1", mServer.getPort(), "member" + i,
+                    clocks[i], new ClockSyncEstimator(DRIFT_SPAN_NANOS), PROBE_INTERVAL_MS,
+                    CLIENT_LISTENER));
+        }
+
+        // Every device takes a frame in turn: the coordinator first, then each member. Frames
+        // are reported with the time on the clock of their device.
+        int devices = clocks.length + 1;
+        long slot = FRAME_INTERVAL_NANOS / devices;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            long time = start + frame * FRAME_INTERVAL_NANOS;
+            mServer.reportFrame(frame, time);
+            for (int i = 0; i < clocks.length; i++) {
+                mClients.get(i).reportFrame(frame, clocks[i].toLocal(time + (i + 1) * slot));
+            }
+        }
+
+        // Drift is estimated once the exchanges span DRIFT_SPAN_NANOS, and settles as the
+        // window of exchanges grows.
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        for (int i = 0; i < clocks.length; i++) {
+            ClockSyncClient client = mClients.get(i);
+            while (true) {
+                // The estimate is how much faster the coordinator runs.
+                double drift = client.getEstimator().getDrift();
+                if (client.isSynchronized() && Math.abs(drift + DRIFTS[i]) <= MAX_DRIFT_ERROR) {
+                    break;
+                }
+                assertTrue("Drift of member " + i + " is " + drift * 1e6 + " ppm",
+                        System.nanoTime() < deadline);
+                Thread.sleep(50);
+            }
+            long local = clocks[i].elapsedRealtimeNanos();
+            long error = client.toSessionTime(local) - System.nanoTime();
+            assertTrue("Mapping error of member " + i + ": " + error + " ns",
+                    Math.abs(error) < MAX_MAPPING_ERROR_NANOS);
+        }
+
+        // The frames are all confirmed with the estimate that includes the drift.
+        for (ClockSyncClient client : mClients) {
+            client.reportFrame(FRAMES, client.getEstimator().getReference());
+        }
+        SessionIndex index = mServer.getIndex();
+        while (index.getFrameCount() < FRAMES * devices + clocks.length) {
+            assertTrue("Frames are missing from the index", System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+
+        File file = mFolder.newFile("session_index.txt");
+        index.write(file);
+        // Devices are numbered in the order they joined, which is not the order of the members.
+        Map<String, Integer> numbers = readDevices(file);
+        int[] turns = new int[devices + 1];
+        turns[numbers.get("coordinator")] = 0;
+        for (int i = 0; i < clocks.length; i++) {
+            turns[numbers.get("member" + i)] = i + 1;
+        }
+        List<long[]> frames = readFrames(file);
+        assertEquals(devices * FRAMES + clocks.length, frames.size());
+        for (int n = 0; n < devices * FRAMES; n++) {
+            long[] frame = frames.get(n);
+            int turn = turns[(int) frame[2]];
+            assertEquals(n / devices, frame[3]);
+            assertEquals(n % devices, turn);
+            long expected = start + frame[3] * FRAME_INTERVAL_NANOS + turn * slot;
+            assertTrue("Frame " + frame[3] + " of device " + frame[2] + " is off by "
+                    + (frame[0] - expected) + " ns",
+                    Math.abs(frame[0] - expected) < MAX_MAPPING_ERROR_NANOS);
+        }
+    }
+
+    /**
+     * @return The number of every device in the file by its name
+     */
+    private static Map<String, Integer> readDevices(File file) throws IOException {
+        Map<String, Integer> numbers = new HashMap<>();
+        for (String line : readLines(file)) {
+            if (line.startsWith("# device ")) {
+                String[] values = line.split(" ", 6);
+                numbers.put(values[5], Integer.parseInt(values[2]));
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * @return The session time, local time, device and index of every frame in the file
+     */
+    private static List<long[]> readFrames(File file) throws IOException {
+        List<long[]> frames = new ArrayList<>();
+        for (String line : readLines(file)) {
+            if (!line.startsWith("#")) {
+                String[] values = line.split(" ");
+                frames.add(new long[]{Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2]), Long.parseLong(values[3])});
+            }
+        }
+        return frames;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+}
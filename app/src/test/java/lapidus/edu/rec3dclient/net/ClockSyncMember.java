@@ -0,0 +1,68 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import lapidus.edu.rec3dclient.Clock;
+
+/**
+ * Runs a {@link ClockSyncClient} on a desktop JVM with a simulated device clock and frames, and
+ * prints the error of its estimate every few seconds. The error is known because a
+ * {@link ClockSyncCoordinator} on the same machine keeps {@link System#nanoTime()}.
+ * <pre>
+ * java lapidus.edu.rec3dclient.net.ClockSyncMember host port name [offset ms [drift ppm]]
+ * </pre>
+ */
+public class ClockSyncMember {
+
+    public static void main(String[] args) throws Exception {
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        final String name = args[2];
+        final long offset = args.length > 3 ? (long) (Double.parseDouble(args[3]) * 1e6) : 0;
+        final double drift = args.length > 4 ? Double.parseDouble(args[4]) * 1e-6 : 0;
+        final long start = System.nanoTime();
+        // The simulated device clock is "offset" ahead of System.nanoTime() and runs "drift"
+        // faster.
+        Clock clock = new Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return elapsedRealtimeNanos() / 1000000;
+            }
+
+            @Override
+            public long elapsedRealtimeNanos() {
+                long now = System.nanoTime();
+                return now + offset + Math.round(drift * (now - start));
+            }
+        };
+        ClockSyncClient client = new ClockSyncClient(host, port, name, clock,
+                new ClockSyncClient.Listener() {
+                    @Override
+                    public void onJoined(int device) {
+                        System.err.println("Joined as device " + device);
+                    }
+
+                    @Override
+                    public void onClosed(IOException cause) {
+                        if (null != cause) {
+                            cause.printStackTrace();
+                        }
+                    }
+                });
+        for (int index = 0; ; index++) {
+            Thread.sleep(200);
+            client.reportFrame(index, clock.elapsedRealtimeNanos());
+            if (index % 25 == 0 && client.isSynchronized()) {
+                long local = clock.elapsedRealtimeNanos();
+                long error = client.toSessionTime(local) - System.nanoTime();
+                ClockSyncEstimator estimator = client.getEstimator();
+                System.err.println(String.format(Locale.US,
+                        "%s: offset %.3f ms, drift %.2f ppm, error %.3f ms, uncertainty %.3f ms",
+                        name, estimator.getOffset() / 1e6, estimator.getDrift() * 1e6,
+                        error / 1e6, estimator.getUncertainty() / 1e6));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,300 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server side of {@link MuxConnection} on loopback, for testing the client without a
+ * reconstruction server.
+ * <p>
+ * It reassembles every stream into a frame and acks it once the stream ends. Credit for data is
+ * granted back as it arrives, unless {@link #setAutoCredit} turns that off, in which case the
+ * test grants it with {@link #grantCredit}.
+ */
+public class MuxLoopbackServer implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A stream being received.
+     */
+    private static class Stream {
+
+        int index = -1;
+
+        int scale;
+
+        String pose;
+
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+
+    }
+
+    private final ServerSocketChannel mServer;
+
+    private final Thread mAcceptThread;
+
+    private final List<MuxConnection> mConnections = new ArrayList<>();
+
+    /**
+     * Streams being received by connection and stream id.
+     */
+    private final Map<MuxConnection, Map<Integer, Stream>> mStreams = new HashMap<>();
+
+    private final Map<Integer, byte[]> mFrames = new HashMap<>();
+
+    private final Map<Integer, String> mPoses = new HashMap<>();
+
+    private final Map<Integer, Integer> mScales = new HashMap<>();
+
+    private final List<Integer> mChunkStreams = new ArrayList<>();
+
+    private final CountDownLatch mClosed = new CountDownLatch(1);
+
+    /**
+     * Flow controlled payload bytes received.
+     */
+    private long mDataBytes;
+
+    private boolean mAutoCredit = true;
+
+    public MuxLoopbackServer() throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "MuxLoopbackServer");
+        mAcceptThread.start();
+    }
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                SocketChannel channel = mServer.accept();
+                channel.socket().setTcpNoDelay(true);
+                Handler handler = new Handler();
+                synchronized (this) {
+                    handler.connection = MuxConnection.accept(channel, handler);
+                    mConnections.add(handler.connection);
+                    mStreams.put(handler.connection, new HashMap<Integer, Stream>());
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * Receives the frames of one connection.
+     */
+    private class Handler implements MuxConnection.Listener {
+
+        MuxConnection connection;
+
+        @Override
+        public void onFrame(int type, int flags, int streamId, ByteBuffer payload) {
+            int length = payload.remaining();
+            boolean end = 0 != (flags & MuxProtocol.FLAG_END_STREAM);
+            boolean autoCredit;
+            synchronized (MuxLoopbackServer.this) {
+                while (null == connection) {
+                    // Accepted but not registered yet.
+                    try {
+                        MuxLoopbackServer.this.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                Map<Integer, Stream> streams = mStreams.get(connection);
+                Stream stream = streams.get(streamId);
+                if (null == stream) {
+                    stream = new Stream();
+                    streams.put(streamId, stream);
+                }
+                if (MuxProtocol.TYPE_POSE == type) {
+                    stream.index = payload.getInt();
+                    stream.scale = payload.get() & 0xff;
+                    byte[] record = new byte[payload.remaining()];
+                    payload.get(record);
+                    stream.pose = new String(record, UTF_8);
+                } else if (MuxProtocol.TYPE_IMAGE_CHUNK == type) {
+                    byte[] chunk = new byte[length];
+                    payload.get(chunk);
+                    stream.image.write(chunk, 0, length);
+                    mChunkStreams.add(streamId);
+                }
+                if (MuxProtocol.isFlowControlled(type)) {
+                    mDataBytes += length;
+                }
+                if (end) {
+                    streams.remove(streamId);
+                    mFrames.put(stream.index, stream.image.toByteArray());
+                    mPoses.put(stream.index, stream.pose);
+                    mScales.put(stream.index, stream.scale);
+                }
+                autoCredit = mAutoCredit;
+                MuxLoopbackServer.this.notifyAll();
+            }
+            try {
+                if (autoCredit && MuxProtocol.isFlowControlled(type) && length > 0) {
+                    connection.grantCredit(streamId, length);
+                }
+                if (end) {
+                    sendControl(connection, streamId, MuxProtocol.CONTROL_ACK);
+                }
+            } catch (IOException e) {
+                // The connection is closing, onClosed follows.
+            }
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            synchronized (MuxLoopbackServer.this) {
+                mConnections.remove(connection);
+            }
+            mClosed.countDown();
+        }
+
+    }
+
+    private static void sendControl(MuxConnection connection, int streamId, int code,
+                                    int... values) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 * values.length);
+        payload.put((byte) code);
+        for (int value : values) {
+            payload.putInt(value);
+        }
+        payload.flip();
+        connection.send(MuxProtocol.TYPE_CONTROL, 0, streamId, payload);
+    }
+
+    /**
+     * Whether credit is granted back as data arrives.
+     */
+    public synchronized void setAutoCredit(boolean autoCredit) {
+        mAutoCredit = autoCredit;
+    }
+
+    /**
+     * Grants {@code bytes} more credit on every stream being received.
+     */
+    public void grantCredit(int bytes) throws IOException {
+        Map<MuxConnection, List<Integer>> streams = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<MuxConnection, Map<Integer, Stream>> entry : mStreams.entrySet()) {
+                streams.put(entry.getKey(), new ArrayList<>(entry.getValue().keySet()));
+            }
+        }
+        for (Map.Entry<MuxConnection, List<Integer>> entry : streams.entrySet()) {
+            for (int streamId : entry.getValue()) {
+                entry.getKey().grantCredit(streamId, bytes);
+            }
+        }
+    }
+
+    /**
+     * Asks every connected client for frames in the given order.
+     */
+    public void sendOrder(int... indices) throws IOException {
+        List<MuxConnection> connections;
+        synchronized (this) {
+            connections = new ArrayList<>(mConnections);
+        }
+        for (MuxConnection connection : connections) {
+            sendControl(connection, 0, MuxProtocol.CONTROL_ORDER, indices);
+        }
+    }
+
+    /**
+     * Waits until at least {@code bytes} of flow controlled payload arrived in total.
+     *
+     * @return Whether they did within {@code millis}
+     */
+    public synchronized boolean awaitDataBytes(long bytes, long millis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (mDataBytes < bytes) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until a client connection closes.
+     */
+    public boolean awaitClosed(long millis) throws InterruptedException {
+        return mClosed.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized long getDataBytes() {
+        return mDataBytes;
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    public synchronized byte[] getFrame(int index) {
+        return mFrames.get(index);
+    }
+
+    public synchronized String getPose(int index) {
+        return mPoses.get(index);
+    }
+
+    /**
+     * @return The scale of the last image received for the frame
+     */
+    public synchronized Integer getScale(int index) {
+        return mScales.get(index);
+    }
+
+    /**
+     * @return The stream id of every image chunk, in the order they arrived
+     */
+    public synchronized List<Integer> getChunkStreams() {
+        return new ArrayList<>(mChunkStreams);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServer.close();
+        List<MuxConnection> connections;
+        synchronized (this) {
+            connections = new ArrayList<>(mConnections);
+        }
+        for (MuxConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package lapidus.edu.rec3dclient.net;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PointCloudDecoderTest {
+
+    private static final int CAPACITY = 1000;
+
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+    private static final long NO_BUDGET = 0;
+
+    private static final long AMPLE_BUDGET = 10000000000L;
+
+    @Test
+    public void resumesAMessageCutShortByTheBudget() {
+        PointCloudDecoder decoder = new PointCloudDecoder(CAPACITY, MAX_PENDING_BYTES);
+        decoder.offer(ByteBuffer.wrap(message(0, 0.1f, cells(0, 200), cells(0, 0))));
+
+        // Without a budget, a decode stops at its first look at the clock.
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(decoder.decode(NO_BUDGET));
+            assertEquals(i * PointCloudDecoder.CELLS_PER_CHECK, decoder.getCloud().size());
+        }
+        assertFalse(decoder.decode(NO_BUDGET));
+        assertEquals(200, decoder.getCloud().size());
+
+        // Removals are cut short and resumed the same way.
+        decoder.offer(ByteBuffer.wrap(message(0, 0.1f, cells(0, 0), cells(50, 100))));
+        assertTrue(decoder.decode(NO_BUDGET));
+        assertEquals(200 - PointCloudDecoder.CELLS_PER_CHECK, decoder.getCloud().size());
+        assertFalse(decoder.decode(NO_BUDGET));
+        assertEquals(100, decoder.getCloud().size());
+        assertFalse(decoder.decode(AMPLE_BUDGET));
+    }
+
+    @Test
+    public void dropsTheOldestMessagesOverTheLimit() {
+        long[] none = cells(0, 0);
+        byte[] first = message(0, 0.1f, cells(0, 1), none);
+        byte[] second = message(0, 0.1f, cells(1, 2), none);
+        byte[] third = message(0, 0.1f, cells(3, 3), none);
+        PointCloudDecoder decoder = new PointCloudDecoder(CAPACITY,
+                second.length + third.length + 1);
+
+        decoder.offer(ByteBuffer.wrap(first));
+        decoder.offer(ByteBuffer.wrap(second));
+        assertEquals(0, decoder.getDroppedMessages());
+        decoder.offer(ByteBuffer.wrap(third));
+        assertEquals(1, decoder.getDroppedMessages());
+
+        // A message larger than the queue is not queued at all.
+        decoder.offer(ByteBuffer.wrap(message(0, 0.1f, cells(0, 500), none)));
+        assertEquals(1, decoder.getDroppedMessages());
+
+        assertFalse(decoder.decode(AMPLE_BUDGET));
+        assertEquals(5, decoder.getCloud().size());
+        float[] viewpoint = new float[3];
+        decoder.getCloud().getViewpoint(viewpoint);
+        assertArrayEquals(new float[]{3, 3, 3}, viewpoint, 0);
+    }
+
+    @Test
+    public void clearsTheCloudOnResetAndOnANewGrid() {
+        PointCloudDecoder decoder = new PointCloudDecoder(CAPACITY, MAX_PENDING_BYTES);
+        long[] none = cells(0, 0);
+        decoder.offer(ByteBuffer.wrap(message(0, 0.1f, cells(0, 3), none)));
+        decoder.decode(AMPLE_BUDGET);
+        assertEquals(3, decoder.getCloud().size());
+
+        decoder.offer(ByteBuffer.wrap(message(PointCloudDecoder.FLAG_RESET, 0.1f, cells(10, 1),
+                none)));
+        decoder.decode(AMPLE_BUDGET);
+        assertEquals(1, decoder.getCloud().size());
+
+        decoder.offer(ByteBuffer.wrap(message(0, 0.1f, cells(20, 2), none)));
+        decoder.decode(AMPLE_BUDGET);
+        assertEquals(3, decoder.getCloud().size());
+
+        // Codes on another grid mean other cells.
+        decoder.offer(ByteBuffer.wrap(message(0, 0.2f, cells(20, 2), none)));
+        decoder.decode(AMPLE_BUDGET);
+        assertEquals(2, decoder.getCloud().size());
+    }
+
+    @Test
+    public void skipsMalformedMessages() {
+        PointCloudDecoder decoder = new PointCloudDecoder(CAPACITY, MAX_PENDING_BYTES);
+        long[] none = cells(0, 0);
+
+        byte[] unknownVersion = message(0, 0.1f, cells(0, 4), none);
+        unknownVersion[0] = PointCloudDecoder.VERSION + 1;
+        decoder.offer(ByteBuffer.wrap(unknownVersion));
+        byte[] valid = message(0, 0.1f, cells(0, 4), none);
+        decoder.offer(ByteBuffer.wrap(valid, 0, PointCloudDecoder.HEADER_SIZE - 1));
+        // Cut in the added cells, which take a byte each.
+        decoder.offer(ByteBuffer.wrap(valid, 0, valid.length - 3));
+        assertFalse(decoder.decode(AMPLE_BUDGET));
+        // The cells before the end of the truncated message are kept.
+        assertEquals(2, decoder.getCloud().size());
+
+        ByteArrayOutputStream outOfRange = header(0, 0.1f, 0);
+        putVarint(outOfRange, 2);
+        putVarint(outOfRange, 5);
+        putVarint(outOfRange, 1L << 3 * PointCloud.BITS);
+        putVarint(outOfRange, 0);
+        decoder.offer(ByteBuffer.wrap(outOfRange.toByteArray()));
+        decoder.offer(ByteBuffer.wrap(message(0, 0.1f, cells(100, 3), none)));
+        assertFalse(decoder.decode(AMPLE_BUDGET));
+        assertEquals(2 + 1 + 3, decoder.getCloud().size());
+    }
+
+    /**
+     * @return The codes of {@code count} cells along the x axis from {@code first}, ascending
+     */
+    private static long[] cells(int first, int count) {
+        long[] codes = new long[count];
+        for (int i = 0; i < count; i++) {
+            codes[i] = PointCloud.encode(first + i, 1, 2);
+        }
+        Arrays.sort(codes);
+        return codes;
+    }
+
+    /**
+     * @return A message on a grid at the origin, with the number of cells added as the
+     * viewpoint to tell messages apart
+     */
+    private static byte[] message(int flags, float cellSize, long[] added, long[] removed) {
+        ByteArrayOutputStream output = header(flags, cellSize, added.length);
+        putCodes(output, added);
+        putCodes(output, removed);
+        return output.toByteArray();
+    }
+
+    private static ByteArrayOutputStream header(int flags, float cellSize, float viewpoint) {
+        ByteBuffer header = ByteBuffer.allocate(PointCloudDecoder.HEADER_SIZE);
+        header.put((byte) PointCloudDecoder.VERSION).put((byte) flags);
+        header.putFloat(0).putFloat(0).putFloat(0).putFloat(cellSize);
+        header.putFloat(viewpoint).putFloat(viewpoint).putFloat(viewpoint);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(header.array(), 0, header.position());
+        return output;
+    }
+
+    private static void putCodes(ByteArrayOutputStream output, long[] codes) {
+        putVarint(output, codes.length);
+        long previous = 0;
+        for (long code : codes) {
+            putVarint(output, code - previous);
+            previous = code;
+        }
+    }
+
+    private static void putVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7fL) != 0) {
+            output.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+}
@@ -0,0 +1,45 @@
+package lapidus.edu.rec3dclient.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PointCloudTest {
+
+    @Test
+    public void findsEveryCellByItsSlot() {
+        PointCloud cloud = new PointCloud(1000);
+        cloud.setGrid(-1, -2, -3, 0.5f);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(cloud.add(PointCloud.encode(i, 2 * i, 65535 - i)));
+        }
+        assertFalse(cloud.add(PointCloud.encode(0, 0, 0)));
+        for (int i = 0; i < 1000; i += 2) {
+            cloud.remove(PointCloud.encode(i, 2 * i, 65535 - i));
+        }
+
+        float[] position = new float[3];
+        boolean[] found = new boolean[1000];
+        int occupied = 0;
+        for (int slot = 0; slot < cloud.getSlotCount(); slot++) {
+            assertEquals(cloud.isOccupied(slot), cloud.getPosition(slot, position, 0));
+            if (!cloud.isOccupied(slot)) {
+                continue;
+            }
+            occupied++;
+            int i = Math.round((position[0] + 1) / 0.5f - 0.5f);
+            assertEquals(-2 + (2 * i + 0.5f) * 0.5f, position[1], 1e-3f);
+            assertEquals(-3 + (65535 - i + 0.5f) * 0.5f, position[2], 1e-2f);
+            assertEquals(1, i % 2);
+            found[i] = true;
+        }
+        assertEquals(500, occupied);
+        assertEquals(500, cloud.size());
+        for (int i = 1; i < 1000; i += 2) {
+            assertTrue(found[i]);
+        }
+    }
+
+}
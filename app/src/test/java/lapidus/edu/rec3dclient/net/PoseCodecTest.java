@@ -0,0 +1,214 @@
+package lapidus.edu.rec3dclient.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PoseCodecTest {
+
+    /**
+     * Half a quantization step of a stored component, with room for the restored one.
+     */
+    private static final float MAX_COMPONENT_ERROR = 1e-4f;
+
+    private static final long START_US = 1234567890123L;
+
+    private static final long INTERVAL_US = 5000;
+
+    @Test
+    public void quantizesWithinHalfAStep() {
+        Random random = new Random(42);
+        float[] q = new float[4];
+        float[] restored = new float[4];
+        int[] values = new int[3];
+        for (int n = 0; n < 10000; n++) {
+            randomQuaternion(random, q);
+            int largest = PoseCodec.quantize(q, values);
+            for (int value : values) {
+                assertTrue(Math.abs(value) < 1 << (PoseCodec.BITS - 1));
+            }
+            PoseCodec.dequantize(largest, values, restored);
+            assertSameRotation(q, restored);
+        }
+    }
+
+    @Test
+    public void zigzagVarintsRoundTrip() {
+        long[] values = {0, 1, -1, 63, -64, 64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        int[] sizes = {1, 1, 1, 1, 1, 2, 2, 5, 5, 10, 10};
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < values.length; i++) {
+            buffer.clear();
+            PoseCodec.putVarint(buffer, values[i]);
+            assertEquals("Size of " + values[i], sizes[i], buffer.position());
+            buffer.flip();
+            assertEquals(values[i], PoseCodec.getVarint(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnOverlongVarint() {
+        ByteBuffer buffer = ByteBuffer.allocate(11);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0x80);
+        }
+        buffer.flip();
+        PoseCodec.getVarint(buffer);
+    }
+
+    @Test
+    public void codesSlowRotationAsSmallDeltas() {
+        int samples = 100;
+        float[][] poses = new float[samples][];
+        for (int i = 0; i < samples; i++) {
+            // A tenth of a degree per sample around the y axis; w stays the largest component.
+            poses[i] = aroundY(i * 0.002f);
+        }
+        ByteBuffer buffer = pack(7, poses);
+        // Index, a 2-byte time delta and three 1-byte component deltas after the first sample.
+        int size = buffer.remaining() - PoseCodec.HEADER_SIZE;
+        assertTrue("Packet of " + size + " bytes",
+                size <= PoseCodec.MAX_SAMPLE_SIZE + (samples - 1) * (1 + 2 + 3));
+        assertUnpacks(7, poses, buffer);
+    }
+
+    @Test
+    public void restartsDeltasWhenTheLargestComponentChanges() {
+        // A half turn around the y axis: w is the largest component first, then y.
+        int samples = 40;
+        float[][] poses = new float[samples][];
+        int[] values = new int[3];
+        int switches = 0;
+        for (int i = 0; i < samples; i++) {
+            poses[i] = aroundY((float) (i * Math.PI / samples));
+            if (i > 0 && PoseCodec.quantize(poses[i], values)
+                    != PoseCodec.quantize(poses[i - 1], values)) {
+                switches++;
+            }
+        }
+        assertEquals(1, switches);
+        assertUnpacks(3, poses, pack(3, poses));
+    }
+
+    @Test
+    public void decodesEachPacketOnItsOwn() {
+        Random random = new Random(7);
+        float[][] first = new float[10][];
+        float[][] second = new float[10][];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = randomQuaternion(random, new float[4]);
+            second[i] = randomQuaternion(random, new float[4]);
+        }
+        pack(1, first);
+        assertUnpacks(2, second, pack(2, second));
+    }
+
+    @Test
+    public void rejectsMalformedPackets() {
+        float[][] poses = {aroundY(0.1f), aroundY(0.2f)};
+        PoseCodec.Unpacker unpacker = new PoseCodec.Unpacker();
+
+        ByteBuffer truncated = pack(1, poses);
+        truncated.limit(truncated.limit() - 1);
+        unpacker.start(truncated);
+        unpacker.next(new float[4]);
+        try {
+            unpacker.next(new float[4]);
+            fail("Truncated sample decoded");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        ByteBuffer version = pack(1, poses);
+        version.put(0, (byte) (PoseCodec.VERSION + 1));
+        try {
+            unpacker.start(version);
+            fail("Unknown version decoded");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        ByteBuffer index = pack(1, poses);
+        index.put(PoseCodec.HEADER_SIZE, (byte) 4);
+        unpacker.start(index);
+        try {
+            unpacker.next(new float[4]);
+            fail("Bad component index decoded");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Packs samples {@link #INTERVAL_US} apart into one packet.
+     *
+     * @return The packet, ready to read
+     */
+    private static ByteBuffer pack(int sequence, float[][] poses) {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                PoseCodec.HEADER_SIZE + poses.length * PoseCodec.MAX_SAMPLE_SIZE);
+        PoseCodec.Packer packer = new PoseCodec.Packer();
+        packer.start(buffer, sequence, START_US);
+        for (int i = 0; i < poses.length; i++) {
+            assertTrue(packer.hasRoom());
+            packer.put(START_US + i * INTERVAL_US, poses[i]);
+        }
+        assertEquals(poses.length, packer.finish());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertUnpacks(int sequence, float[][] poses, ByteBuffer packet) {
+        PoseCodec.Unpacker unpacker = new PoseCodec.Unpacker();
+        unpacker.start(packet);
+        assertEquals(sequence, unpacker.getSequence());
+        float[] q = new float[4];
+        for (int i = 0; i < poses.length; i++) {
+            assertTrue(unpacker.hasNext());
+            assertEquals(START_US + i * INTERVAL_US, unpacker.next(q));
+            assertSameRotation(poses[i], q);
+        }
+        assertFalse(unpacker.hasNext());
+        assertFalse(packet.hasRemaining());
+    }
+
+    /**
+     * Compares two quaternions up to their sign, which doesn't change the rotation.
+     */
+    private static void assertSameRotation(float[] expected, float[] actual) {
+        float dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += expected[i] * actual[i];
+        }
+        float sign = dot < 0 ? -1 : 1;
+        for (int i = 0; i < 4; i++) {
+            assertEquals(expected[i], sign * actual[i], MAX_COMPONENT_ERROR);
+        }
+    }
+
+    private static float[] aroundY(float angle) {
+        return new float[]{(float) Math.cos(angle / 2), 0, (float) Math.sin(angle / 2), 0};
+    }
+
+    private static float[] randomQuaternion(Random random, float[] q) {
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            q[i] = (float) random.nextGaussian();
+            norm += q[i] * q[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            q[i] /= norm;
+        }
+        return q;
+    }
+
+}
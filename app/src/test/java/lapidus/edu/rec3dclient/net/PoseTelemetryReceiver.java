@@ -0,0 +1,74 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+
+/**
+ * Receives the stream of a {@link PoseTelemetryPublisher} and prints one line per pose: the time
+ * in microseconds and the quaternion {@code w x y z}. Lost datagrams are reported from the gaps
+ * in the sequence numbers. Runs on a desktop JVM:
+ * <pre>
+ * java lapidus.edu.rec3dclient.net.PoseTelemetryReceiver [port]
+ * </pre>
+ */
+public final class PoseTelemetryReceiver {
+
+    private static final int DEFAULT_PORT = 9750;
+
+    private static final long REPORT_INTERVAL_MS = 5000;
+
+    private PoseTelemetryReceiver() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        System.err.println("Listening on UDP port " + port);
+
+        ByteBuffer datagram = ByteBuffer.allocate(64 * 1024);
+        PoseCodec.Unpacker unpacker = new PoseCodec.Unpacker();
+        float[] q = new float[4];
+        Integer expected = null;
+        long lost = 0;
+        long datagrams = 0;
+        long bytes = 0;
+        long samples = 0;
+        long reportTime = System.currentTimeMillis();
+        while (true) {
+            datagram.clear();
+            channel.receive(datagram);
+            datagram.flip();
+            datagrams++;
+            bytes += datagram.remaining();
+            try {
+                unpacker.start(datagram);
+                int sequence = unpacker.getSequence();
+                if (null != expected && sequence != expected) {
+                    lost += Math.max(0, sequence - expected);
+                }
+                expected = sequence + 1;
+                while (unpacker.hasNext()) {
+                    long timeUs = unpacker.next(q);
+                    samples++;
+                    System.out.println(String.format(Locale.US, "%d %.5f %.5f %.5f %.5f",
+                            timeUs, q[0], q[1], q[2], q[3]));
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad datagram: " + e.getMessage());
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - reportTime >= REPORT_INTERVAL_MS) {
+                System.err.println(String.format(Locale.US,
+                        "%d datagrams, %d poses, %.1f bytes per pose, %d datagrams lost",
+                        datagrams, samples, samples > 0 ? (double) bytes / samples : 0.0, lost));
+                reportTime = now;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package lapidus.edu.rec3dclient.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times pulls of a session from a {@link SessionServer} on loopback, as a workstation would pull
+ * it: many frames over one kept-alive connection, the same with a new connection per frame, and
+ * one large file.
+ * <pre>
+ * java lapidus.edu.rec3dclient.net.SessionServerBenchmark [frames [frame kB [large MB]]]
+ * </pre>
+ */
+public class SessionServerBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int frameBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 300) * 1024;
+        long largeBytes = (args.length > 2 ? Long.parseLong(args[2]) : 256) * 1024 * 1024;
+
+        File root = createSession(frames, frameBytes, largeBytes);
+        SessionServer server = new SessionServer(root, 0, 2);
+        try {
+            String base = "http://127.0.0.1:" + server.getPort() + "/";
+            for (int round = 0; round < ROUNDS; round++) {
+                // The first round warms the page cache and the JIT.
+                report("keep-alive, one connection", pullFrames(base, frames, true));
+                report("new connection per frame", pullFrames(base, frames, false));
+                report("single large file", pull(new URL(base + "large.bin"), true));
+            }
+        } finally {
+            server.close();
+            delete(root);
+        }
+    }
+
+    private static File createSession(int frames, int frameBytes, long largeBytes)
+            throws IOException {
+        File root = File.createTempFile("session", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Cannot create " + root);
+        }
+        byte[] frame = new byte[frameBytes];
+        new Random(1).nextBytes(frame);
+        for (int i = 0; i < frames; i++) {
+            write(new File(root, String.format(Locale.US, "frame%05d.jpg", i)), frame, 1);
+        }
+        write(new File(root, "large.bin"), frame, (int) (largeBytes / frameBytes));
+        return root;
+    }
+
+    private static void write(File file, byte[] data, int times) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < times; i++) {
+                output.write(data);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return The bytes pulled and the time it took in nanoseconds
+     */
+    private static long[] pullFrames(String base, int frames, boolean keepAlive)
+            throws IOException {
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            URL url = new URL(base + String.format(Locale.US, "frame%05d.jpg", i));
+            bytes += pull(url, keepAlive)[0];
+        }
+        return new long[]{bytes, System.nanoTime() - start};
+    }
+
+    private static long[] pull(URL url, boolean keepAlive) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (!keepAlive) {
+            connection.setRequestProperty("Connection", "close");
+        }
+        long bytes = 0;
+        byte[] buffer = new byte[64 * 1024];
+        InputStream input = connection.getInputStream();
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes += read;
+            }
+        } finally {
+            // Closing the stream read to its end returns the connection to the pool.
+            input.close();
+        }
+        return new long[]{bytes, System.nanoTime() - start};
+    }
+
+    private static void report(String name, long[] result) {
+        double seconds = result[1] / 1e9;
+        System.out.println(String.format(Locale.US, "%-28s %8.3f s %8.1f MB/s", name + ":",
+                seconds, result[0] / 1e6 / seconds));
+    }
+
+    private static void delete(File root) {
+        File[] files = root.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    System.err.println("Cannot delete " + file);
+                }
+            }
+        }
+        if (!root.delete()) {
+            System.err.println("Cannot delete " + root);
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+package lapidus.edu.rec3dclient.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionServerTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * A response read off a connection.
+     */
+    private static class Response {
+
+        int status;
+
+        final Map<String, String> headers = new HashMap<>();
+
+        byte[] body;
+
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    private byte[] mFrame;
+
+    private SessionServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = mFolder.newFolder("session");
+        mFrame = new byte[100000];
+        new Random(1).nextBytes(mFrame);
+        write(new File(mRoot, "frame0001.jpg"), mFrame);
+        write(new File(mRoot, "coords.txt"), "0 0 0\n".getBytes(US_ASCII));
+        write(mFolder.newFile("secret.txt"), "secret".getBytes(US_ASCII));
+        mServer = new SessionServer(mRoot, 0, 2);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void listsTheSession() throws IOException {
+        Response response = get("/", null);
+
+        assertEquals(200, response.status);
+        String[] lines = new String(response.body, "UTF-8").split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].matches("6\t\\d+\tcoords.txt"));
+        assertTrue(lines[1].matches("100000\t\\d+\tframe0001.jpg"));
+    }
+
+    @Test
+    public void servesAFile() throws IOException {
+        Response response = get("/frame0001.jpg", null);
+
+        assertEquals(200, response.status);
+        assertEquals("image/jpeg", response.headers.get("content-type"));
+        assertEquals("bytes", response.headers.get("accept-ranges"));
+        assertArrayEquals(mFrame, response.body);
+    }
+
+    @Test
+    public void servesByteRanges() throws IOException {
+        Response response = get("/frame0001.jpg", "bytes=1000-1999");
+        assertEquals(206, response.status);
+        assertEquals("bytes 1000-1999/100000", response.headers.get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(mFrame, 1000, 2000), response.body);
+
+        response = get("/frame0001.jpg", "bytes=99990-");
+        assertEquals(206, response.status);
+        assertArrayEquals(Arrays.copyOfRange(mFrame, 99990, 100000), response.body);
+
+        response = get("/frame0001.jpg", "bytes=-10");
+        assertEquals("bytes 99990-99999/100000", response.headers.get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(mFrame, 99990, 100000), response.body);
+
+        // A range past the end is cut to the file.
+        response = get("/frame0001.jpg", "bytes=99000-200000");
+        assertEquals("bytes 99000-99999/100000", response.headers.get("content-range"));
+        assertEquals(1000, response.body.length);
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() throws IOException {
+        for (String range : new String[]{"bytes=100000-", "bytes=5-2", "bytes=0-1,5-6",
+                "lines=1-2"}) {
+            Response response = get("/frame0001.jpg", range);
+            assertEquals(range, 416, response.status);
+            assertEquals("bytes */100000", response.headers.get("content-range"));
+            assertEquals(0, response.body.length);
+        }
+    }
+
+    @Test
+    public void parsesRanges() {
+        assertArrayEquals(new long[]{0, 10}, SessionServer.parseRange("bytes=0-9", 100));
+        assertArrayEquals(new long[]{90, 100}, SessionServer.parseRange("bytes=-10", 100));
+        assertArrayEquals(new long[]{0, 100}, SessionServer.parseRange("bytes=-1000", 100));
+        assertArrayEquals(new long[]{50, 100}, SessionServer.parseRange("bytes=50-", 100));
+        assertNull(SessionServer.parseRange("bytes=-0", 100));
+        assertNull(SessionServer.parseRange("bytes=x-9", 100));
+        assertNull(SessionServer.parseRange("bytes=9", 100));
+    }
+
+    @Test
+    public void hidesFilesOutsideTheSession() throws IOException {
+        for (String path : new String[]{"/../secret.txt", "/%2e%2e/secret.txt",
+                "/..%2Fsecret.txt", "/missing.jpg", "/"  + mRoot.getName() + "/coords.txt"}) {
+            assertEquals(path, 404, get(path, null).status);
+        }
+    }
+
+    @Test
+    public void keepsTheConnectionAlive() throws IOException {
+        Socket socket = connect();
+        try {
+            for (int i = 0; i < 3; i++) {
+                send(socket, "GET /coords.txt HTTP/1.1\r\n\r\n");
+                Response response = read(socket.getInputStream());
+                assertEquals(200, response.status);
+                assertEquals("keep-alive", response.headers.get("connection"));
+            }
+            // A HEAD gets the length without the body, and the connection stays usable.
+            send(socket, "HEAD /frame0001.jpg HTTP/1.1\r\n\r\n"
+                    + "GET /coords.txt HTTP/1.1\r\nConnection: close\r\n\r\n");
+            Response head = readHead(socket.getInputStream());
+            assertEquals("100000", head.headers.get("content-length"));
+            Response last = read(socket.getInputStream());
+            assertEquals(200, last.status);
+            assertEquals("close", last.headers.get("connection"));
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void closesHttp10Connections() throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, "GET /coords.txt HTTP/1.0\r\n\r\n");
+            assertEquals(200, read(socket.getInputStream()).status);
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void turnsAwayConnectionsBeyondTheWorkerCap() throws Exception {
+        Socket first = connect();
+        Socket second = connect();
+        try {
+            // Both workers are held by kept-alive connections.
+            for (Socket socket : new Socket[]{first, second}) {
+                send(socket, "GET /coords.txt HTTP/1.1\r\n\r\n");
+                assertEquals(200, read(socket.getInputStream()).status);
+            }
+
+            Socket third = connect();
+            try {
+                Response response = read(third.getInputStream());
+                assertEquals(503, response.status);
+                assertEquals("1", response.headers.get("retry-after"));
+                assertEquals(-1, third.getInputStream().read());
+            } finally {
+                third.close();
+            }
+        } finally {
+            first.close();
+            second.close();
+        }
+
+        // The workers are free again once their connections are closed.
+        int status = 0;
+        for (int i = 0; i < 50 && 200 != status; i++) {
+            Thread.sleep(20);
+            status = get("/coords.txt", null).status;
+        }
+        assertEquals(200, status);
+    }
+
+    @Test
+    public void rejectsOtherMethods() throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, "POST /coords.txt HTTP/1.1\r\nContent-Length: 0\r\n\r\n");
+            Response response = read(socket.getInputStream());
+            assertEquals(405, response.status);
+            assertEquals("GET, HEAD", response.headers.get("allow"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    /**
+     * Sends one request on a new connection.
+     */
+    private Response get(String path, String range) throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, "GET " + path + " HTTP/1.1\r\n"
+                    + (null == range ? "" : "Range: " + range + "\r\n")
+                    + "Connection: close\r\n\r\n");
+            return read(socket.getInputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write(request.getBytes(US_ASCII));
+        output.flush();
+    }
+
+    private static Response read(InputStream input) throws IOException {
+        Response response = readHead(input);
+        int length = Integer.parseInt(response.headers.get("content-length"));
+        response.body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = input.read(response.body, read, length - read);
+            if (count < 0) {
+                throw new IOException("Body truncated at " + read + " bytes");
+            }
+            read += count;
+        }
+        return response;
+    }
+
+    /**
+     * Reads the status line and headers, with the header names in lower case.
+     */
+    private static Response readHead(InputStream input) throws IOException {
+        Response response = new Response();
+        String status = readLine(input);
+        response.status = Integer.parseInt(status.split(" ")[1]);
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                    line.substring(colon + 1).trim());
+        }
+        return response;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), US_ASCII);
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+
+}
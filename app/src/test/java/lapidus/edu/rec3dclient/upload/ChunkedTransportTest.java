@@ -0,0 +1,158 @@
+package lapidus.edu.rec3dclient.upload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import lapidus.edu.rec3dclient.FakeSharedPreferences;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ChunkedTransportTest {
+
+    private static final int CHUNK = ChunkedTransport.CHUNK_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StandInServer mServer;
+
+    private FakeSharedPreferences mPrefs;
+
+    private ChunkedTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+        mPrefs = new FakeSharedPreferences();
+        mTransport = new ChunkedTransport(mServer.getEndpoint(), new UploadProgressStore(mPrefs));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void putsChunksInOrderAndAssemblesTheFrame() throws IOException {
+        byte[] content = random(3 * CHUNK + 1000, 1);
+        UploadItem item = write(7, content);
+
+        mTransport.send(item);
+
+        assertEquals(hashes(content), mServer.getPutHashes());
+        assertArrayEquals(content, mServer.getFrame(7));
+        assertEquals(Arrays.asList(7), mServer.getFrameOrder());
+        assertNull(new UploadProgressStore(mPrefs).getHashes(UploadProgressStore.key(item.file)));
+    }
+
+    @Test
+    public void sendsAnEmptyFrameAsOneChunk() throws IOException {
+        mTransport.send(write(1, new byte[0]));
+
+        assertEquals(1, mServer.getPutHashes().size());
+        assertArrayEquals(new byte[0], mServer.getFrame(1));
+    }
+
+    @Test
+    public void skipsChunksTheServerHas() throws IOException {
+        byte[] first = random(4 * CHUNK, 1);
+        byte[] second = first.clone();
+        // Only the third chunk differs.
+        second[2 * CHUNK + 5] ^= 1;
+        mTransport.send(write(1, first));
+        mTransport.send(write(2, second));
+        mTransport.send(write(3, first));
+
+        List<String> puts = mServer.getPutHashes();
+        assertEquals(5, puts.size());
+        assertEquals(hashes(second).get(2), puts.get(4));
+        assertEquals(5, mServer.getChunkCount());
+        assertArrayEquals(second, mServer.getFrame(2));
+        assertArrayEquals(first, mServer.getFrame(3));
+    }
+
+    @Test
+    public void resumesFromTheLastAcknowledgedChunkAfterARestart() throws IOException {
+        byte[] content = random(5 * CHUNK + 17, 2);
+        UploadItem item = write(4, content);
+        mServer.failPutsAfter(2);
+        try {
+            mTransport.send(item);
+            fail("The third chunk should fail");
+        } catch (IOException expected) {
+        }
+        String key = UploadProgressStore.key(item.file);
+        assertEquals(2, new UploadProgressStore(mPrefs).getAcked(key));
+
+        // A new process finds the progress in the preferences.
+        mServer.failPutsAfter(-1);
+        new ChunkedTransport(mServer.getEndpoint(), new UploadProgressStore(mPrefs)).send(item);
+
+        List<String> hashes = hashes(content);
+        assertEquals(hashes, mServer.getPutHashes());
+        List<List<String>> queries = mServer.getMissingQueries();
+        assertEquals(2, queries.size());
+        assertEquals(hashes, queries.get(0));
+        assertEquals(hashes.subList(2, hashes.size()), queries.get(1));
+        assertArrayEquals(content, mServer.getFrame(4));
+    }
+
+    @Test
+    public void passesTheOrderOfTheServerOn() throws IOException {
+        final List<int[]> orders = new ArrayList<>();
+        mTransport.setOrderListener(new Transport.OrderListener() {
+            @Override
+            public void onOrder(int[] indices) {
+                orders.add(indices);
+            }
+        });
+        mServer.setOrder("5, 3,x,9");
+
+        mTransport.send(write(1, random(100, 3)));
+
+        // Once for the query, the chunk and the frame each.
+        assertEquals(3, orders.size());
+        assertArrayEquals(new int[]{5, 3, 9}, orders.get(2));
+    }
+
+    private UploadItem write(int index, byte[] content) throws IOException {
+        File file = mFolder.newFile("frame" + index + ".jpg");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return new UploadItem(index, file, "pose " + index);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static List<String> hashes(byte[] content) {
+        List<String> hashes = new ArrayList<>();
+        for (int offset = 0; offset < content.length; offset += CHUNK) {
+            hashes.add(StandInServer.hash(Arrays.copyOfRange(content, offset,
+                    Math.min(content.length, offset + CHUNK))));
+        }
+        return hashes;
+    }
+
+}
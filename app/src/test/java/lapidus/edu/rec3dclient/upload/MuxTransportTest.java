@@ -0,0 +1,225 @@
+package lapidus.edu.rec3dclient.upload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lapidus.edu.rec3dclient.Clock;
+import lapidus.edu.rec3dclient.net.MuxLoopbackServer;
+import lapidus.edu.rec3dclient.net.MuxProtocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MuxTransportTest {
+
+    private static final int CREDIT = MuxProtocol.INITIAL_CREDIT;
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MuxLoopbackServer mServer;
+
+    private MuxTransport mTransport;
+
+    private final ExecutorService mSenders = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MuxLoopbackServer();
+        mTransport = new MuxTransport(mServer.getHost(), mServer.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSenders.shutdownNow();
+        mTransport.close();
+        mServer.close();
+    }
+
+    @Test
+    public void sendsTheFrameAndItsPose() throws Exception {
+        byte[] content = random(3 * MuxProtocol.MAX_PAYLOAD + 10, 1);
+
+        mTransport.send(write(5, content));
+
+        assertArrayEquals(content, mServer.getFrame(5));
+        assertEquals("pose 5", mServer.getPose(5));
+        assertEquals(Integer.valueOf(1), mServer.getScale(5));
+    }
+
+    @Test
+    public void tellsAThumbnailFromTheOriginal() throws Exception {
+        byte[] thumbnail = random(1000, 3);
+        byte[] original = random(64000, 4);
+
+        mTransport.send(write("thumb7.jpg", 7, thumbnail, 8));
+        assertEquals(Integer.valueOf(8), mServer.getScale(7));
+        assertArrayEquals(thumbnail, mServer.getFrame(7));
+
+        mTransport.send(write(7, original));
+        assertEquals(Integer.valueOf(1), mServer.getScale(7));
+        assertArrayEquals(original, mServer.getFrame(7));
+    }
+
+    @Test
+    public void stopsAtTheCreditGrantedByTheServer() throws Exception {
+        mServer.setAutoCredit(false);
+        byte[] content = random(4 * CREDIT, 2);
+        Future<?> sent = send(write(1, content));
+
+        assertTrue(mServer.awaitDataBytes(CREDIT, TIMEOUT_MILLIS));
+        assertFalse(mServer.awaitDataBytes(CREDIT + 1, 200));
+
+        mServer.grantCredit(1000);
+        assertTrue(mServer.awaitDataBytes(CREDIT + 1000, TIMEOUT_MILLIS));
+        assertFalse(mServer.awaitDataBytes(CREDIT + 1001, 200));
+        assertNull(mServer.getFrame(1));
+
+        mServer.setAutoCredit(true);
+        mServer.grantCredit(CREDIT);
+        sent.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(content, mServer.getFrame(1));
+    }
+
+    @Test
+    public void interleavesFramesSentConcurrently() throws Exception {
+        // Every stream stops at its initial credit, so neither frame can finish first.
+        mServer.setAutoCredit(false);
+        byte[] first = random(2 * CREDIT, 3);
+        byte[] second = random(2 * CREDIT, 4);
+        Future<?> firstSent = send(write(1, first));
+        Future<?> secondSent = send(write(2, second));
+
+        assertTrue(mServer.awaitDataBytes(2 * CREDIT, TIMEOUT_MILLIS));
+        assertNull(mServer.getFrame(1));
+        assertNull(mServer.getFrame(2));
+
+        mServer.setAutoCredit(true);
+        mServer.grantCredit(CREDIT);
+        firstSent.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        secondSent.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(first, mServer.getFrame(1));
+        assertArrayEquals(second, mServer.getFrame(2));
+
+        List<Integer> streams = mServer.getChunkStreams();
+        int switches = 0;
+        for (int i = 1; i < streams.size(); i++) {
+            if (!streams.get(i).equals(streams.get(i - 1))) {
+                switches++;
+            }
+        }
+        assertTrue("Streams switched " + switches + " times", switches >= 1);
+        // Both streams were under way before either completed.
+        int last = streams.get(streams.size() - 1);
+        assertTrue(streams.subList(0, streams.size() / 2).contains(last));
+    }
+
+    @Test
+    public void passesTheOrderOfTheServerOn() throws Exception {
+        final int[][] order = new int[1][];
+        final CountDownLatch ordered = new CountDownLatch(1);
+        mTransport.setOrderListener(new Transport.OrderListener() {
+            @Override
+            public void onOrder(int[] indices) {
+                order[0] = indices;
+                ordered.countDown();
+            }
+        });
+        mTransport.send(write(1, random(100, 5)));
+
+        mServer.sendOrder(7, 3, 9);
+
+        assertTrue(ordered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new int[]{7, 3, 9}, order[0]);
+    }
+
+    @Test
+    public void closesTheConnectionWhenThePipelineShutsDown() throws Exception {
+        UploadQueue queue = new UploadQueue(mFolder.newFile("queue.journal"), Clock.SYSTEM);
+        try {
+            final CountDownLatch idle = new CountDownLatch(1);
+            UploadPipeline pipeline = new UploadPipeline(mTransport, queue, null, 2);
+            pipeline.setListener(new UploadPipeline.Listener() {
+                @Override
+                public void onUploaded(UploadItem item, long nanos) {
+                }
+
+                @Override
+                public void onUploadFailed(UploadItem item, IOException e) {
+                }
+
+                @Override
+                public void onIdle() {
+                    idle.countDown();
+                }
+            });
+            for (int i = 0; i < 3; i++) {
+                queue.add(write(i, random(1000, i)), UploadQueue.PRIORITY_FRAME, 0);
+            }
+            pipeline.start();
+            assertTrue(idle.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(0, queue.size());
+            assertEquals(1, mServer.getConnectionCount());
+
+            pipeline.shutdown();
+
+            assertTrue(mServer.awaitClosed(TIMEOUT_MILLIS));
+            assertEquals(0, mServer.getConnectionCount());
+        } finally {
+            queue.close();
+        }
+    }
+
+    private Future<?> send(final UploadItem item) {
+        return mSenders.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mTransport.send(item);
+                return null;
+            }
+        });
+    }
+
+    private UploadItem write(int index, byte[] content) throws IOException {
+        return write("frame" + index + ".jpg", index, content, 1);
+    }
+
+    private UploadItem write(String name, int index, byte[] content, int scale)
+            throws IOException {
+        File file = mFolder.newFile(name);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return new UploadItem(index, file, "pose " + index, scale);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+}
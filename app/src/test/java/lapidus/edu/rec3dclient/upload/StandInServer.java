@@ -0,0 +1,291 @@
+package lapidus.edu.rec3dclient.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A reconstruction server on loopback, for testing the transports without a network.
+ * <p>
+ * It takes whole frames posted to {@code frame}, as {@link HttpTransport} sends them, and the
+ * chunk protocol of {@link ChunkedTransport} under {@code chunks/} and {@code frames}. Every
+ * request is answered on its own thread after {@link #setLatency}, and every response carries the
+ * order set with {@link #setOrder}.
+ */
+public class StandInServer implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final HttpServer mServer;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Chunks by hash.
+     */
+    private final Map<String, byte[]> mChunks = new HashMap<>();
+
+    /**
+     * Frames by index, whole or assembled from chunks.
+     */
+    private final Map<Integer, byte[]> mFrames = new HashMap<>();
+
+    private final List<Integer> mFrameOrder = new ArrayList<>();
+
+    private final List<String> mPutHashes = new ArrayList<>();
+
+    private final List<List<String>> mMissingQueries = new ArrayList<>();
+
+    private String mOrder;
+
+    private long mLatencyMillis;
+
+    /**
+     * Chunk puts accepted before the others fail, or -1 for all.
+     */
+    private int mPutsBeforeFailure = -1;
+
+    private int mActive;
+
+    private int mMaxActive;
+
+    public StandInServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    /**
+     * @return The base URL, ending with a slash
+     */
+    public URL getEndpoint() throws IOException {
+        return new URL("http", "127.0.0.1", mServer.getAddress().getPort(), "/");
+    }
+
+    public synchronized void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * @param order The value of {@link HttpTransport#ORDER_HEADER}, or {@code null} for none
+     */
+    public synchronized void setOrder(String order) {
+        mOrder = order;
+    }
+
+    /**
+     * Accepts {@code count} more chunks, then fails every chunk put with HTTP 500.
+     *
+     * @param count The number of chunks, or -1 to accept all again
+     */
+    public synchronized void failPutsAfter(int count) {
+        mPutsBeforeFailure = count;
+    }
+
+    public synchronized byte[] getFrame(int index) {
+        return mFrames.get(index);
+    }
+
+    /**
+     * @return The indices of the frames in the order they were completed
+     */
+    public synchronized List<Integer> getFrameOrder() {
+        return new ArrayList<>(mFrameOrder);
+    }
+
+    /**
+     * @return The hashes of the chunks put, in the order they arrived
+     */
+    public synchronized List<String> getPutHashes() {
+        return new ArrayList<>(mPutHashes);
+    }
+
+    /**
+     * @return The hashes asked about in each query for missing chunks
+     */
+    public synchronized List<List<String>> getMissingQueries() {
+        return new ArrayList<>(mMissingQueries);
+    }
+
+    public synchronized int getChunkCount() {
+        return mChunks.size();
+    }
+
+    /**
+     * @return The largest number of requests served at the same time
+     */
+    public synchronized int getMaxActive() {
+        return mMaxActive;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] body = readFully(exchange.getRequestBody());
+        long latency;
+        synchronized (this) {
+            mMaxActive = Math.max(mMaxActive, ++mActive);
+            latency = mLatencyMillis;
+        }
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            byte[] response;
+            if ("POST".equals(method) && "/frame".equals(path)) {
+                response = putFrame(exchange, body);
+            } else if ("POST".equals(method) && "/chunks/missing".equals(path)) {
+                response = queryMissing(body);
+            } else if ("PUT".equals(method) && path.startsWith("/chunks/")) {
+                response = putChunk(path.substring("/chunks/".length()), body);
+            } else if ("POST".equals(method) && "/frames".equals(path)) {
+                response = assemble(exchange, body);
+            } else {
+                response = null;
+            }
+            reply(exchange, null == response ? 404 : 200, response);
+        } catch (InterruptedException e) {
+            reply(exchange, 503, null);
+        } catch (IllegalStateException e) {
+            reply(exchange, 500, null);
+        } finally {
+            synchronized (this) {
+                mActive--;
+            }
+        }
+    }
+
+    private synchronized byte[] putFrame(HttpExchange exchange, byte[] body) {
+        int index = Integer.parseInt(exchange.getRequestHeaders()
+                .getFirst(HttpTransport.INDEX_HEADER));
+        mFrames.put(index, body);
+        mFrameOrder.add(index);
+        return new byte[0];
+    }
+
+    private synchronized byte[] queryMissing(byte[] body) {
+        List<String> hashes = split(body);
+        mMissingQueries.add(hashes);
+        StringBuilder missing = new StringBuilder();
+        for (String hash : hashes) {
+            if (!mChunks.containsKey(hash)) {
+                missing.append(hash).append('\n');
+            }
+        }
+        return missing.toString().getBytes(UTF_8);
+    }
+
+    private synchronized byte[] putChunk(String hash, byte[] body) {
+        if (0 == mPutsBeforeFailure) {
+            throw new IllegalStateException("Failing chunk " + hash);
+        }
+        if (!hash.equals(hash(body))) {
+            throw new IllegalStateException("Chunk " + hash + " doesn't match its content");
+        }
+        if (mPutsBeforeFailure > 0) {
+            mPutsBeforeFailure--;
+        }
+        mChunks.put(hash, body);
+        mPutHashes.add(hash);
+        return new byte[0];
+    }
+
+    private synchronized byte[] assemble(HttpExchange exchange, byte[] body) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        for (String hash : split(body)) {
+            byte[] chunk = mChunks.get(hash);
+            if (null == chunk) {
+                throw new IllegalStateException("Chunk " + hash + " is missing");
+            }
+            frame.write(chunk, 0, chunk.length);
+        }
+        return putFrame(exchange, frame.toByteArray());
+    }
+
+    private void reply(HttpExchange exchange, int code, byte[] body) throws IOException {
+        String order;
+        synchronized (this) {
+            order = mOrder;
+        }
+        if (null != order) {
+            exchange.getResponseHeaders().set(HttpTransport.ORDER_HEADER, order);
+        }
+        int length = null == body ? 0 : body.length;
+        exchange.sendResponseHeaders(code, 0 == length ? -1 : length);
+        if (length > 0) {
+            OutputStream output = exchange.getResponseBody();
+            output.write(body);
+            output.close();
+        }
+    }
+
+    private static List<String> split(byte[] body) {
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(body, UTF_8).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    static String hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(data)) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+}
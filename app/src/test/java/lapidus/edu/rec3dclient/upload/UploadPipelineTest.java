@@ -0,0 +1,319 @@
+package lapidus.edu.rec3dclient.upload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import lapidus.edu.rec3dclient.FakeClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadPipelineTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * Records the frames it gets. Fails the frames in {@link #failures} once each, and holds every
+     * send until a {@link #gate} permit is available if a gate is set.
+     */
+    private static class FakeTransport implements Transport {
+
+        final List<Integer> sent = new ArrayList<>();
+
+        final List<Integer> failures = new ArrayList<>();
+
+        volatile Semaphore gate;
+
+        int active;
+
+        int maxActive;
+
+        boolean closed;
+
+        @Override
+        public void send(UploadItem item) throws IOException {
+            synchronized (this) {
+                assertFalse(closed);
+                maxActive = Math.max(maxActive, ++active);
+            }
+            try {
+                Semaphore gate = this.gate;
+                if (null != gate) {
+                    gate.acquireUninterruptibly();
+                }
+                synchronized (this) {
+                    if (failures.remove(Integer.valueOf(item.index))) {
+                        throw new IOException("Failing frame " + item.index);
+                    }
+                    sent.add(item.index);
+                }
+            } finally {
+                synchronized (this) {
+                    active--;
+                }
+            }
+        }
+
+        @Override
+        public void setOrderListener(OrderListener listener) {
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+
+    }
+
+    /**
+     * Holds the retry until the test runs it, once it is due on the fake clock.
+     */
+    private static class FakeRetryScheduler implements UploadPipeline.RetryScheduler {
+
+        final FakeClock clock;
+
+        Runnable task;
+
+        long due;
+
+        boolean shutdown;
+
+        FakeRetryScheduler(FakeClock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMillis) {
+            long due = clock.elapsedRealtime() + delayMillis;
+            if (shutdown || (null != this.task && this.due <= due)) {
+                return;
+            }
+            this.task = task;
+            this.due = due;
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+            task = null;
+        }
+
+        synchronized long getDelay() {
+            return null == task ? -1 : due - clock.elapsedRealtime();
+        }
+
+        /**
+         * Runs the retry on the calling thread if it is due.
+         *
+         * @return Whether it ran
+         */
+        boolean runDue() {
+            Runnable task;
+            synchronized (this) {
+                if (null == this.task || clock.elapsedRealtime() < due) {
+                    return false;
+                }
+                task = this.task;
+                this.task = null;
+            }
+            task.run();
+            return true;
+        }
+
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FakeClock mClock;
+
+    private UploadQueue mQueue;
+
+    private FakeTransport mTransport;
+
+    private FakeRetryScheduler mRetryScheduler;
+
+    private UploadPipeline mPipeline;
+
+    private Semaphore mIdle;
+
+    private final List<Integer> mFailed = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mClock = new FakeClock(1000);
+        mQueue = new UploadQueue(new File(mFolder.getRoot(), "upload.journal"), mClock);
+        mTransport = new FakeTransport();
+        mIdle = new Semaphore(0);
+        mRetryScheduler = new FakeRetryScheduler(mClock);
+        mPipeline = new UploadPipeline(mTransport, mQueue, null, 4, mRetryScheduler);
+        mPipeline.setListener(new UploadPipeline.Listener() {
+            @Override
+            public void onUploaded(UploadItem item, long nanos) {
+            }
+
+            @Override
+            public void onUploadFailed(UploadItem item, IOException e) {
+                synchronized (mFailed) {
+                    mFailed.add(item.index);
+                }
+            }
+
+            @Override
+            public void onIdle() {
+                mIdle.release();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mPipeline.shutdown();
+        mQueue.close();
+    }
+
+    @Test
+    public void drainsTheQueueToIdle() throws Exception {
+        mQueue.setMaxInFlight(2);
+        for (int i = 0; i < 10; i++) {
+            add(i, 0.1f * i);
+        }
+
+        mPipeline.start();
+
+        awaitIdle(0);
+        assertEquals(0, mQueue.size());
+        assertEquals(10, mTransport.sent.size());
+        assertEquals(10, mPipeline.getUploaded());
+        assertEquals(0, mPipeline.getPending());
+        assertTrue(mTransport.maxActive <= 2);
+    }
+
+    @Test
+    public void keepsTheSendsInFlightAtTheCap() throws Exception {
+        mQueue.setMaxInFlight(3);
+        mTransport.gate = new Semaphore(0);
+        for (int i = 0; i < 9; i++) {
+            add(i, 0);
+        }
+
+        mPipeline.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            synchronized (mTransport) {
+                if (3 == mTransport.active) {
+                    break;
+                }
+            }
+            Thread.sleep(1);
+        }
+        // A new frame starts as each one completes.
+        mTransport.gate.release(9);
+
+        awaitIdle(0);
+        assertEquals(9, mTransport.sent.size());
+        assertEquals(3, mTransport.maxActive);
+    }
+
+    @Test
+    public void retriesAFailedFrameOnceItsBackoffIsOver() throws Exception {
+        mQueue.setMaxInFlight(2);
+        mTransport.failures.add(1);
+        add(0, 0.9f);
+        add(1, 0.5f);
+        add(2, 0.1f);
+
+        mPipeline.start();
+
+        awaitIdle(1);
+        assertEquals(Arrays.asList(1), mFailed);
+        assertEquals(1, mQueue.size());
+        assertEquals(Arrays.asList(0, 2), sorted(mTransport.sent));
+
+        // The pipeline armed a retry for the end of the backoff, on the clock of the queue.
+        long backoff = UploadQueue.getBackoff(1);
+        assertEquals(backoff, mRetryScheduler.getDelay());
+        mClock.advance(backoff - 1);
+        assertFalse(mRetryScheduler.runDue());
+        mClock.advance(1);
+        assertTrue(mRetryScheduler.runDue());
+        awaitIdle(0);
+        assertEquals(0, mQueue.size());
+        assertEquals(Arrays.asList(0, 1, 2), sorted(mTransport.sent));
+    }
+
+    @Test
+    public void dropsFramesWhoseFileIsGone() throws Exception {
+        add(0, 0);
+        UploadItem missing = new UploadItem(1, new File(mFolder.getRoot(), "missing.jpg"), "");
+        mQueue.add(missing, UploadQueue.PRIORITY_KEYFRAME, 0);
+        add(2, 0);
+
+        mPipeline.start();
+
+        awaitIdle(0);
+        assertEquals(0, mQueue.size());
+        assertEquals(Arrays.asList(0, 2), sorted(mTransport.sent));
+    }
+
+    @Test
+    public void closesTheTransportOnceTheLastSendIsOver() throws Exception {
+        mTransport.gate = new Semaphore(0);
+        add(0, 0);
+        add(1, 0);
+        mPipeline.start();
+
+        mPipeline.shutdown();
+        synchronized (mTransport) {
+            assertFalse(mTransport.closed);
+        }
+
+        mTransport.gate.release();
+        awaitIdle(1);
+        synchronized (mTransport) {
+            assertTrue(mTransport.closed);
+        }
+        // The second frame was not taken after the shutdown.
+        assertEquals(Arrays.asList(0), mTransport.sent);
+        assertEquals(1, mQueue.size());
+    }
+
+    private void add(int index, float sharpness) throws IOException {
+        File file = mFolder.newFile("frame" + index + ".jpg");
+        mQueue.add(new UploadItem(index, file, "pose " + index), UploadQueue.PRIORITY_FRAME,
+                sharpness);
+    }
+
+    /**
+     * Waits for an idle pipeline with {@code queued} frames left.
+     */
+    private void awaitIdle(int queued) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        do {
+            assertTrue("The pipeline didn't go idle", mIdle.tryAcquire(
+                    deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+        } while (0 != mPipeline.getPending() || queued != mQueue.size());
+    }
+
+    private List<Integer> sorted(List<Integer> indices) {
+        synchronized (mTransport) {
+            List<Integer> copy = new ArrayList<>(indices);
+            Collections.sort(copy);
+            return copy;
+        }
+    }
+
+}
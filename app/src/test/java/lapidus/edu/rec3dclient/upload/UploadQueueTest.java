@@ -0,0 +1,169 @@
+package lapidus.edu.rec3dclient.upload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import lapidus.edu.rec3dclient.FakeClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UploadQueueTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    private FakeClock mClock;
+
+    private UploadQueue mQueue;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "upload.journal");
+        mClock = new FakeClock(1000);
+        mQueue = new UploadQueue(mFile, mClock);
+        mQueue.setMaxInFlight(100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mQueue.close();
+    }
+
+    @Test
+    public void handsOutThumbnailsThenByPriorityAndSharpness() throws IOException {
+        add(1, UploadQueue.PRIORITY_FRAME, 0.5f);
+        add(2, UploadQueue.PRIORITY_THUMBNAIL, 0);
+        add(3, UploadQueue.PRIORITY_DEFERRED, 0.9f);
+        add(4, UploadQueue.PRIORITY_KEYFRAME, 0.1f);
+        add(5, UploadQueue.PRIORITY_FRAME, 0.8f);
+        add(6, UploadQueue.PRIORITY_THUMBNAIL, 0);
+        add(7, UploadQueue.PRIORITY_FRAME, 0.5f);
+
+        assertOrder(2, 6, 4, 5, 1, 7, 3);
+    }
+
+    @Test
+    public void putsTheOrderOfTheServerBeforePriority() throws IOException {
+        add(1, UploadQueue.PRIORITY_KEYFRAME, 0.5f);
+        add(2, UploadQueue.PRIORITY_FRAME, 0.5f);
+        add(3, UploadQueue.PRIORITY_THUMBNAIL, 0);
+        mQueue.setOrder(new int[]{2, 3});
+        add(4, UploadQueue.PRIORITY_FRAME, 0.1f);
+        mQueue.setOrder(new int[]{4, 2});
+
+        // Thumbnails still go first, whatever the order.
+        assertOrder(3, 4, 2, 1);
+    }
+
+    @Test
+    public void capsTheFramesInFlight() throws IOException {
+        mQueue.setMaxInFlight(2);
+        for (int i = 0; i < 4; i++) {
+            add(i, UploadQueue.PRIORITY_FRAME, 0);
+        }
+
+        UploadQueue.Entry first = mQueue.take();
+        UploadQueue.Entry second = mQueue.take();
+        assertNotNull(second);
+        assertNull(mQueue.take());
+
+        mQueue.release(first);
+        assertSame(first, mQueue.take());
+        assertNull(mQueue.take());
+
+        mQueue.onSent(second);
+        assertEquals(2, mQueue.take().item.index);
+        assertEquals(3, mQueue.size());
+    }
+
+    @Test
+    public void backoffDoublesUpToTheCap() {
+        assertEquals(0, UploadQueue.getBackoff(0));
+        assertEquals(2000, UploadQueue.getBackoff(1));
+        assertEquals(4000, UploadQueue.getBackoff(2));
+        assertEquals(8000, UploadQueue.getBackoff(3));
+        assertEquals(512000, UploadQueue.getBackoff(9));
+        assertEquals(600000, UploadQueue.getBackoff(10));
+        assertEquals(600000, UploadQueue.getBackoff(1000));
+    }
+
+    @Test
+    public void holdsAFailedFrameBackForTheBackoff() throws IOException {
+        assertEquals(-1, mQueue.getNextDelay());
+        add(1, UploadQueue.PRIORITY_FRAME, 0);
+
+        UploadQueue.Entry entry = mQueue.take();
+        assertEquals(0, mQueue.getNextDelay());
+        mQueue.onFailed(entry);
+        assertEquals(1, entry.getAttempts());
+        assertEquals(2000, mQueue.getNextDelay());
+        mClock.advance(1999);
+        assertNull(mQueue.take());
+        mClock.advance(1);
+        assertSame(entry, mQueue.take());
+
+        mQueue.onFailed(entry);
+        assertEquals(4000, mQueue.getNextDelay());
+        mClock.advance(3999);
+        assertNull(mQueue.take());
+        mClock.advance(1);
+        assertSame(entry, mQueue.take());
+    }
+
+    @Test
+    public void replaysTheJournalAfterARestart() throws IOException {
+        add(1, UploadQueue.PRIORITY_FRAME, 0.2f);
+        add(2, UploadQueue.PRIORITY_KEYFRAME, 0.4f);
+        add(3, UploadQueue.PRIORITY_FRAME, 0.6f);
+        UploadQueue.Entry sent = mQueue.take();
+        mQueue.onSent(sent);
+        UploadQueue.Entry failed = mQueue.take();
+        mQueue.onFailed(failed);
+        mQueue.onFailed(failed);
+        mQueue.close();
+
+        mQueue = new UploadQueue(mFile, mClock);
+        mQueue.setMaxInFlight(100);
+
+        assertEquals(2, mQueue.size());
+        // Every frame is due at once after a restart, with its attempts kept.
+        assertEquals(0, mQueue.getNextDelay());
+        UploadQueue.Entry replayed = mQueue.take();
+        assertEquals(failed.id, replayed.id);
+        assertEquals(2, replayed.getAttempts());
+        assertEquals(3, replayed.item.index);
+        assertEquals("pose 3", replayed.item.pose);
+        assertEquals(0.6f, replayed.sharpness, 0.01f);
+        assertEquals(failed.item.file, replayed.item.file);
+        assertEquals(0, mQueue.take().getAttempts());
+
+        UploadQueue.Entry added = mQueue.add(new UploadItem(4, failed.item.file, "pose 4"),
+                UploadQueue.PRIORITY_FRAME, 0);
+        assertTrue(added.id > Math.max(sent.id, failed.id));
+    }
+
+    private void add(int index, int priority, float sharpness) throws IOException {
+        mQueue.add(new UploadItem(index, new File(mFolder.getRoot(), "frame" + index + ".jpg"),
+                "pose " + index), priority, sharpness);
+    }
+
+    private void assertOrder(int... indices) {
+        for (int index : indices) {
+            assertEquals(index, mQueue.take().item.index);
+        }
+        assertNull(mQueue.take());
+    }
+
+}
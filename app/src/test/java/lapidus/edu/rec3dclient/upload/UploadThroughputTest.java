@@ -0,0 +1,149 @@
+package lapidus.edu.rec3dclient.upload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lapidus.edu.rec3dclient.Clock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UploadThroughputTest {
+
+    private static final long LATENCY_MILLIS = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StandInServer mServer;
+
+    private UploadQueue mQueue;
+
+    private UploadPipeline mPipeline;
+
+    private final CountDownLatch mIdle = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+        mServer.setLatency(LATENCY_MILLIS);
+        mQueue = new UploadQueue(mFolder.newFile("queue.journal"), Clock.SYSTEM);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != mPipeline) {
+            mPipeline.shutdown();
+        }
+        mQueue.close();
+        mServer.close();
+    }
+
+    private void startPipeline(int concurrency) throws IOException {
+        mQueue.setMaxInFlight(concurrency);
+        mPipeline = new UploadPipeline(new HttpTransport(new URL(mServer.getEndpoint(), "frame")),
+                mQueue, null, concurrency);
+        mPipeline.setListener(new UploadPipeline.Listener() {
+            @Override
+            public void onUploaded(UploadItem item, long nanos) {
+            }
+
+            @Override
+            public void onUploadFailed(UploadItem item, IOException e) {
+            }
+
+            @Override
+            public void onIdle() {
+                if (0 == mQueue.size()) {
+                    mIdle.countDown();
+                }
+            }
+        });
+        mPipeline.start();
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        assertTrue("The queue didn't drain", mIdle.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void overlapsUploadsUpToTheConcurrency() throws Exception {
+        int frames = 12;
+        for (int i = 0; i < frames; i++) {
+            add(i, UploadQueue.PRIORITY_FRAME, 0);
+        }
+
+        long start = System.nanoTime();
+        startPipeline(3);
+        awaitIdle();
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(3, mServer.getMaxActive());
+        // Sequential uploads would take frames * LATENCY_MILLIS.
+        assertTrue("Took " + millis + " ms", millis < frames * LATENCY_MILLIS * 3 / 4);
+        assertEquals(frames, mPipeline.getUploaded());
+        for (int i = 0; i < frames; i++) {
+            assertArrayEquals(content(i), mServer.getFrame(i));
+        }
+    }
+
+    @Test
+    public void sendsKeyframesFirstThenTheSharpestFrames() throws Exception {
+        add(0, UploadQueue.PRIORITY_FRAME, 0.2f);
+        add(1, UploadQueue.PRIORITY_FRAME, 0.9f);
+        add(2, UploadQueue.PRIORITY_KEYFRAME, 0.1f);
+        add(3, UploadQueue.PRIORITY_FRAME, 0.5f);
+        add(4, UploadQueue.PRIORITY_KEYFRAME, 0.3f);
+
+        startPipeline(1);
+        awaitIdle();
+
+        assertEquals(Arrays.asList(4, 2, 1, 3, 0), mServer.getFrameOrder());
+    }
+
+    @Test
+    public void followsTheOrderOfTheServer() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            add(i, UploadQueue.PRIORITY_FRAME, i);
+        }
+        mServer.setOrder("0,2");
+
+        startPipeline(1);
+        awaitIdle();
+
+        // The first frame is out before the server names its order.
+        List<Integer> order = mServer.getFrameOrder();
+        assertEquals(Arrays.asList(5, 0, 2, 4, 3, 1), order);
+    }
+
+    private void add(int index, int priority, float sharpness) throws IOException {
+        File file = mFolder.newFile("frame" + index + ".jpg");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content(index));
+        } finally {
+            output.close();
+        }
+        mQueue.add(new UploadItem(index, file, "pose " + index), priority, sharpness);
+    }
+
+    private static byte[] content(int index) {
+        byte[] bytes = new byte[1000 + index];
+        Arrays.fill(bytes, (byte) index);
+        return bytes;
+    }
+
+}